@@ -0,0 +1,71 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Window into the packet being built for a {@link Publication}. The payload is written directly between {@link #getOffset()} and {@link #getOffset()} + {@link #getLength()} of
+ * {@link #getBuffer()}, then {@link #commit()} hands the packet to the selector thread which sends it without copying. The instance is reused by its Publication, so it must not be
+ * touched after commit or abort.
+ */
+public class BufferClaim
+{
+	private final Publication publication;
+
+	private ClaimedPacket packet;
+	private int offset;
+	private int length;
+
+	BufferClaim(Publication publication)
+	{
+		this.publication = publication;
+		this.packet = null;
+		this.offset = 0;
+		this.length = 0;
+	}
+
+	void wrap(ClaimedPacket claimedPacket, int payloadOffset, int payloadLength)
+	{
+		this.packet = claimedPacket;
+		this.offset = payloadOffset;
+		this.length = payloadLength;
+	}
+
+	// Positioned at the payload offset, limited to the claimed length
+	public ByteBuffer getBuffer()
+	{
+		return this.packet.getBuffer();
+	}
+
+	public int getOffset()
+	{
+		return this.offset;
+	}
+
+	public int getLength()
+	{
+		return this.length;
+	}
+
+	public void commit()
+	{
+		ClaimedPacket claimedPacket = this.packet;
+		this.packet = null;
+		this.publication.commit(claimedPacket);
+	}
+
+	public void abort()
+	{
+		this.packet = null;
+		this.publication.abort();
+	}
+
+	boolean isActive()
+	{
+		return this.packet != null;
+	}
+
+	ClaimedPacket getPacket()
+	{
+		return this.packet;
+	}
+}
@@ -6,10 +6,11 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 class ChannelReceiveInfo
 {
@@ -22,20 +23,38 @@ class ChannelReceiveInfo
 	private final int bindPort;
 	private final SelectorThread selectorThread;
 	private final boolean skipGaps;
-	private final Map<String, PandaDataListener> topicToListener;
-	private final Set<PandaDataListener> groupListeners;
+	private final long nakBackoffMillis;
+	private final long reorderBufferBytes;
+	private final PandaProperties properties;
+	private final InetAddress[] sources;
+	private final DeliveryThread deliveryThread;
+	private final int deliveryReceiverId;
+	private final AtomicReference<ListenerSnapshot> listeners;
 	private final Map<InetSocketAddress, ChannelReceiveSequencer> sourceInfos;
 	private final TObjectIntMap<String> topicReceivedCounter;
 	private final TObjectIntMap<String> topicHandledCounter;
 	private final char[] tempTopicArray;
+	private final PandaMessage message;
 
+	private TopicTable<PandaMessageListener[]> wildcardMatches;
+	private TopicTable<PandaMessageListener[]> wildcardMatchesTopicTable;
+	private ByteBuffer viewSourceBuffer;
+	private ByteBuffer viewBuffer;
 	private long packetsReceived;
 	private long bytesReceived;
 	private long messagesReceived;
 	private long messagesHandled;
+	private boolean closed;
 
 	ChannelReceiveInfo(String multicastIp, int multicastPort, String multicastGroup, InetAddress localIp, int bindPort, SelectorThread selectorThread, int recvBufferSize,
 			boolean skipGaps, PandaProperties properties)
+	{
+		this(multicastIp, multicastPort, multicastGroup, localIp, bindPort, selectorThread, recvBufferSize, skipGaps, properties, null);
+	}
+
+	// Listeners are called on the deliveryThread when there is one, otherwise on the selectorThread
+	ChannelReceiveInfo(String multicastIp, int multicastPort, String multicastGroup, InetAddress localIp, int bindPort, SelectorThread selectorThread, int recvBufferSize,
+			boolean skipGaps, PandaProperties properties, DeliveryThread deliveryThread)
 	{
 		this.multicastIp = multicastIp;
 		this.multicastPort = multicastPort;
@@ -43,26 +62,159 @@ class ChannelReceiveInfo
 		this.localIp = localIp;
 		this.bindPort = bindPort;
 		this.selectorThread = selectorThread;
-		this.topicToListener = new HashMap<String, PandaDataListener>();
-		this.groupListeners = new HashSet<PandaDataListener>();
+		this.listeners = new AtomicReference<ListenerSnapshot>(ListenerSnapshot.EMPTY);
 		this.sourceInfos = new HashMap<InetSocketAddress, ChannelReceiveSequencer>();
 		this.skipGaps = skipGaps;
 		this.topicReceivedCounter = properties.getBooleanProperty(PandaProperties.MAINTAIN_DETAILED_STATS, false) ? new TObjectIntHashMap<String>() : null;
 		this.topicHandledCounter = properties.getBooleanProperty(PandaProperties.MAINTAIN_DETAILED_STATS, false) ? new TObjectIntHashMap<String>() : null;
 		this.tempTopicArray = new char[255];
+		this.message = new PandaMessage();
+		this.wildcardMatches = null;
+		this.wildcardMatchesTopicTable = null;
+		this.viewSourceBuffer = null;
+		this.viewBuffer = null;
+		this.closed = false;
+		this.deliveryThread = deliveryThread;
+		this.deliveryReceiverId = (deliveryThread != null) ? deliveryThread.register(this) : -1;
+		this.sources = PandaUtils.getMulticastSources(multicastGroup, properties);
+		int repairPort = PandaUtils.getRepairPort(multicastPort, multicastGroup, properties);
+		this.nakBackoffMillis = (repairPort > 0) ? properties.getLongProperty(PandaProperties.REPAIR_NAK_BACKOFF_MILLIS, multicastGroup, PandaUtils.REPAIR_NAK_BACKOFF_MILLIS)
+				: 0;
+		this.reorderBufferBytes = properties.getLongProperty(PandaProperties.REORDER_BUFFER_BYTES, multicastGroup, PandaUtils.REORDER_BUFFER_BYTES);
+		this.properties = properties;
 
+		// The selectorThread may hand packets to this as soon as it is subscribed, so subscribing comes last
 		this.selectorThread.subscribeToMulticastChannel(this.multicastIp, this.multicastPort, this.multicastGroup, this.localIp, this, recvBufferSize);
+
+		// Repairs carry the original packets, so they are handled exactly like packets on the group itself
+		if (repairPort > 0)
+		{
+			this.selectorThread.subscribeToMulticastChannel(this.multicastIp, repairPort, PandaUtils.getMulticastGroup(this.multicastIp, repairPort), this.localIp, this,
+					recvBufferSize);
+		}
 	}
 
 	// Called by app thread
 	PandaDataListener registerTopicListener(String topic, PandaDataListener listener)
 	{
-		return this.topicToListener.put(topic, listener);
+		if (listener == null) return null;
+		PandaMessageListener registeredListener = registerTopicListener(topic, new CopyingMessageListener(listener));
+		return (registeredListener instanceof CopyingMessageListener) ? ((CopyingMessageListener) registeredListener).getListener() : null;
+	}
+
+	// Called by app thread - listeners are added to the ones already on the topic, each listener only once. Returns the listener if it already was on the topic.
+	PandaMessageListener registerTopicListener(String topic, PandaMessageListener listener)
+	{
+		if (listener == null) return null;
+		PandaMessageListener registeredListener = getTopicListener(topic, listener);
+		if (registeredListener != null) return registeredListener;
+		registerTopicListeners(Collections.singleton(topic), listener);
+		return null;
+	}
+
+	// The listener on the topic equal to listener, or null
+	PandaMessageListener getTopicListener(String topic, PandaMessageListener listener)
+	{
+		return this.listeners.get().get(topic, listener);
+	}
+
+	// Called by app threads, any number at once - the listeners are swapped in as a new snapshot, retrying if another thread swapped first. The thread calling the listeners
+	// picks up the new snapshot with its next packet, so all topics of a batch start together. Returns false once the group is left, the listener must go to a new one.
+	boolean registerTopicListeners(Collection<String> topics, PandaMessageListener listener)
+	{
+		if (listener == null) return true;
+		ListenerSnapshot snapshot;
+		ListenerSnapshot newSnapshot;
+		do
+		{
+			snapshot = this.listeners.get();
+			if (snapshot == ListenerSnapshot.CLOSED) return false;
+			newSnapshot = snapshot.add(topics, listener);
+		}
+		while (newSnapshot != snapshot && !this.listeners.compareAndSet(snapshot, newSnapshot));
+		return true;
+	}
+
+	// Called by app threads, any number at once - returns true if the listener was on any of the topics
+	boolean unregisterTopicListeners(Collection<String> topics, PandaMessageListener listener)
+	{
+		if (listener == null) return false;
+		ListenerSnapshot snapshot;
+		ListenerSnapshot newSnapshot;
+		do
+		{
+			snapshot = this.listeners.get();
+			newSnapshot = snapshot.remove(topics, listener);
+		}
+		while (newSnapshot != snapshot && !this.listeners.compareAndSet(snapshot, newSnapshot));
+		return newSnapshot != snapshot;
+	}
+
+	// Called by app threads, any number at once - every listener of the topics goes. Returns true if any of the topics had listeners.
+	boolean unregisterTopics(Collection<String> topics)
+	{
+		ListenerSnapshot snapshot;
+		ListenerSnapshot newSnapshot;
+		do
+		{
+			snapshot = this.listeners.get();
+			newSnapshot = snapshot.removeTopics(topics);
+		}
+		while (newSnapshot != snapshot && !this.listeners.compareAndSet(snapshot, newSnapshot));
+		return newSnapshot != snapshot;
+	}
+
+	// Called by app thread - swaps in the CLOSED snapshot so no listener is called or added from now on. Unless force, only a group no topic has listeners on is marked.
+	// Returns true if this call marked the group.
+	boolean markLeaving(boolean force)
+	{
+		ListenerSnapshot snapshot = this.listeners.get();
+		if (snapshot == ListenerSnapshot.CLOSED) return false;
+		if (force) return this.listeners.getAndSet(ListenerSnapshot.CLOSED) != ListenerSnapshot.CLOSED;
+		return snapshot.getTopicCount() == 0 && this.listeners.compareAndSet(snapshot, ListenerSnapshot.CLOSED);
+	}
+
+	// Called by app thread, with the same lock as the constructor - repairs from the source are filtered too
+	void filterSource(InetAddress source, boolean block)
+	{
+		this.selectorThread.filterMulticastSource(this.multicastGroup, source, block);
+		int repairPort = PandaUtils.getRepairPort(this.multicastPort, this.multicastGroup, this.properties);
+		if (repairPort > 0)
+		{
+			this.selectorThread.filterMulticastSource(PandaUtils.getMulticastGroup(this.multicastIp, repairPort), source, block);
+		}
+	}
+
+	// Called by app thread, with the same lock as the constructor, once markLeaving returned true - the channels are closed and close called on the selectorThread
+	void leave()
+	{
+		this.selectorThread.unsubscribeFromMulticastChannel(this.multicastGroup, this);
+		int repairPort = PandaUtils.getRepairPort(this.multicastPort, this.multicastGroup, this.properties);
+		if (repairPort > 0)
+		{
+			this.selectorThread.unsubscribeFromMulticastChannel(PandaUtils.getMulticastGroup(this.multicastIp, repairPort), this);
+		}
+	}
+
+	// Called by selectorThread once a channel of the group is closed, again for its repair channel - frees the state of every source
+	void close()
+	{
+		if (this.closed) return;
+		this.closed = true;
+		for (ChannelReceiveSequencer sourceInfo : this.sourceInfos.values())
+		{
+			sourceInfo.close();
+		}
+		this.sourceInfos.clear();
+		if (this.deliveryThread != null) this.deliveryThread.deregister(this.deliveryReceiverId);
 	}
 
 	// Called by selectorThread
 	void dataReceived(InetSocketAddress sourceAddress, ByteBuffer packetBuffer)
 	{
+		// Packets already read from the repair channel when the group channel closed
+		if (this.closed) return;
+
 		// Read packet header
 		int packetPosition = packetBuffer.position();
 		byte packetHeaderLength = packetBuffer.get();
@@ -73,7 +225,8 @@ class ChannelReceiveInfo
 		if (incomingSourcePort == this.bindPort && incomingSourceAddress.equals(this.localIp)) return;
 
 		// Continue reading packet header
-		boolean supportsRetranmissions = packetBuffer.get() > 0;
+		byte packetFlags = packetBuffer.get();
+		boolean supportsRetranmissions = (packetFlags & PandaUtils.PACKET_FLAG_RETRANSMISSIONS) != 0;
 		long sequenceNumber = packetBuffer.getLong();
 		byte messageCount = packetBuffer.get();
 
@@ -83,6 +236,21 @@ class ChannelReceiveInfo
 			packetBuffer.position(packetPosition + packetHeaderLength);
 		}
 
+		// Parity packets carry the first sequenceNumber and size of their block in place of the sequenceNumber and message count
+		if ((packetFlags & PandaUtils.PACKET_FLAG_FEC_PARITY) != 0)
+		{
+			getSourceInfo(sourceAddress).fecParityReceived(supportsRetranmissions, sequenceNumber, messageCount, packetBuffer);
+			return;
+		}
+
+		// Heartbeats carry the last sequenceNumber sent and the cached range of the source instead of messages
+		if ((packetFlags & PandaUtils.PACKET_FLAG_HEARTBEAT) != 0)
+		{
+			if (packetBuffer.remaining() < PandaUtils.HEARTBEAT_BODY_SIZE) return;
+			getSourceInfo(sourceAddress).heartbeatReceived(supportsRetranmissions, sequenceNumber, packetBuffer.getLong(), packetBuffer.getLong());
+			return;
+		}
+
 		// Check for gaps
 		getSourceInfo(sourceAddress).packetReceived(supportsRetranmissions, sequenceNumber, messageCount, packetBuffer);
 	}
@@ -92,7 +260,8 @@ class ChannelReceiveInfo
 		ChannelReceiveSequencer sourceInfo = this.sourceInfos.get(sourceAddress);
 		if (sourceInfo == null)
 		{
-			sourceInfo = new ChannelReceiveSequencer(this.selectorThread, this.multicastGroup, sourceAddress, this, MAX_SOURCE_DROP_THRESHOLD, this.skipGaps);
+			sourceInfo = new ChannelReceiveSequencer(this.selectorThread, this.multicastGroup, sourceAddress, this, MAX_SOURCE_DROP_THRESHOLD, this.skipGaps,
+					this.nakBackoffMillis, this.reorderBufferBytes, new GapThresholds(this.properties, this.multicastGroup));
 			this.sourceInfos.put(sourceAddress, sourceInfo);
 		}
 		return sourceInfo;
@@ -100,47 +269,126 @@ class ChannelReceiveInfo
 
 	// Called by selectorThread via FmcChannelReceiveSourceInfo
 	void parseAndDeliverToListeners(byte messageCount, ByteBuffer packetBuffer)
+	{
+		if (this.deliveryThread != null)
+		{
+			this.deliveryThread.deliver(this.deliveryReceiverId, messageCount, packetBuffer);
+			return;
+		}
+		parseAndCallListeners(messageCount, packetBuffer);
+	}
+
+	// Called by deliveryThread, or by selectorThread without one
+	void parseAndCallListeners(byte messageCount, ByteBuffer packetBuffer)
 	{
 		this.bytesReceived += packetBuffer.remaining();
+		TopicTable<PandaMessageListener[]> listeners = this.listeners.get().getTopicTable();
 
 		// Parse messages and deliver to listeners
 		for (int i = 0; i < messageCount; i++)
 		{
-			// Parse Topic
+			// Parse Topic - looked up on its bytes, a String is only built for topics matched by wildcards and for detailed stats
 			byte incomingTopicLength = packetBuffer.get();
-			for (int t = 0; t < incomingTopicLength; t++)
+			int topicOffset = packetBuffer.position();
+			TopicTable<PandaMessageListener[]> matchedTable = listeners;
+			int topicIndex = listeners.indexOf(packetBuffer, topicOffset, incomingTopicLength);
+			if (topicIndex < 0 && listeners.getWildcards() != null)
 			{
-				this.tempTopicArray[t] = (char) packetBuffer.get();
+				matchedTable = getWildcardMatches(listeners);
+				topicIndex = matchWildcards(listeners, packetBuffer, topicOffset, incomingTopicLength);
 			}
-			String incomingTopic = new String(this.tempTopicArray, 0, incomingTopicLength);
+			packetBuffer.position(topicOffset + incomingTopicLength);
 
-			// Parse Message + Deliver a new copy to each listener
+			// Parse Message + Deliver the same view over the packet to each listener, reset in case a listener moved it
 			short messageLength = packetBuffer.getShort();
-			PandaDataListener listeners = this.topicToListener.get(incomingTopic);
-			if (listeners != null)
+			int messageOffset = packetBuffer.position();
+			String incomingTopic = (topicIndex >= 0) ? matchedTable.getTopic(topicIndex) : null;
+			PandaMessageListener[] topicListeners = (topicIndex >= 0) ? matchedTable.getValue(topicIndex) : null;
+			if (topicListeners != null)
 			{
-				byte[] messageBytes = new byte[messageLength];
-				packetBuffer.get(messageBytes);
-				// for (PandaDataListener listener : listeners)
+				ByteBuffer viewBuffer = getViewBuffer(packetBuffer);
+				for (PandaMessageListener listener : topicListeners)
 				{
-					listeners.receivedPandaData(incomingTopic, messageBytes);
+					this.message.set(incomingTopic, viewBuffer, messageOffset, messageLength);
+					listener.receivedPandaMessage(this.message);
 				}
 				this.messagesHandled++;
 				if (this.topicHandledCounter != null) this.topicHandledCounter.adjustOrPutValue(incomingTopic, 1, 1);
 			}
-			else
+			packetBuffer.position(messageOffset + messageLength);
+			if (this.topicReceivedCounter != null)
 			{
-				packetBuffer.position(packetBuffer.position() + messageLength);
+				if (incomingTopic == null) incomingTopic = decodeTopic(packetBuffer, topicOffset, incomingTopicLength);
+				this.topicReceivedCounter.adjustOrPutValue(incomingTopic, 1, 1);
 			}
-			if (this.topicReceivedCounter != null) this.topicReceivedCounter.adjustOrPutValue(incomingTopic, 1, 1);
 		}
 		this.messagesReceived += messageCount;
 		this.packetsReceived++;
 	}
 
+	// Wildcard matches of each topic are cached, including topics nothing matches, until the subscriptions change or the cache fills up
+	private TopicTable<PandaMessageListener[]> getWildcardMatches(TopicTable<PandaMessageListener[]> listeners)
+	{
+		if (this.wildcardMatches == null) this.wildcardMatches = new TopicTable<PandaMessageListener[]>(PandaUtils.WILDCARD_MATCH_CACHE_SIZE);
+		if (this.wildcardMatchesTopicTable != listeners)
+		{
+			this.wildcardMatches.clear();
+			this.wildcardMatchesTopicTable = listeners;
+		}
+		return this.wildcardMatches;
+	}
+
+	// Index into the wildcardMatches
+	private int matchWildcards(TopicTable<PandaMessageListener[]> listeners, ByteBuffer packetBuffer, int topicOffset, int topicLength)
+	{
+		int topicIndex = this.wildcardMatches.indexOf(packetBuffer, topicOffset, topicLength);
+		if (topicIndex >= 0) return topicIndex;
+		PandaMessageListener[] topicListeners = listeners.getWildcards().match(packetBuffer, topicOffset, topicLength);
+		String topic = decodeTopic(packetBuffer, topicOffset, topicLength);
+		topicIndex = this.wildcardMatches.add(packetBuffer, topicOffset, topicLength, topic, topicListeners);
+		if (topicIndex < 0)
+		{
+			this.wildcardMatches.clear();
+			topicIndex = this.wildcardMatches.add(packetBuffer, topicOffset, topicLength, topic, topicListeners);
+		}
+		return topicIndex;
+	}
+
+	private String decodeTopic(ByteBuffer packetBuffer, int topicOffset, int topicLength)
+	{
+		for (int t = 0; t < topicLength; t++)
+		{
+			this.tempTopicArray[t] = (char) packetBuffer.get(topicOffset + t);
+		}
+		return new String(this.tempTopicArray, 0, topicLength);
+	}
+
+	// Packets mostly arrive in the same buffer (the selectorThread's receive buffer or the deliveryThread's ring), so its read-only view is only made again when it changes
+	private ByteBuffer getViewBuffer(ByteBuffer packetBuffer)
+	{
+		if (packetBuffer != this.viewSourceBuffer)
+		{
+			this.viewSourceBuffer = packetBuffer;
+			this.viewBuffer = packetBuffer.asReadOnlyBuffer();
+		}
+		this.viewBuffer.clear();
+		return this.viewBuffer;
+	}
+
 	void deliverErrorToListeners(PandaErrorCode errorCode, String message, Throwable throwable)
 	{
-		for (PandaDataListener listener : this.groupListeners)
+		if (this.deliveryThread != null)
+		{
+			this.deliveryThread.deliverError(this.deliveryReceiverId, errorCode, message, throwable);
+			return;
+		}
+		callErrorListeners(errorCode, message, throwable);
+	}
+
+	// Called by deliveryThread, or by selectorThread without one - every listener on the group is told once
+	void callErrorListeners(PandaErrorCode errorCode, String message, Throwable throwable)
+	{
+		for (PandaMessageListener listener : this.listeners.get().getGroupListeners())
 		{
 			listener.receivedPandaError(errorCode, this.multicastGroup, message, throwable);
 		}
@@ -166,11 +414,63 @@ class ChannelReceiveInfo
 		return this.bytesReceived;
 	}
 
+	long getPacketsRecoveredByFec()
+	{
+		long packetsRecoveredByFec = 0;
+		for (ChannelReceiveSequencer sourceInfo : this.sourceInfos.values())
+		{
+			packetsRecoveredByFec += sourceInfo.getPacketsRecoveredByFec();
+		}
+		return packetsRecoveredByFec;
+	}
+
+	long getPacketsRecoveredByRetransmission()
+	{
+		long packetsRecoveredByRetransmission = 0;
+		for (ChannelReceiveSequencer sourceInfo : this.sourceInfos.values())
+		{
+			packetsRecoveredByRetransmission += sourceInfo.getPacketsRecoveredByRetransmission();
+		}
+		return packetsRecoveredByRetransmission;
+	}
+
 	String getMulticastGroup()
 	{
 		return this.multicastGroup;
 	}
 
+	// Topics with at least one listener
+	int getTopicCount()
+	{
+		return this.listeners.get().getTopicCount();
+	}
+
+	boolean isClosed()
+	{
+		return this.closed;
+	}
+
+	// The senders the group is joined for, empty when joined for any source
+	InetAddress[] getSources()
+	{
+		return this.sources;
+	}
+
+	SelectorThread getSelectorThread()
+	{
+		return this.selectorThread;
+	}
+
+	int getBindPort()
+	{
+		return this.bindPort;
+	}
+
+	DeliveryThread getDeliveryThread()
+	{
+		return this.deliveryThread;
+	}
+
 	Map<InetSocketAddress, ChannelReceiveSequencer> getSourceInfos()
 	{
 		return this.sourceInfos;
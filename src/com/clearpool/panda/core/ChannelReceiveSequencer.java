@@ -2,15 +2,16 @@ package com.clearpool.panda.core;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Random;
 
 class ChannelReceiveSequencer
 {
-	private static final int OUT_OF_ORDER_PACKET_THRESHOLD = 20;
-	private static final int QUEUE_GIVEUP_TIME = 2000;
-	private static final int REQUEST_MANAGER_FAILURE_THRESHOLD = 3;
+	private static final int MAX_SELECTIVE_REQUEST_RANGE = PandaUtils.MAX_RETRANSMISSION_REQUEST_BITMAP_SIZE * Byte.SIZE;
 
 	private final SelectorThread selectorThread;
 	private final String key;
@@ -19,13 +20,26 @@ class ChannelReceiveSequencer
 	private final ChannelReceiveInfo channelReceiveInfo;
 	private final int maxDroppedPacketsAllowed;
 	private final boolean skipGaps;
-	private final PriorityQueue<Packet> queuedPackets;
+	private final ReorderRing queuedPackets;
+	private final Deque<GapRequestManager> requestManagers;
+	private final long nakBackoffMillis;
+	private final Random nakBackoffRandom;
+	private final GapThresholds gapThresholds;
+	private final WheelTimer gapTimer;
 
 	private long lastSequenceNumber;
-	private GapRequestManager requestManager;
+	private long advertisedSequenceNumber;
+	private long sourceCacheHeadSequenceNumber;
+	private long sourceCacheTailSequenceNumber;
+	private boolean supportsRetransmissions;
+	private long nakTime;
+	private int fecBlockSize;
+	private FecBlock[] fecBlocks;
 	private long timeOfFirstQueuedPacket;
 	private long packetsDropped;
 	private long packetsLost;
+	private long packetsRecoveredByFec;
+	private long packetsRecoveredByRetransmission;
 	private boolean retransmissionsDisabled;
 	private int requestManagerFailures;
 	private int numOfRetransmissionRequests;
@@ -34,6 +48,14 @@ class ChannelReceiveSequencer
 
 	ChannelReceiveSequencer(SelectorThread selectorThread, String multicastGroup, InetSocketAddress sourceAddress, ChannelReceiveInfo channelReceiveInfo,
 			int maxDroppedPacketsAllowed, boolean skipGaps)
+	{
+		this(selectorThread, multicastGroup, sourceAddress, channelReceiveInfo, maxDroppedPacketsAllowed, skipGaps, 0, PandaUtils.REORDER_BUFFER_BYTES, new GapThresholds());
+	}
+
+	// nakBackoffMillis is the most a gap request is randomly held back when the group has a repair channel, 0 sends it right away. reorderBufferBytes bounds the out of order
+	// packets held while gaps are recovered.
+	ChannelReceiveSequencer(SelectorThread selectorThread, String multicastGroup, InetSocketAddress sourceAddress, ChannelReceiveInfo channelReceiveInfo,
+			int maxDroppedPacketsAllowed, boolean skipGaps, long nakBackoffMillis, long reorderBufferBytes, GapThresholds gapThresholds)
 	{
 		this.selectorThread = selectorThread;
 		this.key = PandaUtils.getAddressString(sourceAddress);
@@ -42,13 +64,33 @@ class ChannelReceiveSequencer
 		this.channelReceiveInfo = channelReceiveInfo;
 		this.maxDroppedPacketsAllowed = maxDroppedPacketsAllowed;
 		this.skipGaps = skipGaps;
-		this.queuedPackets = new PriorityQueue<Packet>();
+		this.queuedPackets = new ReorderRing(PandaUtils.REORDER_RING_SIZE, reorderBufferBytes);
+		this.requestManagers = new ArrayDeque<GapRequestManager>();
+		this.nakBackoffMillis = nakBackoffMillis;
+		this.nakBackoffRandom = (nakBackoffMillis > 0) ? new Random() : null;
+		this.gapThresholds = gapThresholds;
+		this.gapTimer = new WheelTimer()
+		{
+			@Override
+			void expired(long now)
+			{
+				gapTimerExpired(now);
+			}
+		};
 
 		this.lastSequenceNumber = 0;
-		this.requestManager = null;
+		this.advertisedSequenceNumber = 0;
+		this.sourceCacheHeadSequenceNumber = 0;
+		this.sourceCacheTailSequenceNumber = 0;
+		this.supportsRetransmissions = false;
+		this.nakTime = 0;
+		this.fecBlockSize = 0;
+		this.fecBlocks = null;
 		this.timeOfFirstQueuedPacket = 0;
 		this.packetsDropped = 0;
 		this.packetsLost = 0;
+		this.packetsRecoveredByFec = 0;
+		this.packetsRecoveredByRetransmission = 0;
 		this.retransmissionsDisabled = false;
 		this.requestManagerFailures = 0;
 		this.numOfRetransmissionRequests = 0;
@@ -56,14 +98,46 @@ class ChannelReceiveSequencer
 		this.requestGiveUpsByErrorCode = new HashMap<PandaErrorCode, MutableInteger>();
 	}
 
+	// Called by selectorThread - once the group is left, outstanding requests are dropped and the queued packets freed
+	void close()
+	{
+		if (this.gapTimer.isScheduled()) this.selectorThread.cancelTimer(this.gapTimer);
+		GapRequestManager requestManager = this.requestManagers.poll();
+		while (requestManager != null)
+		{
+			requestManager.cancel();
+			requestManager = this.requestManagers.poll();
+		}
+		this.queuedPackets.clear();
+		this.fecBlocks = null;
+	}
+
 	// Called by selectorThread
 	void packetReceived(boolean supportsRetranmissions, long sequenceNumber, byte messageCount, ByteBuffer packetBuffer)
 	{
+		packetReceived(supportsRetranmissions, sequenceNumber, messageCount, packetBuffer, false);
+	}
+
+	// fecRecovered is set for packets rebuilt from parity, which tell nothing about how the source is reordered
+	private void packetReceived(boolean supportsRetranmissions, long sequenceNumber, byte messageCount, ByteBuffer packetBuffer, boolean fecRecovered)
+	{
+		this.supportsRetransmissions = supportsRetranmissions;
+		if (this.fecBlocks != null) addToFecBlock(sequenceNumber, messageCount, packetBuffer);
 		if (sequenceNumber == this.lastSequenceNumber + 1 || this.lastSequenceNumber == 0)
 		{
+			boolean gapFilled = hasGap();
+			if (!gapFilled)
+			{
+				this.gapThresholds.inOrderPacketReceived();
+			}
+			else if (!fecRecovered && this.queuedPackets.size() > 0)
+			{
+				reorderedPacketReceived(sequenceNumber);
+			}
 			this.lastSequenceNumber = sequenceNumber;
 			this.channelReceiveInfo.parseAndDeliverToListeners(messageCount, packetBuffer);
 			dequeueQueuedPackets();
+			if (gapFilled) recoveredPacketReceived();
 		}
 		else if (sequenceNumber <= this.lastSequenceNumber)
 		{
@@ -73,97 +147,227 @@ class ChannelReceiveSequencer
 				this.lastSequenceNumber = sequenceNumber;
 				this.channelReceiveInfo.parseAndDeliverToListeners(messageCount, packetBuffer);
 				this.queuedPackets.clear();
-				if (this.requestManager != null)
+				this.timeOfFirstQueuedPacket = 0;
+				this.nakTime = 0;
+				this.fecBlockSize = 0;
+				this.fecBlocks = null;
+				this.advertisedSequenceNumber = 0;
+				this.sourceCacheHeadSequenceNumber = 0;
+				this.sourceCacheTailSequenceNumber = 0;
+				GapRequestManager requestManager;
+				while ((requestManager = this.requestManagers.poll()) != null)
 				{
-					this.requestManager.close(false);
-					this.requestManager = null;
+					requestManager.close(false);
 				}
 				this.packetsDropped = 0;
 			}
 		}
 		else
 		{
-			long time = System.currentTimeMillis();
-			addPacketToQueue(sequenceNumber, messageCount, packetBuffer, time);
-			PandaErrorCode skipReason = null;
-			if (shouldDeclareDrop(time))
+			long time = this.selectorThread.getCurrentTimeMillis();
+			if (sequenceNumber < this.queuedPackets.getLastSequenceNumber())
 			{
-				long dropped = this.queuedPackets.peek().getSequenceNumber() - this.lastSequenceNumber - 1;
+				if (!fecRecovered && !this.queuedPackets.contains(sequenceNumber)) reorderedPacketReceived(sequenceNumber);
+				recoveredPacketReceived();
+			}
+			if (addPacketToQueue(sequenceNumber, messageCount, packetBuffer, time)) handleGap(time);
+		}
+		updateGapTimer();
+	}
+
+	// Called by selectorThread - a heartbeat is only sent once the source has been idle for a while, so any packet up to its sequenceNumber that is still missing was lost
+	// rather than reordered and is requested right away. Packets older than the cache head of the source can no longer be resent and are skipped instead.
+	void heartbeatReceived(boolean supportsRetranmissions, long sequenceNumber, long cacheHeadSequenceNumber, long cacheTailSequenceNumber)
+	{
+		this.supportsRetransmissions = supportsRetranmissions;
+		this.sourceCacheHeadSequenceNumber = cacheHeadSequenceNumber;
+		this.sourceCacheTailSequenceNumber = cacheTailSequenceNumber;
+		if (this.lastSequenceNumber == 0 || sequenceNumber <= this.advertisedSequenceNumber) return;
+		this.advertisedSequenceNumber = sequenceNumber;
+		if (hasGap()) handleGap(this.selectorThread.getCurrentTimeMillis());
+		updateGapTimer();
+	}
 
-				// Check if retransmissions are turned off by receiver
-				if (this.skipGaps || this.retransmissionsDisabled)
+	private boolean hasGap()
+	{
+		return this.queuedPackets.size() > 0 || this.advertisedSequenceNumber > this.lastSequenceNumber;
+	}
+
+	// Last sequenceNumber of the oldest gap, which ends before the first queued packet or else at the last sequenceNumber advertised by a heartbeat
+	private long getOldestGapEnd()
+	{
+		if (this.queuedPackets.size() > 0) return this.queuedPackets.getFirstSequenceNumber() - 1;
+		return this.advertisedSequenceNumber;
+	}
+
+	// A source that goes quiet right after a loss sends no packet that would check its gaps, so the gap timer runs whenever packets are missing or requested
+	private void updateGapTimer()
+	{
+		if (!hasGap() && this.requestManagers.isEmpty())
+		{
+			if (this.gapTimer.isScheduled()) this.selectorThread.cancelTimer(this.gapTimer);
+			return;
+		}
+
+		long deadline;
+		GapRequestManager oldestRequestManager = this.requestManagers.peek();
+		if (oldestRequestManager != null)
+		{
+			deadline = oldestRequestManager.getTimeOfRequest() + this.gapThresholds.getGiveUpMillis();
+		}
+		else
+		{
+			deadline = (this.nakTime != 0) ? this.nakTime : this.timeOfFirstQueuedPacket + this.gapThresholds.getNakDelayMillis();
+		}
+		deadline = Math.max(deadline, this.selectorThread.getCurrentTimeMillis() + 1);
+		if (!this.gapTimer.isScheduled() || this.gapTimer.getDeadline() != deadline) this.selectorThread.scheduleTimer(this.gapTimer, deadline);
+	}
+
+	private void gapTimerExpired(long now)
+	{
+		if (hasGap()) handleGap(now);
+		updateGapTimer();
+	}
+
+	// Declares the oldest gap lost once it has waited out the thresholds, and then either requests it or skips it
+	private void handleGap(long time)
+	{
+		PandaErrorCode skipReason = null;
+		long skipToSequenceNumber = getOldestGapEnd();
+		if (shouldDeclareDrop(time))
+		{
+			long dropped = skipToSequenceNumber - this.lastSequenceNumber;
+
+			// Check if retransmissions are turned off by receiver
+			if (this.skipGaps || this.retransmissionsDisabled)
+			{
+				skipReason = PandaErrorCode.NONE;
+				this.packetsDropped += dropped;
+			}
+			// Retransmissions are supported
+			else if (this.supportsRetransmissions)
+			{
+				// Check if max drops exceeded
+				if (this.packetsDropped >= this.maxDroppedPacketsAllowed)
 				{
-					skipReason = PandaErrorCode.NONE;
+					skipReason = PandaErrorCode.PACKET_LOSS_MAX_DROPS_EXCEEDED;
 					this.packetsDropped += dropped;
 				}
-				// Retransmissions are supported
-				else if (supportsRetranmissions)
+				// Send retransmission request for any gap not already being recovered
+				else
 				{
-					// Check if max drops exceeded
-					if (this.packetsDropped >= this.maxDroppedPacketsAllowed)
+					GapRequestManager oldestRequestManager = this.requestManagers.peek();
+					if (this.sourceCacheHeadSequenceNumber > this.lastSequenceNumber + 1)
 					{
-						skipReason = PandaErrorCode.PACKET_LOSS_MAX_DROPS_EXCEEDED;
-						this.packetsDropped += dropped;
+						// The source no longer caches the start of the gap, so only the rest of it is worth requesting
+						skipReason = PandaErrorCode.PACKET_LOSS_NOT_CACHED;
+						skipToSequenceNumber = Math.min(skipToSequenceNumber, this.sourceCacheHeadSequenceNumber - 1);
+						this.packetsDropped += skipToSequenceNumber - this.lastSequenceNumber;
 					}
-					// Send retransmission request
-					else
+					else if (oldestRequestManager != null && time - oldestRequestManager.getTimeOfRequest() >= this.gapThresholds.getGiveUpMillis())
 					{
-						if (this.requestManager != null && time - this.requestManager.getTimeOfRequest() >= QUEUE_GIVEUP_TIME)
-						{
-							skipReason = PandaErrorCode.PACKET_LOSS_RETRANSMISSION_TIMEOUT;
-							this.requestManager.close(false);
-						}
-						else if (this.requestManagerFailures >= REQUEST_MANAGER_FAILURE_THRESHOLD)
-						{
-							skipReason = PandaErrorCode.PACKET_LOSS_RETRANSMISSION_FAILED;
-							this.requestManagerFailures = 0;
-						}
-						else if (this.requestManager == null)
+						skipReason = PandaErrorCode.PACKET_LOSS_RETRANSMISSION_TIMEOUT;
+						oldestRequestManager.close(false);
+					}
+					else if (this.requestManagerFailures >= this.gapThresholds.getRequestFailureThreshold())
+					{
+						skipReason = PandaErrorCode.PACKET_LOSS_RETRANSMISSION_FAILED;
+						this.requestManagerFailures = 0;
+					}
+					else if (isNakDue(time))
+					{
+						boolean successfullySentGapRequest = sendGapRequest(time);
+						if (!successfullySentGapRequest)
 						{
-							boolean successfullySentGapRequest = sendGapRequest(time);
-							if (!successfullySentGapRequest)
-							{
-								skipReason = PandaErrorCode.PACKET_LOSS_UNABLE_TO_HANDLE_GAP;
-							}
-							if (this.requestManagerFailures == 0) this.packetsDropped += dropped;
+							skipReason = PandaErrorCode.PACKET_LOSS_UNABLE_TO_HANDLE_GAP;
 						}
 					}
 				}
-				// Retransmissions not supported
-				else
-				{
-					skipReason = PandaErrorCode.NONE;
-					this.packetsDropped += dropped;
-				}
 			}
+			// Retransmissions not supported
+			else
+			{
+				skipReason = PandaErrorCode.NONE;
+				this.packetsDropped += dropped;
+			}
+		}
 
-			if (skipReason != null)
+		if (skipReason != null)
+		{
+			incrememntGiveupByErrorCode(skipReason);
+			if (skipReason != PandaErrorCode.NONE)
 			{
-				incrememntGiveupByErrorCode(skipReason);
-				if (skipReason != PandaErrorCode.NONE)
-				{
-					this.channelReceiveInfo.deliverErrorToListeners(skipReason, "Source=" + this.key + " packetsDropped=" + this.packetsDropped, null);
-				}
-				skipPacketAndDequeue(this.queuedPackets.peek().getSequenceNumber() - 1);
+				this.channelReceiveInfo.deliverErrorToListeners(skipReason, "Source=" + this.key + " packetsDropped=" + this.packetsDropped, null);
+			}
+			skipPacketAndDequeue(skipToSequenceNumber);
+		}
+	}
+
+	// Called by selectorThread - the block size is learned from the first parity packet of the source, its packets are folded into their blocks from then on. A block that is
+	// missing a single packet is rebuilt here, without waiting for a gap request.
+	void fecParityReceived(boolean supportsRetranmissions, long firstSequenceNumber, byte blockSize, ByteBuffer parityBuffer)
+	{
+		if (blockSize <= 0 || blockSize > PandaUtils.MAX_FEC_BLOCK_SIZE) return;
+		if (blockSize != this.fecBlockSize)
+		{
+			this.fecBlockSize = blockSize;
+			this.fecBlocks = new FecBlock[PandaUtils.FEC_BLOCK_HISTORY_SIZE];
+			for (int i = 0; i < this.fecBlocks.length; i++)
+			{
+				this.fecBlocks[i] = new FecBlock();
 			}
+			return;
+		}
+		if (firstSequenceNumber + blockSize - 1 <= this.lastSequenceNumber) return;
+
+		FecBlock fecBlock = getFecBlock(firstSequenceNumber);
+		if (fecBlock.getFirstSequenceNumber() != firstSequenceNumber) return;
+		Packet recoveredPacket = fecBlock.recover(blockSize, parityBuffer);
+		if (recoveredPacket == null || recoveredPacket.getSequenceNumber() <= this.lastSequenceNumber) return;
+		this.packetsRecoveredByFec++;
+		packetReceived(supportsRetranmissions, recoveredPacket.getSequenceNumber(), recoveredPacket.getMessageCount(), ByteBuffer.wrap(recoveredPacket.getBytes()), true);
+	}
+
+	private void addToFecBlock(long sequenceNumber, byte messageCount, ByteBuffer packetBuffer)
+	{
+		long blockFirstSequenceNumber = sequenceNumber - (sequenceNumber - 1) % this.fecBlockSize;
+		FecBlock fecBlock = getFecBlock(blockFirstSequenceNumber);
+		if (fecBlock.getFirstSequenceNumber() != blockFirstSequenceNumber)
+		{
+			// Packets of blocks older than the ones kept can no longer be recovered
+			if (fecBlock.getFirstSequenceNumber() > blockFirstSequenceNumber) return;
+			fecBlock.reset(blockFirstSequenceNumber);
 		}
+		fecBlock.add(sequenceNumber, messageCount, packetBuffer, packetBuffer.position(), packetBuffer.remaining());
+	}
+
+	private FecBlock getFecBlock(long blockFirstSequenceNumber)
+	{
+		return this.fecBlocks[(int) (((blockFirstSequenceNumber - 1) / this.fecBlockSize) % this.fecBlocks.length)];
+	}
+
+	// Called by selectorThread with a packet of a gap response
+	void retransmittedPacketReceived(InetSocketAddress packetSourceAddress, ByteBuffer packetBuffer)
+	{
+		if (packetBuffer.getLong(packetBuffer.position() + PandaUtils.PACKET_SEQUENCE_NUMBER_OFFSET) > this.lastSequenceNumber) this.packetsRecoveredByRetransmission++;
+		this.channelReceiveInfo.dataReceived(packetSourceAddress, packetBuffer);
 	}
 
 	private void dequeueQueuedPackets()
 	{
-		if (this.queuedPackets.size() == 0) return;
+		if (this.queuedPackets.size() == 0 && this.nakTime == 0) return;
 		while (this.queuedPackets.size() > 0)
 		{
-			Packet queuedPacket = this.queuedPackets.peek();
-			if (queuedPacket.getSequenceNumber() <= this.lastSequenceNumber)
+			long queuedSequenceNumber = this.queuedPackets.getFirstSequenceNumber();
+			if (queuedSequenceNumber <= this.lastSequenceNumber)
 			{
-				this.queuedPackets.remove();
+				this.queuedPackets.remove(queuedSequenceNumber);
 			}
-			else if (queuedPacket.getSequenceNumber() == this.lastSequenceNumber + 1)
+			else if (queuedSequenceNumber == this.lastSequenceNumber + 1)
 			{
-				queuedPacket = this.queuedPackets.remove();
-				this.channelReceiveInfo.parseAndDeliverToListeners(queuedPacket.getMessageCount(), ByteBuffer.wrap(queuedPacket.getBytes()));
-				this.lastSequenceNumber = queuedPacket.getSequenceNumber();
+				this.channelReceiveInfo.parseAndDeliverToListeners(this.queuedPackets.getMessageCount(queuedSequenceNumber), this.queuedPackets.getPacket(queuedSequenceNumber));
+				this.queuedPackets.remove(queuedSequenceNumber);
+				this.lastSequenceNumber = queuedSequenceNumber;
 			}
 			else
 			{
@@ -174,30 +378,111 @@ class ChannelReceiveSequencer
 		if (this.queuedPackets.size() == 0)
 		{
 			this.timeOfFirstQueuedPacket = 0;
+			if (!hasGap()) this.nakTime = 0;
+		}
+	}
+
+	// A gap filled while no gap request is outstanding was only reordered, by as many packets as arrived ahead of it
+	private void reorderedPacketReceived(long sequenceNumber)
+	{
+		if (!this.requestManagers.isEmpty()) return;
+		this.gapThresholds.reorderedPacketReceived(this.queuedPackets.getLastSequenceNumber() - sequenceNumber, this.selectorThread.getCurrentTimeMillis()
+				- this.timeOfFirstQueuedPacket);
+	}
+
+	// A packet that fills a gap is a repair or retransmission already on its way. Requests it completes are done, and a held back request is put off again since a repair
+	// multicast for another receiver is likely to cover it too.
+	private void recoveredPacketReceived()
+	{
+		GapRequestManager oldestRequestManager = this.requestManagers.peek();
+		while (oldestRequestManager != null && oldestRequestManager.getLastSequenceNumberRequested() <= this.lastSequenceNumber)
+		{
+			oldestRequestManager.close(true);
+			oldestRequestManager = this.requestManagers.peek();
 		}
+		if (this.nakTime != 0) this.nakTime = this.selectorThread.getCurrentTimeMillis() + nextNakBackoff();
+	}
+
+	// With a repair channel every receiver behind the same loss would request it at once, so each holds back for a random time and only requests what is still missing
+	private boolean isNakDue(long time)
+	{
+		if (this.nakBackoffMillis <= 0) return true;
+		if (this.nakTime == 0) this.nakTime = time + nextNakBackoff();
+		if (time < this.nakTime) return false;
+		this.nakTime = 0;
+		return true;
 	}
 
+	private long nextNakBackoff()
+	{
+		return (long) (this.nakBackoffRandom.nextDouble() * this.nakBackoffMillis);
+	}
+
+	// Requests the packets missing between the newest outstanding request and the newest queued or advertised packet, so several gaps can be recovered at once. Packets that are already
+	// queued are left out of the request with a bitmap of the missing sequenceNumbers. Returns true if there was nothing new to request.
 	private boolean sendGapRequest(long time)
 	{
-		Packet headPacket = this.queuedPackets.peek();
-		if (headPacket.getSequenceNumber() > this.lastSequenceNumber + 1)
+		GapRequestManager newestRequestManager = this.requestManagers.peekLast();
+		long firstSequenceNumber = this.lastSequenceNumber + 1;
+		if (newestRequestManager != null) firstSequenceNumber = Math.max(firstSequenceNumber, newestRequestManager.getLastSequenceNumberRequested() + 1);
+		long lastSequenceNumber = Math.max(this.queuedPackets.getLastSequenceNumber() - 1, this.advertisedSequenceNumber);
+		if (lastSequenceNumber < firstSequenceNumber) return true;
+
+		int rangeLength = (int) (lastSequenceNumber - firstSequenceNumber + 1);
+		BitSet missingSequenceNumbers = null;
+		if (rangeLength <= MAX_SELECTIVE_REQUEST_RANGE)
 		{
-			this.requestManager = new GapRequestManager(this.selectorThread, this.multicastGroup, this.key, this.sourceAddress, this);
-			++this.numOfRetransmissionRequests;
-			return this.requestManager.sendGapRequest(this.lastSequenceNumber + 1, (int) (headPacket.getSequenceNumber() - this.lastSequenceNumber - 1), time);
+			missingSequenceNumbers = new BitSet(rangeLength);
+			for (int offset = 0; offset < rangeLength; offset++)
+			{
+				if (!this.queuedPackets.contains(firstSequenceNumber + offset)) missingSequenceNumbers.set(offset);
+			}
+			int firstMissing = missingSequenceNumbers.nextSetBit(0);
+			if (firstMissing < 0) return true;
+			int lastMissing = missingSequenceNumbers.previousSetBit(rangeLength - 1);
+			missingSequenceNumbers = missingSequenceNumbers.get(firstMissing, lastMissing + 1);
+			firstSequenceNumber += firstMissing;
+			rangeLength = lastMissing - firstMissing + 1;
+			if (missingSequenceNumbers.cardinality() == rangeLength) missingSequenceNumbers = null;
 		}
-		return false;
+
+		GapRequestManager requestManager = new GapRequestManager(this.selectorThread, this.multicastGroup, this.key, this.sourceAddress, this);
+		this.requestManagers.add(requestManager);
+		++this.numOfRetransmissionRequests;
+		boolean successfullySentGapRequest = requestManager.sendGapRequest(firstSequenceNumber, rangeLength, missingSequenceNumbers, time);
+		if (this.requestManagerFailures == 0) this.packetsDropped += requestManager.getPacketCountRequested();
+		if (!successfullySentGapRequest) this.requestManagers.remove(requestManager);
+		return successfullySentGapRequest;
 	}
 
-	private void addPacketToQueue(long sequenceNumber, byte messageCount, ByteBuffer packetBuffer, long time)
+	// Returns false if the packet did not end up queued, because it is a duplicate or became the next packet in sequence while making room for it
+	private boolean addPacketToQueue(long sequenceNumber, byte messageCount, ByteBuffer packetBuffer, long time)
 	{
-		byte[] bytes = new byte[packetBuffer.remaining()];
-		packetBuffer.get(bytes);
-		this.queuedPackets.add(new Packet(sequenceNumber, messageCount, bytes));
+		if (this.queuedPackets.contains(sequenceNumber)) return false;
+		if (!this.queuedPackets.hasRoom(sequenceNumber, packetBuffer.remaining()))
+		{
+			// The oldest gaps are given up until the packet fits
+			incrememntGiveupByErrorCode(PandaErrorCode.PACKET_LOSS_REORDER_BUFFER_OVERFLOW);
+			this.channelReceiveInfo.deliverErrorToListeners(PandaErrorCode.PACKET_LOSS_REORDER_BUFFER_OVERFLOW, "Source=" + this.key + " queueSize=" + this.queuedPackets.size()
+					+ " queueBytes=" + this.queuedPackets.getBytes(), null);
+			while (!this.queuedPackets.hasRoom(sequenceNumber, packetBuffer.remaining()) && sequenceNumber > this.lastSequenceNumber + 1)
+			{
+				skipPacketAndDequeue(Math.min(sequenceNumber, this.queuedPackets.getFirstSequenceNumber()) - 1);
+			}
+			if (sequenceNumber == this.lastSequenceNumber + 1)
+			{
+				this.lastSequenceNumber = sequenceNumber;
+				this.channelReceiveInfo.parseAndDeliverToListeners(messageCount, packetBuffer);
+				dequeueQueuedPackets();
+				return false;
+			}
+		}
+		this.queuedPackets.add(sequenceNumber, messageCount, packetBuffer);
 		if (this.queuedPackets.size() == 1)
 		{
 			this.timeOfFirstQueuedPacket = time;
 		}
+		return true;
 	}
 
 	private boolean shouldDeclareDrop(long time)
@@ -206,11 +491,17 @@ class ChannelReceiveSequencer
 		{
 			return true;
 		}
-		if (this.queuedPackets.size() > OUT_OF_ORDER_PACKET_THRESHOLD)
+		// Every packet up to the last heartbeat was sent before the source went idle
+		if (this.advertisedSequenceNumber > this.lastSequenceNumber)
+		{
+			return true;
+		}
+		// Parity packets come after the last packet of their block, so a gap is given the time to be rebuilt from them
+		if (this.queuedPackets.size() > Math.max(this.gapThresholds.getOutOfOrderThreshold(), this.fecBlockSize))
 		{
 			return true;
 		}
-		if (time - this.timeOfFirstQueuedPacket >= QUEUE_GIVEUP_TIME)
+		if (time - this.timeOfFirstQueuedPacket >= this.gapThresholds.getNakDelayMillis())
 		{
 			return true;
 		}
@@ -222,6 +513,24 @@ class ChannelReceiveSequencer
 		this.packetsLost += sequenceNumber - this.lastSequenceNumber;
 		this.lastSequenceNumber = sequenceNumber;
 		dequeueQueuedPackets();
+
+		// Requests for packets that have now been skipped over are no longer needed
+		GapRequestManager oldestRequestManager = this.requestManagers.peek();
+		while (oldestRequestManager != null && oldestRequestManager.getLastSequenceNumberRequested() <= this.lastSequenceNumber)
+		{
+			this.requestManagers.poll().cancel();
+			oldestRequestManager = this.requestManagers.peek();
+		}
+	}
+
+	// Skips the gaps within the range that are still missing once its response has been delivered, gaps outside of it may still be recovered by other requests
+	void skipUnrecoveredPackets(long firstSequenceNumber, long lastSequenceNumber)
+	{
+		while (hasGap() && this.lastSequenceNumber + 1 >= firstSequenceNumber && this.lastSequenceNumber < lastSequenceNumber)
+		{
+			skipPacketAndDequeue(Math.min(lastSequenceNumber, getOldestGapEnd()));
+		}
+		updateGapTimer();
 	}
 
 	// Called by selectorThread
@@ -230,10 +539,13 @@ class ChannelReceiveSequencer
 		return this.channelReceiveInfo;
 	}
 
-	void closeRequestManager(boolean successful)
+	void closeRequestManager(GapRequestManager requestManager, boolean successful)
 	{
-		this.requestManager = null;
+		this.requestManagers.remove(requestManager);
 		this.requestManagerFailures = (successful) ? 0 : this.requestManagerFailures + 1;
+		if (successful) this.gapThresholds.gapRecovered(this.selectorThread.getCurrentTimeMillis() - requestManager.getTimeOfRequest());
+		if (successful) skipUnrecoveredPackets(requestManager.getFirstSequenceNumberRequested(), requestManager.getLastSequenceNumberRequested());
+		updateGapTimer();
 	}
 
 	void disableRetransmissions()
@@ -263,9 +575,20 @@ class ChannelReceiveSequencer
 		return this.queuedPackets.size();
 	}
 
+	long getQueueBytes()
+	{
+		return this.queuedPackets.getBytes();
+	}
+
+	// Oldest outstanding request
 	GapRequestManager getGapRequestManager()
 	{
-		return this.requestManager;
+		return this.requestManagers.peek();
+	}
+
+	int getGapRequestManagerCount()
+	{
+		return this.requestManagers.size();
 	}
 
 	long getLastSequenceNumber()
@@ -273,6 +596,21 @@ class ChannelReceiveSequencer
 		return this.lastSequenceNumber;
 	}
 
+	long getAdvertisedSequenceNumber()
+	{
+		return this.advertisedSequenceNumber;
+	}
+
+	long getSourceCacheHeadSequenceNumber()
+	{
+		return this.sourceCacheHeadSequenceNumber;
+	}
+
+	long getSourceCacheTailSequenceNumber()
+	{
+		return this.sourceCacheTailSequenceNumber;
+	}
+
 	long getPacketsDropped()
 	{
 		return this.packetsDropped;
@@ -288,6 +626,16 @@ class ChannelReceiveSequencer
 		return this.packetsLost;
 	}
 
+	long getPacketsRecoveredByFec()
+	{
+		return this.packetsRecoveredByFec;
+	}
+
+	long getPacketsRecoveredByRetransmission()
+	{
+		return this.packetsRecoveredByRetransmission;
+	}
+
 	int getRetransmissionFailures()
 	{
 		return this.requestManagerFailures;
@@ -314,6 +662,11 @@ class ChannelReceiveSequencer
 		this.retransmissionsDisabled = retransmissionsDisabled;
 	}
 
+	GapThresholds getGapThresholds()
+	{
+		return this.gapThresholds;
+	}
+
 	int getMaxDroppedPacketsAllowed()
 	{
 		return this.maxDroppedPacketsAllowed;
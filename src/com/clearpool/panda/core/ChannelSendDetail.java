@@ -2,15 +2,31 @@ package com.clearpool.panda.core;
 
 public class ChannelSendDetail implements SelectorActionable
 {
-	private final ChannelSendInfo channelSendInfo;
-	private final String messageTopic;
-	private final byte[] messageBytes;
+	private ChannelSendInfo channelSendInfo;
+	private byte[] messageTopicBytes;
+	private byte[] messageBytes;
+
+	// Owned by a slot of the selector's action ring, and filled in by whichever producer claims the slot
+	ChannelSendDetail()
+	{
+		this(null, (byte[]) null, null);
+	}
 
 	ChannelSendDetail(ChannelSendInfo channelSendInfo, String messageTopic, byte[] messageBytes)
 	{
-		this.channelSendInfo = channelSendInfo;
-		this.messageTopic = messageTopic;
-		this.messageBytes = messageBytes;
+		this(channelSendInfo, messageTopic.getBytes(), messageBytes);
+	}
+
+	ChannelSendDetail(ChannelSendInfo channelSendInfo, byte[] messageTopicBytes, byte[] messageBytes)
+	{
+		set(channelSendInfo, messageTopicBytes, messageBytes);
+	}
+
+	void set(ChannelSendInfo sendInfo, byte[] topicBytes, byte[] bytes)
+	{
+		this.channelSendInfo = sendInfo;
+		this.messageTopicBytes = topicBytes;
+		this.messageBytes = bytes;
 	}
 
 	ChannelSendInfo getChannelSendInfo()
@@ -18,9 +34,9 @@ public class ChannelSendDetail implements SelectorActionable
 		return this.channelSendInfo;
 	}
 
-	String getMessageTopic()
+	byte[] getMessageTopicBytes()
 	{
-		return this.messageTopic;
+		return this.messageTopicBytes;
 	}
 
 	byte[] getMessageBytes()
@@ -3,6 +3,7 @@ package com.clearpool.panda.core;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -10,10 +11,15 @@ import java.net.NetworkInterface;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 class ChannelSendInfo
 {
+	private final static Logger LOGGER = Logger.getLogger(ChannelSendInfo.class.getName());
+
 	private final InetAddress multicastIp;
 	private final int multicastPort;
 	private final String multicastGroup;
@@ -24,14 +30,40 @@ class ChannelSendInfo
 	private final byte supportsRetransmissions;
 	private final DatagramChannel channel;
 	private final TObjectIntMap<String> topicSentCounter;
+	private final ConcurrentMap<String, byte[]> topicBytes;
+	private final InetSocketAddress repairGroupAddress;
+	private final long repairSuppressionMillis;
+	private final long[] repairedSequenceNumbers;
+	private final long[] repairTimes;
+	private final int fecBlockSize;
+	private final FecBlock fecBlock;
+	private final SelectorThread selectorThread;
+	private final long heartbeatIntervalMillis;
+	private final WheelTimer heartbeatTimer;
+	private final WheelTimer expiryTimer;
 
+	private ByteBuffer sendBuffer;
+	private ByteBuffer fecParityBuffer;
+	private ByteBuffer heartbeatBuffer;
+	private boolean packetBufferClaimed;
 	private long sequenceNumber;
 	private long packetsSent;
 	private long bytesSent;
 	private long packetsResent;
+	private long packetsRepaired;
+	private long fecPacketsSent;
+	private long heartbeatsSent;
+	private long lastSendTime;
 
 	ChannelSendInfo(String ip, int port, String multicastGroup, int cacheSize, InetAddress interfaceIp, DatagramChannel datagramChannel, PandaProperties properties)
 			throws Exception
+	{
+		this(ip, port, multicastGroup, cacheSize, interfaceIp, datagramChannel, properties, null, null);
+	}
+
+	// Heartbeats are only sent with a selectorThread to time them
+	ChannelSendInfo(String ip, int port, String multicastGroup, int cacheSize, InetAddress interfaceIp, DatagramChannel datagramChannel, PandaProperties properties,
+			PacketSegmentPool segmentPool, SelectorThread selectorThread) throws Exception
 	{
 		this.multicastIp = InetAddress.getByName(ip);
 		this.multicastPort = port;
@@ -41,31 +73,155 @@ class ChannelSendInfo
 		this.channel = datagramChannel;
 		if (this.channel != null) this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, this.networkInterface);
 		this.cacheSize = cacheSize;
-		this.packetCache = (this.cacheSize > 0 ? new PacketCache(this.cacheSize) : null);
-		this.supportsRetransmissions = ((byte) (this.cacheSize > 0 ? 1 : 0));
+		this.packetCache = (this.cacheSize > 0 ? createPacketCache(multicastGroup, cacheSize, properties, segmentPool) : null);
+		this.supportsRetransmissions = (this.cacheSize > 0 ? PandaUtils.PACKET_FLAG_RETRANSMISSIONS : 0);
 		this.topicSentCounter = properties.getBooleanProperty(PandaProperties.MAINTAIN_DETAILED_STATS, false) ? new TObjectIntHashMap<String>() : null;
+		this.topicBytes = new ConcurrentHashMap<String, byte[]>();
+		int repairPort = PandaUtils.getRepairPort(port, multicastGroup, properties);
+		this.repairGroupAddress = (repairPort > 0 && this.packetCache != null) ? new InetSocketAddress(this.multicastIp, repairPort) : null;
+		this.repairSuppressionMillis = properties.getLongProperty(PandaProperties.REPAIR_SUPPRESSION_MILLIS, multicastGroup, PandaUtils.REPAIR_SUPPRESSION_MILLIS);
+		this.repairedSequenceNumbers = (this.repairGroupAddress != null) ? new long[PandaUtils.REPAIR_HISTORY_SIZE] : null;
+		this.repairTimes = (this.repairGroupAddress != null) ? new long[PandaUtils.REPAIR_HISTORY_SIZE] : null;
+		this.fecBlockSize = (int) Math.min(PandaUtils.MAX_FEC_BLOCK_SIZE, properties.getLongProperty(PandaProperties.FEC_BLOCK_SIZE, multicastGroup, 0));
+		this.fecBlock = (this.fecBlockSize > 0) ? new FecBlock() : null;
+		this.selectorThread = selectorThread;
+		this.heartbeatIntervalMillis = properties.getLongProperty(PandaProperties.HEARTBEAT_INTERVAL_MILLIS, multicastGroup, 0);
+		this.heartbeatTimer = (this.heartbeatIntervalMillis > 0 && this.selectorThread != null) ? new WheelTimer()
+		{
+			@Override
+			void expired(long now)
+			{
+				heartbeatTimerExpired(now);
+			}
+		} : null;
+		this.expiryTimer = (this.packetCache != null && this.packetCache.getRetentionMillis() > 0 && this.selectorThread != null) ? new WheelTimer()
+		{
+			@Override
+			void expired(long now)
+			{
+				expiryTimerExpired(now);
+			}
+		} : null;
 
+		this.sendBuffer = null;
+		this.fecParityBuffer = null;
+		this.heartbeatBuffer = null;
+		this.packetBufferClaimed = false;
 		this.packetsSent = 0;
 		this.bytesSent = 0;
 		this.packetsResent = 0;
+		this.packetsRepaired = 0;
+		this.fecPacketsSent = 0;
+		this.heartbeatsSent = 0;
+		this.lastSendTime = 0;
 	}
 
-	private void addToPacketCache(byte[] packetBytes)
+	// Journal mode keeps packets in mapped files under JOURNAL_DIRECTORY. Otherwise the cache is bounded by PACKET_CACHE_BYTES, or cacheSize packets, and by
+	// PACKET_CACHE_MILLIS when set, and draws from the adapter wide segmentPool when there is one
+	private static PacketCache createPacketCache(String multicastGroup, int cacheSize, PandaProperties properties, PacketSegmentPool segmentPool) throws IOException
 	{
+		String journalDirectory = properties.getStringProperty(PandaProperties.JOURNAL_DIRECTORY, null);
+		if (journalDirectory != null)
+		{
+			long retentionBytes = properties.getLongProperty(PandaProperties.JOURNAL_RETENTION_BYTES, multicastGroup, PandaUtils.JOURNAL_RETENTION_BYTES);
+			long retentionMillis = properties.getLongProperty(PandaProperties.JOURNAL_RETENTION_MILLIS, multicastGroup, 0);
+			int segmentSize = (int) properties.getLongProperty(PandaProperties.JOURNAL_SEGMENT_SIZE, PandaUtils.JOURNAL_SEGMENT_SIZE);
+			return new PacketJournal(multicastGroup, new File(journalDirectory), retentionBytes, retentionMillis, segmentSize);
+		}
+
+		long cacheBytes = properties.getLongProperty(PandaProperties.PACKET_CACHE_BYTES, multicastGroup, 0);
+		long retentionMillis = properties.getLongProperty(PandaProperties.PACKET_CACHE_MILLIS, multicastGroup, 0);
+		if (segmentPool != null)
+		{
+			int maxSegmentCount = segmentPool.getCapacity();
+			if (cacheBytes > 0) maxSegmentCount = (int) Math.min(maxSegmentCount, cacheBytes / segmentPool.getSegmentSize() + 1);
+			return new PacketCache(Integer.MAX_VALUE, maxSegmentCount, retentionMillis, segmentPool);
+		}
+		if (cacheBytes > 0) return new PacketCache(cacheBytes, retentionMillis);
+		return new PacketCache(cacheSize, retentionMillis);
+	}
+
+	// Called by selectorThread - the packet is built in place starting at the position of the returned buffer
+	ByteBuffer getPacketBuffer(int maxPacketLength)
+	{
+		this.packetBufferClaimed = true;
+		if (this.packetCache != null) return this.packetCache.claim(maxPacketLength, getCurrentTimeMillis());
+		if (this.sendBuffer == null) this.sendBuffer = ByteBuffer.allocateDirect(PandaUtils.MAX_PANDA_PACKET_SIZE);
+		this.sendBuffer.clear();
+		this.sendBuffer.limit(maxPacketLength);
+		return this.sendBuffer;
+	}
+
+	private void addToPacketCache(ByteBuffer buffer)
+	{
+		boolean builtInCache = this.packetBufferClaimed;
+		this.packetBufferClaimed = false;
 		if (this.packetCache == null) return;
-		this.packetCache.add(packetBytes, this.sequenceNumber);
+		if (builtInCache)
+		{
+			this.packetCache.commit(buffer, this.sequenceNumber);
+		}
+		else
+		{
+			this.packetCache.add(buffer, this.sequenceNumber, getCurrentTimeMillis());
+		}
 	}
 
 	// Called by selectorThread
-	Pair<List<byte[]>, Long> getCachedPackets(long firstSequenceNumberRequested, int packetCount)
+	Pair<Long, Long> getCachedRange(long firstSequenceNumberRequested, int packetCount)
 	{
 		if (this.cacheSize == 0) return null;
-		Pair<List<byte[]>, Long> pair = this.packetCache.getCachedPackets(firstSequenceNumberRequested, firstSequenceNumberRequested + packetCount - 1);
-		if (pair != null)
+		return this.packetCache.getCachedRange(firstSequenceNumberRequested, firstSequenceNumberRequested + packetCount - 1, getCurrentTimeMillis());
+	}
+
+	// The selectorThread's clock, read once per pass of its loop. Without a selectorThread the wall clock is read.
+	private long getCurrentTimeMillis()
+	{
+		return (this.selectorThread != null) ? this.selectorThread.getCurrentTimeMillis() : System.currentTimeMillis();
+	}
+
+	// Called by selectorThread - packets resent to a single receiver, repairs are counted by sendRepair
+	void addPacketsResent(int packetCount)
+	{
+		this.packetsResent += packetCount;
+	}
+
+	boolean isRepairMulticast()
+	{
+		return this.repairGroupAddress != null;
+	}
+
+	// Called by selectorThread - re-multicasts the cached packets of the range on the repair group, once for all receivers that lost them. Packets repaired within the last
+	// repairSuppressionMillis are not sent again, since the NAKs of other receivers for the same loss arrive close together. A packet the kernel did not take is neither
+	// counted nor suppressed, so the next NAK for it repairs it.
+	void sendRepair(long firstSequenceNumber, long lastSequenceNumber, long now) throws IOException
+	{
+		for (long sequenceNumber = firstSequenceNumber; sequenceNumber <= lastSequenceNumber; sequenceNumber++)
+		{
+			int historyIndex = (int) (sequenceNumber & (PandaUtils.REPAIR_HISTORY_SIZE - 1));
+			if (this.repairedSequenceNumbers[historyIndex] == sequenceNumber && now - this.repairTimes[historyIndex] < this.repairSuppressionMillis) continue;
+			PacketSegment segment = this.packetCache.getSegment(sequenceNumber);
+			if (segment == null) continue;
+			ByteBuffer packet = segment.getPacket(sequenceNumber);
+			int packetLength = packet.remaining();
+			if (this.channel.send(packet, this.repairGroupAddress) != packetLength) continue;
+			this.repairedSequenceNumbers[historyIndex] = sequenceNumber;
+			this.repairTimes[historyIndex] = now;
+			this.packetsRepaired++;
+		}
+	}
+
+	// Called by app threads - topics are encoded once per channel rather than for every message sent by name
+	byte[] getTopicBytes(String topic)
+	{
+		byte[] bytes = this.topicBytes.get(topic);
+		if (bytes == null)
 		{
-			this.packetsResent += pair.getA().size();
+			bytes = topic.getBytes();
+			byte[] existingBytes = this.topicBytes.putIfAbsent(topic, bytes);
+			if (existingBytes != null) bytes = existingBytes;
 		}
-		return pair;
+		return bytes;
 	}
 
 	public void updateTopicStats(String topic)
@@ -78,12 +234,113 @@ class ChannelSendInfo
 		return this.multicastGroup;
 	}
 
+	PacketCache getPacketCache()
+	{
+		return this.packetCache;
+	}
+
+	SelectorThread getSelectorThread()
+	{
+		return this.selectorThread;
+	}
+
+	void close()
+	{
+		if (this.packetCache != null) this.packetCache.close();
+	}
+
 	void sendToChannel(ByteBuffer buffer) throws IOException
 	{
-		addToPacketCache(buffer.array());
+		int packetLength = buffer.remaining();
+		if (this.fecBlock != null) addToFecBlock(buffer);
+		addToPacketCache(buffer);
 		this.channel.send(buffer, this.multicastGroupAddress);
 		this.packetsSent++;
-		this.bytesSent += buffer.capacity();
+		this.bytesSent += packetLength;
+		if (this.fecBlock != null && this.sequenceNumber % this.fecBlockSize == 0) sendFecParity();
+		if (this.heartbeatTimer != null || this.expiryTimer != null) packetSent();
+	}
+
+	// The timers are started by the first packet and then run every interval, rather than being moved on every packet
+	private void packetSent()
+	{
+		this.lastSendTime = this.selectorThread.getCurrentTimeMillis();
+		if (this.heartbeatTimer != null && !this.heartbeatTimer.isScheduled())
+		{
+			this.selectorThread.scheduleTimer(this.heartbeatTimer, this.lastSendTime + this.heartbeatIntervalMillis);
+		}
+		if (this.expiryTimer != null && !this.expiryTimer.isScheduled())
+		{
+			this.selectorThread.scheduleTimer(this.expiryTimer, this.lastSendTime + this.packetCache.getRetentionMillis());
+		}
+	}
+
+	// Called by selectorThread - segments otherwise only expire when the next one is opened or a gap request comes in, which an idle channel never does. Stops once only
+	// the tail segment is left, the next packet starts it again.
+	private void expiryTimerExpired(long now)
+	{
+		this.packetCache.expire(now);
+		if (this.packetCache.getSegmentCount() > 1) this.selectorThread.scheduleTimer(this.expiryTimer, now + this.packetCache.getRetentionMillis());
+	}
+
+	// Called by selectorThread - a heartbeat only goes out once the channel has been idle for heartbeatIntervalMillis
+	private void heartbeatTimerExpired(long now)
+	{
+		if (!this.channel.isOpen()) return;
+		if (now - this.lastSendTime >= this.heartbeatIntervalMillis)
+		{
+			try
+			{
+				sendHeartbeat();
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.SEVERE, "Unable to send heartbeat for group=" + this.multicastGroup, e);
+			}
+			this.lastSendTime = now;
+		}
+		this.selectorThread.scheduleTimer(this.heartbeatTimer, this.lastSendTime + this.heartbeatIntervalMillis);
+	}
+
+	// Heartbeats take no sequenceNumber of their own, the header carries the last sequenceNumber sent so receivers learn of packets lost at the end of a burst. The body
+	// carries the oldest and newest cached sequenceNumber, 0 without a cache, so receivers do not request packets that can no longer be resent.
+	void sendHeartbeat() throws IOException
+	{
+		if (this.heartbeatBuffer == null) this.heartbeatBuffer = ByteBuffer.allocateDirect(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.HEARTBEAT_BODY_SIZE);
+		this.heartbeatBuffer.clear();
+		this.heartbeatBuffer.put(PandaUtils.PACKET_HEADER_SIZE);
+		this.heartbeatBuffer.put((byte) (this.supportsRetransmissions | PandaUtils.PACKET_FLAG_HEARTBEAT));
+		this.heartbeatBuffer.putLong(this.sequenceNumber);
+		this.heartbeatBuffer.put((byte) 0);
+		this.heartbeatBuffer.putLong((this.packetCache != null) ? this.packetCache.getHeadSequenceNumber() : 0);
+		this.heartbeatBuffer.putLong((this.packetCache != null) ? this.packetCache.getTailSequenceNumber() : 0);
+		this.heartbeatBuffer.flip();
+		this.channel.send(this.heartbeatBuffer, this.multicastGroupAddress);
+		this.heartbeatsSent++;
+	}
+
+	// Blocks are aligned to fecBlockSize sequenceNumbers starting from 1, so receivers can tell which block a packet belongs to from the block size in the parity header
+	private void addToFecBlock(ByteBuffer buffer)
+	{
+		long blockFirstSequenceNumber = this.sequenceNumber - (this.sequenceNumber - 1) % this.fecBlockSize;
+		if (this.fecBlock.getFirstSequenceNumber() != blockFirstSequenceNumber) this.fecBlock.reset(blockFirstSequenceNumber);
+		int packetStart = buffer.position();
+		int payloadStart = packetStart + buffer.get(packetStart);
+		this.fecBlock.add(this.sequenceNumber, buffer.get(packetStart + PandaUtils.PACKET_HEADER_SIZE - 1), buffer, payloadStart, buffer.limit() - payloadStart);
+	}
+
+	// Parity packets take no sequenceNumber and are not cached, a receiver that misses one falls back to a gap request
+	private void sendFecParity() throws IOException
+	{
+		if (this.fecParityBuffer == null)
+		{
+			this.fecParityBuffer = ByteBuffer.allocateDirect(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.FEC_PARITY_HEADER_SIZE + PandaUtils.MAX_PANDA_PACKET_SIZE);
+		}
+		this.fecParityBuffer.clear();
+		this.fecBlock.writeParity(this.fecParityBuffer, (byte) (this.supportsRetransmissions | PandaUtils.PACKET_FLAG_FEC_PARITY), (byte) this.fecBlockSize);
+		this.fecParityBuffer.flip();
+		this.channel.send(this.fecParityBuffer, this.multicastGroupAddress);
+		this.fecPacketsSent++;
 	}
 
 	long getPacketsSent()
@@ -101,6 +358,21 @@ class ChannelSendInfo
 		return this.packetsResent;
 	}
 
+	long getPacketsRepaired()
+	{
+		return this.packetsRepaired;
+	}
+
+	long getFecPacketsSent()
+	{
+		return this.fecPacketsSent;
+	}
+
+	long getHeartbeatsSent()
+	{
+		return this.heartbeatsSent;
+	}
+
 	byte supportsRetransmissions()
 	{
 		return this.supportsRetransmissions;
@@ -0,0 +1,84 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+
+// Single message packet built in place by the publishing thread and sent as-is by the selectorThread
+class ClaimedPacket implements SelectorActionable
+{
+	private final ChannelSendInfo channelSendInfo;
+	private final byte[] topicBytes;
+
+	private ByteBuffer buffer;
+	private int packetLength;
+	private volatile boolean inFlight;
+
+	ClaimedPacket(ChannelSendInfo channelSendInfo, byte[] topicBytes)
+	{
+		this.channelSendInfo = channelSendInfo;
+		this.topicBytes = topicBytes;
+		this.buffer = null;
+		this.packetLength = 0;
+		this.inFlight = false;
+	}
+
+	// Called by publishing thread - returns offset of the payload
+	int claim(int messageLength)
+	{
+		int payloadOffset = PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + this.topicBytes.length;
+		if (this.buffer == null || this.buffer.capacity() < payloadOffset + messageLength)
+		{
+			this.buffer = ByteBuffer.allocateDirect(Math.max(payloadOffset + messageLength, PandaUtils.PACKET_HEADER_SIZE + PandaUtils.PANDA_PACKET_PAYLOAD_SIZE));
+			this.buffer.put(PandaUtils.PACKET_HEADER_SIZE);
+			this.buffer.put(this.channelSendInfo.supportsRetransmissions());
+			this.buffer.putLong(0); // sequenceNumber - set by selectorThread
+			this.buffer.put((byte) 1); // messageCount
+			this.buffer.put((byte) this.topicBytes.length);
+			this.buffer.put(this.topicBytes);
+		}
+		this.buffer.putShort(payloadOffset - 2, (short) messageLength);
+		this.packetLength = payloadOffset + messageLength;
+		this.buffer.limit(this.packetLength);
+		this.buffer.position(payloadOffset);
+		return payloadOffset;
+	}
+
+	// Called by publishing thread
+	void commit()
+	{
+		this.buffer.limit(this.packetLength);
+		this.buffer.position(0);
+		this.inFlight = true;
+	}
+
+	// Called by selectorThread
+	void sent()
+	{
+		this.inFlight = false;
+	}
+
+	boolean isInFlight()
+	{
+		return this.inFlight;
+	}
+
+	ChannelSendInfo getChannelSendInfo()
+	{
+		return this.channelSendInfo;
+	}
+
+	ByteBuffer getBuffer()
+	{
+		return this.buffer;
+	}
+
+	int getPacketLength()
+	{
+		return this.packetLength;
+	}
+
+	@Override
+	public int getAction()
+	{
+		return SelectorActionable.SEND_CLAIMED_MULTICAST;
+	}
+}
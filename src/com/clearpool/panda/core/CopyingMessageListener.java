@@ -0,0 +1,42 @@
+package com.clearpool.panda.core;
+
+// Keeps the byte[] API of PandaDataListener on top of the message views, each listener gets its own copy of the payload
+class CopyingMessageListener implements PandaMessageListener
+{
+	private final PandaDataListener listener;
+
+	CopyingMessageListener(PandaDataListener listener)
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void receivedPandaMessage(PandaMessage message)
+	{
+		this.listener.receivedPandaData(message.getTopic(), message.getBytes());
+	}
+
+	@Override
+	public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+	{
+		this.listener.receivedPandaError(issueCode, multicastGroup, message, throwable);
+	}
+
+	PandaDataListener getListener()
+	{
+		return this.listener;
+	}
+
+	// The same PandaDataListener is wrapped again each time it subscribes, so it is only added once
+	@Override
+	public boolean equals(Object other)
+	{
+		return (other instanceof CopyingMessageListener) && ((CopyingMessageListener) other).listener == this.listener;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return System.identityHashCode(this.listener);
+	}
+}
@@ -0,0 +1,173 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Decodes packets and calls the listeners of the groups assigned to it, so a slow listener backs up this thread's ReceiveRing instead of the sockets. The selectorThread
+// sequences each group before handing its packets over and a group always goes to the same DeliveryThread, so listeners still see every group in sequence. Errors are
+// queued behind the packets that came before them. A daemon thread, nothing stops it, so it never keeps the JVM alive.
+class DeliveryThread extends Thread implements ReceiveRing.RecordHandler
+{
+	private static final Logger LOGGER = Logger.getLogger(DeliveryThread.class.getName());
+	private static final int ERROR_TAG = -1;
+	private static final int DELIVERY_BATCH_SIZE = 256;
+
+	private final ReceiveRing ring;
+	private final Queue<PendingError> pendingErrors;
+	private final AtomicBoolean parked;
+
+	private volatile ChannelReceiveInfo[] receiveInfos;
+	private volatile long ringFullCount;
+
+	DeliveryThread(String name, int ringBytes)
+	{
+		super(name);
+		setDaemon(true);
+		this.ring = new ReceiveRing(ringBytes);
+		this.pendingErrors = new ConcurrentLinkedQueue<PendingError>();
+		this.parked = new AtomicBoolean(false);
+
+		this.receiveInfos = new ChannelReceiveInfo[0];
+		this.ringFullCount = 0;
+	}
+
+	// Called by app thread - before the group is subscribed, so the selectorThread never hands over a packet for an unknown receiverId
+	synchronized int register(ChannelReceiveInfo receiveInfo)
+	{
+		int receiverId = this.receiveInfos.length;
+		ChannelReceiveInfo[] newReceiveInfos = Arrays.copyOf(this.receiveInfos, receiverId + 1);
+		newReceiveInfos[receiverId] = receiveInfo;
+		this.receiveInfos = newReceiveInfos;
+		return receiverId;
+	}
+
+	// Called by selectorThread once the group is closed - records still in the ring for it are skipped
+	synchronized void deregister(int receiverId)
+	{
+		ChannelReceiveInfo[] newReceiveInfos = Arrays.copyOf(this.receiveInfos, this.receiveInfos.length);
+		newReceiveInfos[receiverId] = null;
+		this.receiveInfos = newReceiveInfos;
+	}
+
+	@Override
+	public void run()
+	{
+		while (!Thread.currentThread().isInterrupted())
+		{
+			if (this.ring.read(this, DELIVERY_BATCH_SIZE) > 0) continue;
+
+			// Producers only pay for an unpark once we have advertised that we are about to park
+			this.parked.set(true);
+			if (this.ring.isEmpty()) LockSupport.park(this);
+			this.parked.set(false);
+		}
+		LOGGER.warning(getName() + " has been interrupted.  Stopping delivery");
+	}
+
+	@Override
+	public void recordRead(int receiverId, int tag, ByteBuffer payload)
+	{
+		ChannelReceiveInfo receiveInfo = this.receiveInfos[receiverId];
+		try
+		{
+			if (tag == ERROR_TAG)
+			{
+				PendingError error = this.pendingErrors.poll();
+				if (receiveInfo != null) receiveInfo.callErrorListeners(error.errorCode, error.message, error.throwable);
+			}
+			else if (receiveInfo != null)
+			{
+				receiveInfo.parseAndCallListeners((byte) tag, payload);
+			}
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+
+	// Called by selectorThread - the packet has already been sequenced, so a full ring is waited out rather than dropping it
+	void deliver(int receiverId, byte messageCount, ByteBuffer packetBuffer)
+	{
+		offer(receiverId, messageCount, packetBuffer);
+	}
+
+	// Called by selectorThread - the error is queued before its record is published, since this thread polls it as soon as it reads the record, and is taken back if the
+	// record is dropped so every ERROR_TAG record keeps its own error. Only this selectorThread adds errors, so the one taken back is always the last.
+	void deliverError(int receiverId, PandaErrorCode errorCode, String message, Throwable throwable)
+	{
+		PendingError error = new PendingError(errorCode, message, throwable);
+		this.pendingErrors.add(error);
+		if (!offer(receiverId, ERROR_TAG, null)) this.pendingErrors.remove(error);
+	}
+
+	// Returns false if the record was dropped
+	private boolean offer(int receiverId, int tag, ByteBuffer payload)
+	{
+		if (!this.ring.offer(receiverId, tag, payload))
+		{
+			this.ringFullCount++;
+			while (!this.ring.offer(receiverId, tag, payload))
+			{
+				if (!isAlive() || Thread.currentThread().isInterrupted())
+				{
+					LOGGER.severe(getName() + " is not delivering, dropping packet for receiverId=" + receiverId);
+					return false;
+				}
+				unpark();
+				Thread.yield();
+			}
+		}
+		unpark();
+		return true;
+	}
+
+	private void unpark()
+	{
+		if (this.parked.get() && this.parked.compareAndSet(true, false))
+		{
+			LockSupport.unpark(this);
+		}
+	}
+
+	long getRingBytesUsed()
+	{
+		return this.ring.getBytesUsed();
+	}
+
+	long getRingMaxBytesUsed()
+	{
+		return this.ring.getMaxBytesUsed();
+	}
+
+	int getRingCapacity()
+	{
+		return this.ring.capacity();
+	}
+
+	// Times the selectorThread found the ring full and had to wait for this thread
+	long getRingFullCount()
+	{
+		return this.ringFullCount;
+	}
+
+	private static class PendingError
+	{
+		final PandaErrorCode errorCode;
+		final String message;
+		final Throwable throwable;
+
+		PendingError(PandaErrorCode errorCode, String message, Throwable throwable)
+		{
+			this.errorCode = errorCode;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// XOR of the payloads, payload lengths and message counts of the data packets in one block of FEC_BLOCK_SIZE sequenceNumbers. The sender multicasts it as a parity packet
+// after the last packet of the block. A receiver that got every other packet of the block XORs the parity with its own block to rebuild the packet it lost.
+class FecBlock
+{
+	private static final int INITIAL_PAYLOAD_SIZE = PandaUtils.MTU_SIZE;
+
+	private byte[] payload;
+	private ByteBuffer payloadBuffer;
+	private int payloadLength;
+	private int xorPayloadLength;
+	private byte xorMessageCount;
+	private long firstSequenceNumber;
+	private long receivedMask;
+
+	FecBlock()
+	{
+		this.payload = new byte[INITIAL_PAYLOAD_SIZE];
+		this.payloadBuffer = ByteBuffer.wrap(this.payload);
+		this.payloadLength = 0;
+		this.xorPayloadLength = 0;
+		this.xorMessageCount = 0;
+		this.firstSequenceNumber = 0;
+		this.receivedMask = 0;
+	}
+
+	void reset(long blockFirstSequenceNumber)
+	{
+		Arrays.fill(this.payload, 0, this.payloadLength, (byte) 0);
+		this.payloadLength = 0;
+		this.xorPayloadLength = 0;
+		this.xorMessageCount = 0;
+		this.firstSequenceNumber = blockFirstSequenceNumber;
+		this.receivedMask = 0;
+	}
+
+	// Folds in the packet payload of length bytes at offset of buffer, without moving its position. Returns false if the packet is already part of the block.
+	boolean add(long sequenceNumber, byte messageCount, ByteBuffer buffer, int offset, int length)
+	{
+		long packetBit = 1L << (sequenceNumber - this.firstSequenceNumber);
+		if ((this.receivedMask & packetBit) != 0) return false;
+		this.receivedMask |= packetBit;
+		this.xorMessageCount ^= messageCount;
+		this.xorPayloadLength ^= length;
+		ensureCapacity(length);
+		xor(buffer, offset, length);
+		this.payloadLength = Math.max(this.payloadLength, length);
+		return true;
+	}
+
+	// Writes the parity packet of the block, the header carries the first sequenceNumber of the block and the block size in place of the message count
+	void writeParity(ByteBuffer buffer, byte packetFlags, byte blockSize)
+	{
+		buffer.put(PandaUtils.PACKET_HEADER_SIZE);
+		buffer.put(packetFlags);
+		buffer.putLong(this.firstSequenceNumber);
+		buffer.put(blockSize);
+		buffer.put(this.xorMessageCount);
+		buffer.putShort((short) this.xorPayloadLength);
+		buffer.put(this.payload, 0, this.payloadLength);
+	}
+
+	// Rebuilds the one packet of the block that is missing from the parity payload at the position of parityBuffer. Returns null unless exactly one packet is missing.
+	Packet recover(int blockSize, ByteBuffer parityBuffer)
+	{
+		if (Long.bitCount(this.receivedMask) != blockSize - 1) return null;
+		long missingSequenceNumber = this.firstSequenceNumber + Long.numberOfTrailingZeros(~this.receivedMask);
+		byte messageCount = (byte) (parityBuffer.get() ^ this.xorMessageCount);
+		int length = (parityBuffer.getShort() & 0xFFFF) ^ this.xorPayloadLength;
+		if (length > parityBuffer.remaining()) return null;
+		byte[] bytes = new byte[length];
+		int parityPosition = parityBuffer.position();
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = (byte) (parityBuffer.get(parityPosition + i) ^ (i < this.payloadLength ? this.payload[i] : 0));
+		}
+		return new Packet(missingSequenceNumber, messageCount, bytes);
+	}
+
+	private void ensureCapacity(int length)
+	{
+		if (length <= this.payload.length) return;
+		this.payload = Arrays.copyOf(this.payload, PandaUtils.nextPowerOfTwo(length));
+		this.payloadBuffer = ByteBuffer.wrap(this.payload);
+	}
+
+	private void xor(ByteBuffer buffer, int offset, int length)
+	{
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+		{
+			this.payloadBuffer.putLong(i, this.payloadBuffer.getLong(i) ^ buffer.getLong(offset + i));
+		}
+		for (; i < length; i++)
+		{
+			this.payload[i] ^= buffer.get(offset + i);
+		}
+	}
+
+	long getFirstSequenceNumber()
+	{
+		return this.firstSequenceNumber;
+	}
+
+	int getPacketCount()
+	{
+		return Long.bitCount(this.receivedMask);
+	}
+}
@@ -0,0 +1,200 @@
+package com.clearpool.panda.core;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Long lived connection to a source adapter carrying gap requests for every multicast group received from it. Responses come back one after another and are matched to
+// their GapRequestManager by requestId. Only touched by the selectorThread.
+class GapRequestConnection
+{
+	private static final Logger LOGGER = Logger.getLogger(GapRequestConnection.class.getName());
+
+	private final SelectorThread selectorThread;
+	private final String sourceKey;
+	private final InetSocketAddress sourceAddress;
+	private final TIntObjectMap<GapRequestManager> requestManagers;
+	private final Queue<ByteBuffer> pendingRequests;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private boolean connected;
+	private ByteBuffer readBuffer;
+	private GapRequestManager responseManager;
+	private int nextRequestId;
+
+	GapRequestConnection(SelectorThread selectorThread, String sourceKey, InetSocketAddress sourceAddress)
+	{
+		this.selectorThread = selectorThread;
+		this.sourceKey = sourceKey;
+		this.sourceAddress = sourceAddress;
+		this.requestManagers = new TIntObjectHashMap<GapRequestManager>();
+		this.pendingRequests = new ArrayDeque<ByteBuffer>();
+
+		this.channel = null;
+		this.key = null;
+		this.connected = false;
+		this.readBuffer = null;
+		this.responseManager = null;
+		this.nextRequestId = 0;
+	}
+
+	// Called by selectorThread
+	void connect() throws IOException
+	{
+		this.channel = SocketChannel.open();
+		this.channel.configureBlocking(false);
+		this.channel.connect(this.sourceAddress);
+		this.key = this.selectorThread.registerTcpChannel(this.channel, SelectionKey.OP_CONNECT, this);
+	}
+
+	// Requests are written in the order they are made, before or after the connection completes
+	void sendGapRequest(GapRequestManager requestManager, ByteBuffer request)
+	{
+		int requestId = this.nextRequestId++;
+		ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE + request.remaining());
+		buffer.putInt(requestId);
+		buffer.put(request.duplicate());
+		buffer.flip();
+		this.pendingRequests.add(buffer);
+		this.requestManagers.put(requestId, requestManager);
+		if (this.connected) this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	// Called by selectorThread
+	void handleSelection(SelectionKey selectedKey)
+	{
+		try
+		{
+			if (selectedKey.isConnectable())
+			{
+				if (!this.channel.finishConnect()) return;
+				this.connected = true;
+				selectedKey.interestOps(SelectionKey.OP_READ | (this.pendingRequests.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+				return;
+			}
+			if (selectedKey.isWritable()) writeRequests(selectedKey);
+			if (selectedKey.isValid() && selectedKey.isReadable()) readResponses();
+		}
+		catch (Exception e)
+		{
+			if (this.connected)
+			{
+				LOGGER.log(Level.WARNING, "Closing retransmission connection to " + this.sourceKey + " - " + e.getMessage());
+				close(false);
+			}
+			else
+			{
+				LOGGER.log(Level.SEVERE, e.getMessage(), e);
+				LOGGER.severe("Failed to establish TCP connection for re-transmission. Disabling future re-transmission attempts for source=" + this.sourceKey
+						+ " on the receiver side.");
+				close(true);
+			}
+		}
+	}
+
+	private void writeRequests(SelectionKey selectedKey) throws IOException
+	{
+		ByteBuffer request = this.pendingRequests.peek();
+		while (request != null)
+		{
+			if (LOGGER.getLevel() == Level.FINE)
+			{
+				LOGGER.log(Level.FINE, "Sending GapRequest to " + this.sourceKey + " with requestId " + request.getInt(0));
+			}
+			this.channel.write(request);
+			if (request.hasRemaining()) return;
+			this.pendingRequests.poll();
+			request = this.pendingRequests.peek();
+		}
+		selectedKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void readResponses() throws IOException
+	{
+		if (this.readBuffer == null) this.readBuffer = this.selectorThread.acquireTcpReadBuffer();
+		if (this.channel.read(this.readBuffer) == -1) throw new IOException("Connection closed by source");
+		this.readBuffer.flip();
+		try
+		{
+			while (true)
+			{
+				if (this.responseManager == null)
+				{
+					if (this.readBuffer.remaining() < PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE) break;
+					int requestId = this.readBuffer.getInt();
+					this.responseManager = this.requestManagers.remove(requestId);
+					if (this.responseManager == null) throw new IOException("Received response for unknown requestId=" + requestId);
+				}
+				if (!this.responseManager.processGapResponse(this.sourceAddress, this.readBuffer)) break;
+				this.responseManager = null;
+			}
+		}
+		finally
+		{
+			this.readBuffer.compact();
+		}
+
+		// Only hold on to a read buffer while responses are outstanding
+		if (this.responseManager == null && this.requestManagers.isEmpty() && this.readBuffer.position() == 0)
+		{
+			this.selectorThread.releaseTcpReadBuffer(this.readBuffer);
+			this.readBuffer = null;
+		}
+	}
+
+	// Fails every outstanding request, they are disabled when the source could never be reached
+	void close(boolean disable)
+	{
+		this.selectorThread.removeGapRequestConnection(this.sourceKey, this);
+		try
+		{
+			if (this.channel != null) this.channel.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+		if (this.key != null) this.key.cancel();
+		if (this.readBuffer != null)
+		{
+			this.selectorThread.releaseTcpReadBuffer(this.readBuffer);
+			this.readBuffer = null;
+		}
+
+		if (this.responseManager != null) closeRequestManager(this.responseManager, disable);
+		for (GapRequestManager requestManager : this.requestManagers.valueCollection())
+		{
+			closeRequestManager(requestManager, disable);
+		}
+		this.requestManagers.clear();
+		this.pendingRequests.clear();
+		this.responseManager = null;
+	}
+
+	private static void closeRequestManager(GapRequestManager requestManager, boolean disable)
+	{
+		if (disable)
+		{
+			requestManager.setDisabled();
+		}
+		else
+		{
+			requestManager.close(false);
+		}
+	}
+
+	int getOutstandingRequestCount()
+	{
+		return this.requestManagers.size() + (this.responseManager == null ? 0 : 1);
+	}
+}
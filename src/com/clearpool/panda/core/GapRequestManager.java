@@ -3,8 +3,7 @@ package com.clearpool.panda.core;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,17 +16,19 @@ class GapRequestManager
 	private final String sourceKey;
 	private final InetSocketAddress sourceAddress;
 	private final ChannelReceiveSequencer sequencer;
-	private final ByteBuffer readBuffer;
 
-	private SocketChannel socketChannel;
+	private GapRequestConnection connection;
 	private ByteBuffer request;
+	private boolean closed;
 	private long timeOfRequest;
 	private long firstSequenceNumberRequested;
+	private long lastSequenceNumberRequested;
 	private long packetCountRequested;
 	private boolean responseHeaderReceived;
 	private long responseFirstSequenceNumber;
 	private int responsePacketCount;
 	private int packetsRemainingToDeliver;
+	private boolean repairPending;
 
 	GapRequestManager(SelectorThread selectorThread, String multicastGroup, String sourceKey, InetSocketAddress sourceAddress, ChannelReceiveSequencer sequencer)
 	{
@@ -36,152 +37,159 @@ class GapRequestManager
 		this.sourceKey = sourceKey;
 		this.sourceAddress = sourceAddress;
 		this.sequencer = sequencer;
-		this.readBuffer = ByteBuffer.allocateDirect(2 * PandaUtils.MAX_TCP_SIZE);
 
-		this.socketChannel = null;
+		this.connection = null;
 		this.request = null;
+		this.closed = false;
 		this.timeOfRequest = 0;
 		this.firstSequenceNumberRequested = 0;
+		this.lastSequenceNumberRequested = 0;
 		this.packetCountRequested = 0;
 		this.responseHeaderReceived = false;
 		this.responseFirstSequenceNumber = 0;
 		this.responsePacketCount = 0;
 		this.packetsRemainingToDeliver = 0;
+		this.repairPending = false;
 	}
 
 	boolean sendGapRequest(long firstSequenceNumber, int packetCount, long time)
 	{
-		if (this.socketChannel == null)
-		{
-			if (this.selectorThread.shouldMakeConnections()) this.socketChannel = getSocketChannel();
-			this.request = createGapRequest(firstSequenceNumber, packetCount, time);
-			LOGGER.info("REQUESTING GAP - |Source=" + this.sourceKey + "|Group=" + this.multicastGroup + "|firstSequenceNumber=" + firstSequenceNumber + "|packetCount="
-					+ packetCount + "|id=" + hashCode());
-			if (this.selectorThread.shouldMakeConnections()) this.selectorThread.registerTcpChannelAction(this.socketChannel, SelectionKey.OP_CONNECT, this);
-		}
-		return true;
+		return sendGapRequest(firstSequenceNumber, packetCount, null, time);
 	}
 
-	private SocketChannel getSocketChannel()
+	// Selective request - bit i of missingSequenceNumbers is set when firstSequenceNumber + i is missing, null requests the whole range
+	boolean sendGapRequest(long firstSequenceNumber, int rangeLength, BitSet missingSequenceNumbers, long time)
 	{
-		try
-		{
-			SocketChannel channel = SocketChannel.open();
-			channel.configureBlocking(false);
-			channel.connect(this.sourceAddress);
-			return channel;
-		}
-		catch (Exception e)
+		if (this.request == null)
 		{
-			this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(PandaErrorCode.EXCEPTION, e.getMessage(), e);
+			this.request = createGapRequest(firstSequenceNumber, rangeLength, missingSequenceNumbers, time);
+			LOGGER.info("REQUESTING GAP - |Source=" + this.sourceKey + "|Group=" + this.multicastGroup + "|firstSequenceNumber=" + firstSequenceNumber + "|rangeLength="
+					+ rangeLength + "|packetCount=" + this.packetCountRequested + "|id=" + hashCode());
+			if (this.selectorThread.shouldMakeConnections())
+			{
+				this.connection = this.selectorThread.getGapRequestConnection(this.sourceKey, this.sourceAddress);
+				if (this.connection == null)
+				{
+					this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(PandaErrorCode.EXCEPTION, "Unable to connect to source=" + this.sourceKey, null);
+					return false;
+				}
+				this.connection.sendGapRequest(this, this.request);
+			}
 		}
-		return null;
+		return true;
 	}
 
-	private ByteBuffer createGapRequest(long firstSequenceNumber, int packetCount, long time)
+	private ByteBuffer createGapRequest(long firstSequenceNumber, int rangeLength, BitSet missingSequenceNumbers, long time)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_HEADER_SIZE + this.multicastGroup.length());
+		byte[] bitmap = (missingSequenceNumbers == null) ? new byte[0] : missingSequenceNumbers.toByteArray();
+		ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_HEADER_SIZE + this.multicastGroup.length() + PandaUtils.RETRANSMISSION_REQUEST_BITMAP_HEADER_SIZE
+				+ bitmap.length);
 		buffer.putLong(firstSequenceNumber);
-		buffer.putInt(packetCount);
+		buffer.putInt(rangeLength);
 		buffer.put((byte) this.multicastGroup.length());
 		buffer.put(this.multicastGroup.getBytes());
+		buffer.putShort((short) bitmap.length);
+		buffer.put(bitmap);
 		buffer.rewind();
 
 		this.timeOfRequest = time;
 		this.firstSequenceNumberRequested = firstSequenceNumber;
-		this.packetCountRequested = packetCount;
+		this.lastSequenceNumberRequested = firstSequenceNumber + rangeLength - 1;
+		this.packetCountRequested = (missingSequenceNumbers == null) ? rangeLength : missingSequenceNumbers.cardinality();
 
 		return buffer;
 	}
 
-	// Called by selectorThread
-	ByteBuffer getGapRequest()
-	{
-		return this.request;
-	}
-
-	// Called by selectorThread
-	void processGapResponse(SocketChannel channel, SelectionKey key, ByteBuffer buffer)
+	// Called by selectorThread - consumes the response from the connection's readBuffer, which is left at the first incomplete packet. Returns true once the whole response
+	// has been read. Responses that arrive after the request was closed are read and discarded.
+	boolean processGapResponse(InetSocketAddress sourceAddress, ByteBuffer readBuffer) throws IOException
 	{
-		this.readBuffer.put(buffer); // add to the end of whatever is remaining in bytebuffer
-		this.readBuffer.flip();
 		try
 		{
 			// Parse Header
 			if (!this.responseHeaderReceived)
 			{
-				this.readBuffer.mark();
-				if (this.readBuffer.remaining() >= PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE)
+				readBuffer.mark();
+				if (readBuffer.remaining() >= PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE)
 				{
-					long startSequenceNumber = this.readBuffer.getLong();
-					int totalPackets = this.readBuffer.getInt();
+					long startSequenceNumber = readBuffer.getLong();
+					int totalPackets = readBuffer.getInt();
 
 					this.responseFirstSequenceNumber = startSequenceNumber;
-					this.responsePacketCount = totalPackets;
 					this.responseHeaderReceived = true;
-
-					this.packetsRemainingToDeliver = this.responsePacketCount;
-					LOGGER.info("PROCESSING GAP - |SourceKey=" + this.sourceKey + "|Group=" + this.multicastGroup + "|responseFirstSequenceNumber=" + startSequenceNumber
-							+ "|responsePacketCount=" + totalPackets + "|id=" + hashCode());
-
-					// Potentially skip packets if request is not filled
-					if (this.responsePacketCount == 0)
+					// Packets come back on the repair group, the request stays open until the sequencer has received them
+					if (totalPackets == PandaUtils.RETRANSMISSION_RESPONSE_REPAIRED)
 					{
-						this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(PandaErrorCode.RETRANSMISSION_RESPONSE_NONE,
-								"Unable to retrieve missed packets from source=" + this.sequencer.getKey() + ". Skipping " + this.packetCountRequested + " packets.", null);
-						long sequenceNumber = this.firstSequenceNumberRequested + this.packetCountRequested - 1;
-						this.sequencer.skipPacketAndDequeue(sequenceNumber);
+						this.repairPending = true;
+						totalPackets = 0;
 					}
-					else if (this.responsePacketCount != this.packetCountRequested)
+					this.responsePacketCount = totalPackets;
+
+					this.packetsRemainingToDeliver = this.responsePacketCount;
+					// A late response to a closed request is read but not acted on
+					if (!this.closed)
 					{
-						this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(
-								PandaErrorCode.RETRANSMISSION_RESPONSE_PARTIAL,
-								"Unable to retrieve missed packets from source=" + this.sequencer.getKey() + ". Skipping " + (this.responsePacketCount - this.packetCountRequested)
-										+ " packets.", null);
-						this.sequencer.skipPacketAndDequeue(this.responseFirstSequenceNumber - 1);
+						LOGGER.info("PROCESSING GAP - |SourceKey=" + this.sourceKey + "|Group=" + this.multicastGroup + "|responseFirstSequenceNumber=" + startSequenceNumber
+								+ "|responsePacketCount=" + totalPackets + "|id=" + hashCode());
+
+						// Packets that are not in the response are skipped by the sequencer once the response has been delivered
+						if (this.repairPending)
+						{
+							LOGGER.info("AWAITING REPAIR - |SourceKey=" + this.sourceKey + "|Group=" + this.multicastGroup + "|id=" + hashCode());
+						}
+						else if (this.responsePacketCount == 0)
+						{
+							this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(PandaErrorCode.RETRANSMISSION_RESPONSE_NONE,
+									"Unable to retrieve missed packets from source=" + this.sequencer.getKey() + ". Skipping " + this.packetCountRequested + " packets.", null);
+						}
+						else if (this.responsePacketCount != this.packetCountRequested)
+						{
+							this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(
+									PandaErrorCode.RETRANSMISSION_RESPONSE_PARTIAL,
+									"Unable to retrieve missed packets from source=" + this.sequencer.getKey() + ". Skipping " + (this.packetCountRequested - this.responsePacketCount)
+											+ " packets.", null);
+						}
 					}
 				}
 				else
 				{
-					this.readBuffer.reset();
-					this.readBuffer.compact();
-					return;
+					readBuffer.reset();
+					return false;
 				}
 			}
 
 			// Parse Packets
 			while (this.packetsRemainingToDeliver > 0)
 			{
-				this.readBuffer.mark();
-				if (this.readBuffer.remaining() >= PandaUtils.RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE)
+				readBuffer.mark();
+				if (readBuffer.remaining() >= PandaUtils.RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE)
 				{
-					int packetLength = this.readBuffer.getInt();
+					int packetLength = readBuffer.getInt();
 					if (packetLength > 0)
 					{
-						if (this.readBuffer.remaining() >= packetLength)
+						if (readBuffer.remaining() >= packetLength)
 						{
 							byte[] bytes = new byte[packetLength];
-							this.readBuffer.get(bytes);
+							readBuffer.get(bytes);
 							ByteBuffer packetBuffer = ByteBuffer.wrap(bytes);
-							if (channel != null) this.sequencer.getChannelReceiveInfo().dataReceived((InetSocketAddress) channel.socket().getRemoteSocketAddress(), packetBuffer);
+							if (sourceAddress != null && !this.closed) this.sequencer.retransmittedPacketReceived(sourceAddress, packetBuffer);
 							this.packetsRemainingToDeliver--;
 						}
 						else
 						{
-							this.readBuffer.reset();
-							this.readBuffer.compact();
-							return;
+							readBuffer.reset();
+							return false;
 						}
 					}
 					else
 					{
 						// Log readBuffer
-						this.readBuffer.rewind();
+						readBuffer.reset();
 						StringBuilder bufferSB = new StringBuilder();
-						while (this.readBuffer.hasRemaining())
+						while (readBuffer.hasRemaining())
 						{
 							bufferSB.append(',');
-							bufferSB.append(this.readBuffer.get());
+							bufferSB.append(readBuffer.get());
 						}
 						LOGGER.severe("Received Negative/Zero Packet Length In Gap Response - ReadBuffer Bytes - " + bufferSB.toString());
 						// Declare drop due to corruption
@@ -189,17 +197,20 @@ class GapRequestManager
 								PandaErrorCode.PACKET_LOSS_RETRANSMISSION_CORRUPTION,
 								"Unable to retrieve missed packets due to possible data corruption from source=" + this.sequencer.getKey() + ". Skipping "
 										+ this.packetsRemainingToDeliver + " packets.", null);
-						long sequenceNumber = this.firstSequenceNumberRequested + this.packetCountRequested - 1;
-						this.sequencer.skipPacketAndDequeue(sequenceNumber);
-						// Induce channel close
+						// Framing is lost, so the connection has to be closed
 						this.packetsRemainingToDeliver = 0;
+						if (!this.closed)
+						{
+							close(false);
+							this.sequencer.skipUnrecoveredPackets(this.firstSequenceNumberRequested, this.lastSequenceNumberRequested);
+						}
+						throw new IOException("Corrupted gap response from source=" + this.sourceKey);
 					}
 				}
 				else
 				{
-					this.readBuffer.reset();
-					this.readBuffer.compact();
-					return;
+					readBuffer.reset();
+					return false;
 				}
 			}
 
@@ -208,31 +219,35 @@ class GapRequestManager
 				LOGGER.log(Level.FINE, "Received GapResponse for " + this.responsePacketCount + " packets starting with sequenceNumber " + this.responseFirstSequenceNumber);
 			}
 
-			if (this.packetsRemainingToDeliver == 0)
-			{
-				close(channel, key, true);
-			}
+			if (!this.closed && !this.repairPending) close(true);
+			return true;
+		}
+		catch (IOException e)
+		{
+			throw e;
 		}
 		catch (Exception e)
 		{
 			this.sequencer.getChannelReceiveInfo().deliverErrorToListeners(PandaErrorCode.EXCEPTION, e.getMessage(), e);
 			e.printStackTrace();
+			return false;
 		}
 	}
 
-	private void close(SocketChannel channel, SelectionKey key, boolean successful) throws IOException
+	// The connection stays open for other requests, a response still on its way is discarded when it arrives
+	void close(boolean successful)
 	{
-		if (channel != null) channel.close();
-		if (key != null) key.cancel();
-		close(successful);
+		if (this.closed) return;
+		this.closed = true;
+		this.request = null;
+		this.sequencer.closeRequestManager(this, successful);
 	}
 
-	void close(boolean successful)
+	// Closed without notifying the sequencer, which has already given up on the range
+	void cancel()
 	{
-		this.readBuffer.clear();
-		this.socketChannel = null;
+		this.closed = true;
 		this.request = null;
-		this.sequencer.closeRequestManager(successful);
 	}
 
 	void setDisabled()
@@ -256,6 +271,11 @@ class GapRequestManager
 		return this.firstSequenceNumberRequested;
 	}
 
+	long getLastSequenceNumberRequested()
+	{
+		return this.lastSequenceNumberRequested;
+	}
+
 	long getPacketCountRequested()
 	{
 		return this.packetCountRequested;
@@ -280,4 +300,9 @@ class GapRequestManager
 	{
 		return this.packetsRemainingToDeliver;
 	}
+
+	boolean isRepairPending()
+	{
+		return this.repairPending;
+	}
 }
\ No newline at end of file
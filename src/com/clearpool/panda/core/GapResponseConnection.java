@@ -0,0 +1,126 @@
+package com.clearpool.panda.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Accepted connection from a receiver adapter. Gap requests for any multicast group can arrive at any time, their responses are written one after another in the order the
+// requests arrived. Only touched by the selectorThread.
+class GapResponseConnection
+{
+	private static final Logger LOGGER = Logger.getLogger(GapResponseConnection.class.getName());
+
+	private final SocketChannel channel;
+	private final Sender sender;
+	private final ByteBuffer readBuffer;
+	private final Queue<GapResponseManager> responseManagers;
+
+	GapResponseConnection(SocketChannel channel, Sender sender)
+	{
+		this.channel = channel;
+		this.sender = sender;
+		this.readBuffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE + PandaUtils.RETRANSMISSION_REQUEST_HEADER_SIZE + Byte.MAX_VALUE
+				+ PandaUtils.RETRANSMISSION_REQUEST_BITMAP_HEADER_SIZE + PandaUtils.MAX_RETRANSMISSION_REQUEST_BITMAP_SIZE);
+		this.responseManagers = new ArrayDeque<GapResponseManager>();
+	}
+
+	// Called by selectorThread
+	void handleSelection(SelectionKey selectedKey)
+	{
+		try
+		{
+			if (selectedKey.isReadable()) readRequests(selectedKey);
+			if (selectedKey.isValid() && selectedKey.isWritable()) writeResponses(selectedKey);
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.WARNING, "Closing retransmission connection from " + getRemoteAddress() + " - " + e.getMessage());
+			close(selectedKey);
+		}
+	}
+
+	private void readRequests(SelectionKey selectedKey) throws IOException
+	{
+		if (this.channel.read(this.readBuffer) == -1)
+		{
+			close(selectedKey);
+			return;
+		}
+		this.readBuffer.flip();
+		while (this.readBuffer.remaining() >= PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE + PandaUtils.RETRANSMISSION_REQUEST_HEADER_SIZE)
+		{
+			this.readBuffer.mark();
+			int requestId = this.readBuffer.getInt();
+			long startSequenceNumber = this.readBuffer.getLong();
+			int packetCount = this.readBuffer.getInt();
+			byte multicastGroupLength = this.readBuffer.get();
+			if (this.readBuffer.remaining() < multicastGroupLength + PandaUtils.RETRANSMISSION_REQUEST_BITMAP_HEADER_SIZE)
+			{
+				this.readBuffer.reset();
+				break;
+			}
+			byte[] bytes = new byte[multicastGroupLength];
+			this.readBuffer.get(bytes);
+			short bitmapLength = this.readBuffer.getShort();
+			if (bitmapLength < 0 || bitmapLength > PandaUtils.MAX_RETRANSMISSION_REQUEST_BITMAP_SIZE) throw new IOException("Invalid gap request bitmapLength=" + bitmapLength);
+			if (this.readBuffer.remaining() < bitmapLength)
+			{
+				this.readBuffer.reset();
+				break;
+			}
+			BitSet missingSequenceNumbers = null;
+			if (bitmapLength > 0)
+			{
+				byte[] bitmap = new byte[bitmapLength];
+				this.readBuffer.get(bitmap);
+				missingSequenceNumbers = BitSet.valueOf(bitmap);
+			}
+			this.responseManagers.add(this.sender.processGapRequest(this.channel, requestId, startSequenceNumber, packetCount, missingSequenceNumbers, new String(bytes)));
+		}
+		this.readBuffer.compact();
+		if (!this.responseManagers.isEmpty()) selectedKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void writeResponses(SelectionKey selectedKey) throws IOException
+	{
+		GapResponseManager responseManager = this.responseManagers.peek();
+		while (responseManager != null)
+		{
+			if (!responseManager.sendResponse()) return;
+			this.responseManagers.poll();
+			responseManager = this.responseManagers.peek();
+		}
+		selectedKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(SelectionKey selectedKey)
+	{
+		try
+		{
+			this.channel.close();
+		}
+		catch (IOException e)
+		{
+		}
+		selectedKey.cancel();
+		this.responseManagers.clear();
+	}
+
+	private String getRemoteAddress()
+	{
+		try
+		{
+			return String.valueOf(this.channel.getRemoteAddress());
+		}
+		catch (IOException e)
+		{
+			return "unknown";
+		}
+	}
+}
@@ -2,110 +2,190 @@ package com.clearpool.panda.core;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+// Streams cached ranges straight out of the PacketCache segments, which already hold packets in the response format. Memory backed segments are sent with gathering
+// writes and file backed segments with transferTo. The ranges of a selective request follow each other in a single response, every packet carries its own
+// sequenceNumber. The connection stays open after the response for further requests.
 class GapResponseManager
 {
 	private static final Logger LOGGER = Logger.getLogger(GapResponseManager.class.getName());
+	private static final int MAX_WRITE_BUFFERS = 16;
 
 	private final SocketChannel channel;
-	private final List<byte[]> packets;
+	private final PacketCache packetCache;
+	private final List<Pair<Long, Long>> ranges;
 	private final int totalPackets;
 	private final long startSequenceNumber;
+	private final ByteBuffer[] writeBuffers;
+	private final PacketSegment[] writeSegments;
+	private final long[] writeSequenceNumbers;
 
-	private ByteBuffer previousBuffer;
+	private int writeBufferCount;
+	private int rangeIndex;
+	private long nextSequenceNumber;
 
-	GapResponseManager(SocketChannel channel, List<byte[]> packets, long startSequenceNumber)
+	GapResponseManager(SocketChannel channel, PacketCache packetCache, int requestId, long startSequenceNumber, int totalPackets)
+	{
+		this(channel, packetCache, requestId, (totalPackets == 0) ? Collections.<Pair<Long, Long>> emptyList() : Collections.singletonList(new Pair<Long, Long>(Long
+				.valueOf(startSequenceNumber), Long.valueOf(startSequenceNumber + totalPackets - 1))));
+	}
+
+	// ranges are the first and last sequenceNumber of each cached range to send, in ascending order
+	GapResponseManager(SocketChannel channel, PacketCache packetCache, int requestId, List<Pair<Long, Long>> ranges)
+	{
+		this(channel, packetCache, requestId, ranges, ranges.isEmpty() ? 0 : ranges.get(0).getA().longValue(), getTotalPackets(ranges));
+	}
+
+	private GapResponseManager(SocketChannel channel, PacketCache packetCache, int requestId, List<Pair<Long, Long>> ranges, long startSequenceNumber, int totalPackets)
 	{
 		this.channel = channel;
-		this.packets = packets;
-		this.totalPackets = (packets == null ? 0 : packets.size());
+		this.packetCache = packetCache;
+		this.ranges = ranges;
+		this.totalPackets = totalPackets;
 		this.startSequenceNumber = startSequenceNumber;
+		this.writeBuffers = new ByteBuffer[MAX_WRITE_BUFFERS];
+		this.writeSegments = new PacketSegment[MAX_WRITE_BUFFERS];
+		this.writeSequenceNumbers = new long[MAX_WRITE_BUFFERS];
 
-		this.previousBuffer = null;
+		ByteBuffer headerBuffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE + PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE);
+		headerBuffer.putInt(requestId);
+		headerBuffer.putLong(this.startSequenceNumber);
+		headerBuffer.putInt(this.totalPackets);
+		headerBuffer.flip();
+		this.writeBuffers[0] = headerBuffer;
+		this.writeBufferCount = 1;
+		this.rangeIndex = 0;
+		this.nextSequenceNumber = this.startSequenceNumber;
 	}
 
-	// Called by selectorThread
-	void sendResponse(SelectionKey key)
+	// Header only response, the packets have been re-multicast on the repair group
+	static GapResponseManager createRepairedResponse(SocketChannel channel, int requestId, long startSequenceNumber)
 	{
-		try
+		return new GapResponseManager(channel, null, requestId, Collections.<Pair<Long, Long>> emptyList(), startSequenceNumber,
+				PandaUtils.RETRANSMISSION_RESPONSE_REPAIRED);
+	}
+
+	private static int getTotalPackets(List<Pair<Long, Long>> ranges)
+	{
+		int totalPackets = 0;
+		for (Pair<Long, Long> range : ranges)
 		{
-			// Send previous send which was fragmented
-			if (this.previousBuffer != null)
-			{
-				boolean allWritten = writeBufferToChannel(this.previousBuffer);
-				if (!allWritten) return;
-			}
+			totalPackets += (int) (range.getB().longValue() - range.getA().longValue() + 1);
+		}
+		return totalPackets;
+	}
 
-			// Send Header
-			if (this.packets == null || this.packets.size() == this.totalPackets)
+	// Called by selectorThread - returns true once the whole response has been written, throws if it can no longer be completed
+	boolean sendResponse() throws IOException
+	{
+		while (true)
+		{
+			if (!queueSegments() || !isQueueIntact())
 			{
-				ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE);
-				buffer.putLong(this.startSequenceNumber);
-				buffer.putInt(this.totalPackets);
-				buffer.rewind();
-				if (!writeBufferToChannel(buffer)) return;
+				throw new IOException("GapResponse for " + this.totalPackets + " packets starting with sequenceNumber " + this.startSequenceNumber
+						+ " aborted because they are no longer cached");
 			}
+			if (this.writeBufferCount == 0) break;
+			if (!writeQueue()) return false;
+		}
+
+		LOGGER.log(Level.FINER, "Sent GapResponse to " + this.channel.getRemoteAddress() + " for " + this.totalPackets + " packets starting with sequenceNumber "
+				+ this.startSequenceNumber);
+		return true;
+	}
 
-			// Send Response
-			if (this.packets != null)
+	// Queues a view of the records in each segment of the ranges, returns false if part of a range has already been overwritten
+	private boolean queueSegments()
+	{
+		while (this.writeBufferCount < MAX_WRITE_BUFFERS && this.rangeIndex < this.ranges.size())
+		{
+			long endSequenceNumber = this.ranges.get(this.rangeIndex).getB().longValue();
+			PacketSegment segment = this.packetCache.getSegment(this.nextSequenceNumber);
+			if (segment == null) return false;
+			long lastSequenceNumber = Math.min(endSequenceNumber, segment.getLastSequenceNumber());
+			this.writeBuffers[this.writeBufferCount] = segment.getRecords(this.nextSequenceNumber, lastSequenceNumber);
+			this.writeSegments[this.writeBufferCount] = segment;
+			this.writeSequenceNumbers[this.writeBufferCount] = this.nextSequenceNumber;
+			this.writeBufferCount++;
+			this.nextSequenceNumber = lastSequenceNumber + 1;
+			if (this.nextSequenceNumber > endSequenceNumber && ++this.rangeIndex < this.ranges.size())
 			{
-				// Send remaining packets
-				Iterator<byte[]> responseIterator = this.packets.iterator();
-				while (responseIterator.hasNext())
-				{
-					byte[] packetBytes = responseIterator.next();
-					responseIterator.remove();
-					int packetLength = packetBytes.length;
-					if (packetLength <= 0)
-					{
-						LOGGER.severe("[DEBUG] Sending Negative/Zero Packet Length In Gap Response - ReadBuffer Bytes - " + new String(packetBytes));
-					}
-					ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE + packetLength);
-					buffer.putInt(packetBytes.length);
-					buffer.put(packetBytes);
-					buffer.rewind();
-					if (!writeBufferToChannel(buffer)) return;
-				}
+				this.nextSequenceNumber = this.ranges.get(this.rangeIndex).getA().longValue();
 			}
+		}
+		return true;
+	}
 
-			LOGGER.log(Level.FINER, "Sent GapResponse to " + this.channel.getLocalAddress() + " for " + this.totalPackets + " packets starting with sequenceNumber "
-					+ this.startSequenceNumber);
+	// Segments may have been recycled while waiting for the socket to drain
+	private boolean isQueueIntact()
+	{
+		for (int i = 0; i < this.writeBufferCount; i++)
+		{
+			if (this.writeSegments[i] != null && !this.packetCache.isIntact(this.writeSequenceNumbers[i])) return false;
+		}
+		return true;
+	}
 
-			// Close channel when all responses have been written or if no responses ever existed
-			if (this.packets == null || this.packets.size() == 0)
-			{
-				this.channel.close();
-				key.cancel();
-			}
+	// Returns false if the socket could not take everything that was offered
+	private boolean writeQueue() throws IOException
+	{
+		int lastBufferIndex;
+		FileChannel fileChannel = (this.writeSegments[0] == null ? null : this.writeSegments[0].getFileChannel());
+		if (fileChannel != null)
+		{
+			lastBufferIndex = 0;
+			ByteBuffer recordsBuffer = this.writeBuffers[0];
+			long transferred = fileChannel.transferTo(recordsBuffer.position(), recordsBuffer.remaining(), this.channel);
+			recordsBuffer.position(recordsBuffer.position() + (int) transferred);
 		}
-		catch (Exception e)
+		else
 		{
-			try
+			int gatherCount = 1;
+			while (gatherCount < this.writeBufferCount && this.writeSegments[gatherCount].getFileChannel() == null)
 			{
-				this.channel.close();
+				gatherCount++;
 			}
-			catch (IOException e1)
-			{
-			}
-			key.cancel();
+			lastBufferIndex = gatherCount - 1;
+			this.channel.write(this.writeBuffers, 0, gatherCount);
 		}
+		boolean allWritten = !this.writeBuffers[lastBufferIndex].hasRemaining();
+		removeWrittenBuffers();
+		return allWritten;
 	}
 
-	private boolean writeBufferToChannel(ByteBuffer buffer) throws IOException
+	private void removeWrittenBuffers()
 	{
-		this.channel.write(buffer);
-		if (buffer.remaining() == 0)
+		int written = 0;
+		while (written < this.writeBufferCount && !this.writeBuffers[written].hasRemaining())
 		{
-			this.previousBuffer = null;
-			return true;
+			written++;
 		}
-		this.previousBuffer = buffer;
-		return false;
+		if (written == 0) return;
+		int remaining = this.writeBufferCount - written;
+		System.arraycopy(this.writeBuffers, written, this.writeBuffers, 0, remaining);
+		System.arraycopy(this.writeSegments, written, this.writeSegments, 0, remaining);
+		System.arraycopy(this.writeSequenceNumbers, written, this.writeSequenceNumbers, 0, remaining);
+		for (int i = remaining; i < this.writeBufferCount; i++)
+		{
+			this.writeBuffers[i] = null;
+			this.writeSegments[i] = null;
+		}
+		this.writeBufferCount = remaining;
+	}
+
+	long getStartSequenceNumber()
+	{
+		return this.startSequenceNumber;
+	}
+
+	int getTotalPackets()
+	{
+		return this.totalPackets;
 	}
-}
\ No newline at end of file
+}
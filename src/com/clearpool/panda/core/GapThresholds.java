@@ -0,0 +1,157 @@
+package com.clearpool.panda.core;
+
+// When a source's sequencer declares a gap lost and how long it waits on a gap request, derived from how deep packets of the source are really reordered and from the round
+// trip time of its gap requests. Packets arriving in order count as reorder distance 0, so a source that is never reordered settles at the lowest threshold. Until enough
+// packets have been seen, and for any setting given in PandaProperties, the fixed value is used instead. Only touched by the selectorThread.
+class GapThresholds
+{
+	static final int OUT_OF_ORDER_PACKET_THRESHOLD = 20;
+	static final int QUEUE_GIVEUP_TIME = 2000;
+	static final int REQUEST_MANAGER_FAILURE_THRESHOLD = 3;
+
+	private static final int MAX_REORDER_DISTANCE = 64;
+	private static final int MIN_OUT_OF_ORDER_PACKET_THRESHOLD = 2;
+	private static final double REORDER_PERCENTILE = 0.999;
+	private static final int REORDER_MIN_SAMPLES = 1 << 10;
+	private static final int REORDER_DECAY_SAMPLES = 1 << 16;
+	private static final long MIN_NAK_DELAY_MILLIS = 10;
+	private static final long MIN_GIVEUP_MILLIS = 250;
+	private static final long MAX_GIVEUP_MILLIS = 30000;
+	private static final int GIVEUP_RTO_MULTIPLE = 4;
+
+	private final int outOfOrderThresholdOverride;
+	private final long nakDelayMillisOverride;
+	private final long giveUpMillisOverride;
+	private final int requestFailureThreshold;
+	private final long[] reorderDistanceCounts;
+
+	private long totalSamples;
+	private long maxReorderDelayMillis;
+	private int outOfOrderThreshold;
+	private long smoothedRttMillis;
+	private long rttVarianceMillis;
+
+	GapThresholds()
+	{
+		this(0, 0, 0, 0);
+	}
+
+	GapThresholds(PandaProperties properties, String multicastGroup)
+	{
+		this((int) properties.getLongProperty(PandaProperties.OUT_OF_ORDER_PACKET_THRESHOLD, multicastGroup, 0), properties.getLongProperty(PandaProperties.NAK_DELAY_MILLIS,
+				multicastGroup, 0), properties.getLongProperty(PandaProperties.GAP_GIVEUP_MILLIS, multicastGroup, 0), (int) properties.getLongProperty(
+				PandaProperties.GAP_REQUEST_FAILURE_THRESHOLD, multicastGroup, 0));
+	}
+
+	// A value of 0 is derived from what the source is seen to do
+	GapThresholds(int outOfOrderThreshold, long nakDelayMillis, long giveUpMillis, int requestFailureThreshold)
+	{
+		this.outOfOrderThresholdOverride = outOfOrderThreshold;
+		this.nakDelayMillisOverride = nakDelayMillis;
+		this.giveUpMillisOverride = giveUpMillis;
+		this.requestFailureThreshold = (requestFailureThreshold > 0) ? requestFailureThreshold : REQUEST_MANAGER_FAILURE_THRESHOLD;
+		this.reorderDistanceCounts = new long[MAX_REORDER_DISTANCE + 1];
+
+		this.totalSamples = 0;
+		this.maxReorderDelayMillis = 0;
+		this.outOfOrderThreshold = OUT_OF_ORDER_PACKET_THRESHOLD;
+		this.smoothedRttMillis = 0;
+		this.rttVarianceMillis = 0;
+	}
+
+	void inOrderPacketReceived()
+	{
+		addSample();
+	}
+
+	// distance is how many later packets arrived before this one, delayMillis how long after the first of them
+	void reorderedPacketReceived(long distance, long delayMillis)
+	{
+		this.reorderDistanceCounts[(int) Math.min(distance, MAX_REORDER_DISTANCE)]++;
+		this.maxReorderDelayMillis = Math.max(this.maxReorderDelayMillis, delayMillis);
+		addSample();
+		this.outOfOrderThreshold = computeOutOfOrderThreshold();
+	}
+
+	private void addSample()
+	{
+		if (++this.totalSamples == REORDER_MIN_SAMPLES)
+		{
+			this.outOfOrderThreshold = computeOutOfOrderThreshold();
+		}
+		else if (this.totalSamples >= REORDER_DECAY_SAMPLES)
+		{
+			// Older samples count half, so the thresholds follow a source whose reordering changes
+			this.totalSamples >>= 1;
+			for (int i = 0; i < this.reorderDistanceCounts.length; i++)
+			{
+				this.reorderDistanceCounts[i] >>= 1;
+			}
+			this.maxReorderDelayMillis >>= 1;
+			this.outOfOrderThreshold = computeOutOfOrderThreshold();
+		}
+	}
+
+	private int computeOutOfOrderThreshold()
+	{
+		if (this.totalSamples < REORDER_MIN_SAMPLES) return OUT_OF_ORDER_PACKET_THRESHOLD;
+		long allowedAbove = (long) (this.totalSamples * (1 - REORDER_PERCENTILE));
+		long above = 0;
+		int distance = MAX_REORDER_DISTANCE;
+		while (distance > 0 && above + this.reorderDistanceCounts[distance] <= allowedAbove)
+		{
+			above += this.reorderDistanceCounts[distance];
+			distance--;
+		}
+		return Math.min(OUT_OF_ORDER_PACKET_THRESHOLD, Math.max(MIN_OUT_OF_ORDER_PACKET_THRESHOLD, distance + 1));
+	}
+
+	// Round trip of a gap request that was answered, smoothed as in RFC 6298
+	void gapRecovered(long rttMillis)
+	{
+		if (this.smoothedRttMillis == 0)
+		{
+			this.smoothedRttMillis = Math.max(1, rttMillis);
+			this.rttVarianceMillis = rttMillis / 2;
+		}
+		else
+		{
+			this.rttVarianceMillis += (Math.abs(this.smoothedRttMillis - rttMillis) - this.rttVarianceMillis) / 4;
+			this.smoothedRttMillis = Math.max(1, this.smoothedRttMillis + (rttMillis - this.smoothedRttMillis) / 8);
+		}
+	}
+
+	// Queued packets beyond which a gap is declared lost
+	int getOutOfOrderThreshold()
+	{
+		if (this.outOfOrderThresholdOverride > 0) return this.outOfOrderThresholdOverride;
+		return this.outOfOrderThreshold;
+	}
+
+	// Time a gap may stay open before it is declared lost
+	long getNakDelayMillis()
+	{
+		if (this.nakDelayMillisOverride > 0) return this.nakDelayMillisOverride;
+		if (this.totalSamples < REORDER_MIN_SAMPLES) return QUEUE_GIVEUP_TIME;
+		return Math.min(getGiveUpMillis(), Math.max(MIN_NAK_DELAY_MILLIS, 2 * this.maxReorderDelayMillis));
+	}
+
+	// Time a gap request may stay unanswered before its packets are given up
+	long getGiveUpMillis()
+	{
+		if (this.giveUpMillisOverride > 0) return this.giveUpMillisOverride;
+		if (this.smoothedRttMillis == 0) return QUEUE_GIVEUP_TIME;
+		long retransmissionTimeout = this.smoothedRttMillis + 4 * this.rttVarianceMillis;
+		return Math.min(MAX_GIVEUP_MILLIS, Math.max(MIN_GIVEUP_MILLIS, GIVEUP_RTO_MULTIPLE * retransmissionTimeout));
+	}
+
+	int getRequestFailureThreshold()
+	{
+		return this.requestFailureThreshold;
+	}
+
+	long getSmoothedRttMillis()
+	{
+		return this.smoothedRttMillis;
+	}
+}
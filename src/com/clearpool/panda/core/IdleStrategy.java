@@ -0,0 +1,119 @@
+package com.clearpool.panda.core;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// How a SelectorThread selects once a pass of its loop found nothing to do. idleCount is the number of passes in a row that found nothing, timeoutMillis how long until the
+// next timer is due (Long.MAX_VALUE when none is). A strategy that parks may only wait while the thread has advertised it, so producers know to wake it up.
+public enum IdleStrategy
+{
+	// Never gives up the core, lowest latency
+	BUSY_SPIN
+	{
+		@Override
+		boolean parks(int idleCount)
+		{
+			return false;
+		}
+
+		@Override
+		int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+		{
+			return selector.selectNow();
+		}
+	},
+
+	// Spins for a while, then lets other threads of the core run between polls
+	SPIN_YIELD
+	{
+		@Override
+		boolean parks(int idleCount)
+		{
+			return false;
+		}
+
+		@Override
+		int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+		{
+			int selectedKeyCount = selector.selectNow();
+			if (selectedKeyCount == 0 && idleCount >= SPIN_PASSES) Thread.yield();
+			return selectedKeyCount;
+		}
+	},
+
+	// Spins, yields, then parks for twice as long on every idle pass up to MAX_PARK_NANOS
+	BACKOFF
+	{
+		@Override
+		boolean parks(int idleCount)
+		{
+			return idleCount >= SPIN_PASSES + YIELD_PASSES;
+		}
+
+		@Override
+		int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+		{
+			int selectedKeyCount = selector.selectNow();
+			if (selectedKeyCount > 0 || idleCount < SPIN_PASSES) return selectedKeyCount;
+			if (!parks(idleCount))
+			{
+				Thread.yield();
+				return selectedKeyCount;
+			}
+			int parkShift = Math.min(idleCount - SPIN_PASSES - YIELD_PASSES, MAX_PARK_SHIFT);
+			LockSupport.parkNanos(Math.min(Math.min(MIN_PARK_NANOS << parkShift, MAX_PARK_NANOS), TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+			return selectedKeyCount;
+		}
+	},
+
+	// Blocks in the selector until a packet, an action or the next timer is due, least CPU
+	BLOCKING
+	{
+		@Override
+		boolean parks(int idleCount)
+		{
+			return true;
+		}
+
+		@Override
+		int select(Selector selector, int idleCount, long timeoutMillis) throws IOException
+		{
+			if (timeoutMillis == Long.MAX_VALUE) return selector.select();
+			return selector.select(timeoutMillis);
+		}
+	};
+
+	static final int SPIN_PASSES = 100;
+	static final int YIELD_PASSES = 100;
+	static final long MIN_PARK_NANOS = 1000;
+	static final long MAX_PARK_NANOS = 1000000;
+	static final int MAX_PARK_SHIFT = 10;
+
+	// IDLE_STRATEGY.<selectorThreadIndex> when set, otherwise IDLE_STRATEGY, otherwise BLOCKING
+	static IdleStrategy fromProperties(int selectorThreadIndex, PandaProperties properties)
+	{
+		String name = properties.getStringProperty(PandaProperties.IDLE_STRATEGY, String.valueOf(selectorThreadIndex), BLOCKING.name());
+		return fromName(name, PandaProperties.IDLE_STRATEGY + " of selectorThread " + selectorThreadIndex);
+	}
+
+	// Ignores case and surrounding blanks, source names where the name came from in the error for an unknown one
+	static IdleStrategy fromName(String name, String source)
+	{
+		try
+		{
+			return valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException(source + " is " + name + ", expected one of " + Arrays.toString(values()), e);
+		}
+	}
+
+	abstract boolean parks(int idleCount);
+
+	// Called by selectorThread - timeoutMillis is always above 0
+	abstract int select(Selector selector, int idleCount, long timeoutMillis) throws IOException;
+}
@@ -0,0 +1,121 @@
+package com.clearpool.panda.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The listeners of a group at one point in time, by topic and as the TopicTable the listener thread looks them up in. Never changed once built, subscribing and
+// unsubscribing build a new snapshot from the current one and swap it in, so the listener thread never sees a half made change and never waits on a subscriber.
+class ListenerSnapshot
+{
+	static final ListenerSnapshot EMPTY = new ListenerSnapshot(new HashMap<String, PandaMessageListener[]>());
+	// Swapped in once a group is left, nothing is ever added to it
+	static final ListenerSnapshot CLOSED = new ListenerSnapshot(new HashMap<String, PandaMessageListener[]>());
+
+	private final Map<String, PandaMessageListener[]> listenersByTopic;
+	private final TopicTable<PandaMessageListener[]> topicTable;
+	private final PandaMessageListener[] groupListeners;
+
+	private ListenerSnapshot(Map<String, PandaMessageListener[]> listenersByTopic)
+	{
+		this.listenersByTopic = listenersByTopic;
+		this.topicTable = new TopicTable<PandaMessageListener[]>(listenersByTopic);
+		Set<PandaMessageListener> distinctListeners = new LinkedHashSet<PandaMessageListener>();
+		for (PandaMessageListener[] topicListeners : listenersByTopic.values())
+		{
+			distinctListeners.addAll(Arrays.asList(topicListeners));
+		}
+		this.groupListeners = distinctListeners.toArray(new PandaMessageListener[distinctListeners.size()]);
+	}
+
+	// Returns this snapshot when the listener already was on every topic
+	ListenerSnapshot add(Collection<String> topics, PandaMessageListener listener)
+	{
+		Map<String, PandaMessageListener[]> newListenersByTopic = null;
+		for (String topic : topics)
+		{
+			PandaMessageListener[] topicListeners = this.listenersByTopic.get(topic);
+			if (indexOf(topicListeners, listener) >= 0) continue;
+			if (newListenersByTopic == null) newListenersByTopic = new HashMap<String, PandaMessageListener[]>(this.listenersByTopic);
+			topicListeners = newListenersByTopic.get(topic);
+			if (indexOf(topicListeners, listener) >= 0) continue;
+			PandaMessageListener[] newTopicListeners = (topicListeners == null) ? new PandaMessageListener[1] : Arrays.copyOf(topicListeners, topicListeners.length + 1);
+			newTopicListeners[newTopicListeners.length - 1] = listener;
+			newListenersByTopic.put(topic, newTopicListeners);
+		}
+		return (newListenersByTopic == null) ? this : new ListenerSnapshot(newListenersByTopic);
+	}
+
+	// Returns this snapshot when the listener was on none of the topics
+	ListenerSnapshot remove(Collection<String> topics, PandaMessageListener listener)
+	{
+		Map<String, PandaMessageListener[]> newListenersByTopic = null;
+		for (String topic : topics)
+		{
+			int listenerIndex = indexOf(this.listenersByTopic.get(topic), listener);
+			if (listenerIndex < 0) continue;
+			if (newListenersByTopic == null) newListenersByTopic = new HashMap<String, PandaMessageListener[]>(this.listenersByTopic);
+			PandaMessageListener[] topicListeners = newListenersByTopic.get(topic);
+			if (topicListeners.length == 1)
+			{
+				newListenersByTopic.remove(topic);
+				continue;
+			}
+			PandaMessageListener[] newTopicListeners = new PandaMessageListener[topicListeners.length - 1];
+			System.arraycopy(topicListeners, 0, newTopicListeners, 0, listenerIndex);
+			System.arraycopy(topicListeners, listenerIndex + 1, newTopicListeners, listenerIndex, newTopicListeners.length - listenerIndex);
+			newListenersByTopic.put(topic, newTopicListeners);
+		}
+		return (newListenersByTopic == null) ? this : new ListenerSnapshot(newListenersByTopic);
+	}
+
+	// Returns this snapshot when none of the topics had listeners
+	ListenerSnapshot removeTopics(Collection<String> topics)
+	{
+		Map<String, PandaMessageListener[]> newListenersByTopic = null;
+		for (String topic : topics)
+		{
+			if (!this.listenersByTopic.containsKey(topic)) continue;
+			if (newListenersByTopic == null) newListenersByTopic = new HashMap<String, PandaMessageListener[]>(this.listenersByTopic);
+			newListenersByTopic.remove(topic);
+		}
+		return (newListenersByTopic == null) ? this : new ListenerSnapshot(newListenersByTopic);
+	}
+
+	// The listener on the topic equal to listener, or null
+	PandaMessageListener get(String topic, PandaMessageListener listener)
+	{
+		PandaMessageListener[] topicListeners = this.listenersByTopic.get(topic);
+		int listenerIndex = indexOf(topicListeners, listener);
+		return (listenerIndex >= 0) ? topicListeners[listenerIndex] : null;
+	}
+
+	private static int indexOf(PandaMessageListener[] listeners, PandaMessageListener listener)
+	{
+		if (listeners == null) return -1;
+		for (int i = 0; i < listeners.length; i++)
+		{
+			if (listeners[i].equals(listener)) return i;
+		}
+		return -1;
+	}
+
+	TopicTable<PandaMessageListener[]> getTopicTable()
+	{
+		return this.topicTable;
+	}
+
+	// Every distinct listener on the group
+	PandaMessageListener[] getGroupListeners()
+	{
+		return this.groupListeners;
+	}
+
+	int getTopicCount()
+	{
+		return this.listenersByTopic.size();
+	}
+}
@@ -0,0 +1,195 @@
+package com.clearpool.panda.core;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Bounded multi-producer/single-consumer ring. Slots are preallocated and reused, each slot carries its own sequence so producers only contend on the tail counter. Based off
+ * http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ *
+ * @param <T>
+ */
+class MpscRingBuffer<T>
+{
+	private final int capacity;
+	private final int mask;
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+	private final PaddedSequence head;
+	private final PaddedSequence tail;
+
+	private long drainedHead;
+
+	MpscRingBuffer(int requestedCapacity)
+	{
+		this.capacity = PandaUtils.nextPowerOfTwo(requestedCapacity);
+		this.mask = this.capacity - 1;
+		this.elements = new Object[this.capacity];
+		this.sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++)
+		{
+			this.sequences.set(i, i);
+		}
+		this.head = new PaddedSequence();
+		this.tail = new PaddedSequence();
+		this.drainedHead = 0;
+	}
+
+	// Called by any thread - returns false if the ring is full
+	boolean offer(T value)
+	{
+		long sequence = claim();
+		if (sequence < 0) return false;
+		publish(sequence, value);
+		return true;
+	}
+
+	// Called by any thread - reserves the next slot, returns its sequence or -1 if the ring is full. The consumer waits for the slot until it is published.
+	long claim()
+	{
+		while (true)
+		{
+			long currentTail = this.tail.get();
+			long difference = this.sequences.get((int) currentTail & this.mask) - currentTail;
+			if (difference == 0)
+			{
+				if (this.tail.compareAndSet(currentTail, currentTail + 1)) return currentTail;
+			}
+			else if (difference < 0)
+			{
+				return -1;
+			}
+		}
+	}
+
+	// Called by the thread that claimed the sequence
+	void publish(long sequence, T value)
+	{
+		int index = indexOf(sequence);
+		this.elements[index] = value;
+		this.sequences.lazySet(index, sequence + 1);
+	}
+
+	// The slot of a sequence, so that callers can keep per slot state that is theirs from claim until the consumer releases the slot
+	int indexOf(long sequence)
+	{
+		return (int) sequence & this.mask;
+	}
+
+	// Called by consumer thread only
+	@SuppressWarnings("unchecked")
+	T poll()
+	{
+		long currentHead = this.head.get();
+		int index = (int) currentHead & this.mask;
+		if (this.sequences.get(index) != currentHead + 1) return null;
+		T value = (T) this.elements[index];
+		this.elements[index] = null;
+		this.sequences.lazySet(index, currentHead + this.capacity);
+		this.head.lazySet(currentHead + 1);
+		return value;
+	}
+
+	// Called by consumer thread only
+	int drainTo(Queue<? super T> queue)
+	{
+		int drained = 0;
+		T next = poll();
+		while (next != null)
+		{
+			queue.add(next);
+			drained++;
+			next = poll();
+		}
+		return drained;
+	}
+
+	// Called by consumer thread only - like drainTo, but the slots are not handed back to producers until releaseDrained, so state kept per slot is not overwritten while
+	// the consumer still uses it. Not to be mixed with poll.
+	@SuppressWarnings("unchecked")
+	int drainUnreleasedTo(Queue<? super T> queue)
+	{
+		int drained = 0;
+		while (true)
+		{
+			int index = (int) this.drainedHead & this.mask;
+			if (this.sequences.get(index) != this.drainedHead + 1) return drained;
+			queue.add((T) this.elements[index]);
+			this.drainedHead++;
+			drained++;
+		}
+	}
+
+	// Called by consumer thread only - hands every slot drained by drainUnreleasedTo back to producers
+	void releaseDrained()
+	{
+		long currentHead = this.head.get();
+		if (currentHead == this.drainedHead) return;
+		for (long sequence = currentHead; sequence < this.drainedHead; sequence++)
+		{
+			int index = (int) sequence & this.mask;
+			this.elements[index] = null;
+			this.sequences.lazySet(index, sequence + this.capacity);
+		}
+		this.head.lazySet(this.drainedHead);
+	}
+
+	// Includes slots that have been claimed by a producer but not yet published
+	boolean isEmpty()
+	{
+		return this.tail.get() == this.head.get();
+	}
+
+	int size()
+	{
+		long size = this.tail.get() - this.head.get();
+		if (size < 0) return 0;
+		return (int) Math.min(size, this.capacity);
+	}
+
+	int capacity()
+	{
+		return this.capacity;
+	}
+
+	@SuppressWarnings("unused")
+	private static class LeftPadding
+	{
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+	private static class SequenceValue extends LeftPadding
+	{
+		protected volatile long value;
+	}
+
+	// Also used by the other rings of the package, so that their head and tail do not share a cache line
+	@SuppressWarnings("unused")
+	static class PaddedSequence extends SequenceValue
+	{
+		private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+		protected long p9, p10, p11, p12, p13, p14, p15;
+
+		long get()
+		{
+			return this.value;
+		}
+
+		void set(long newValue)
+		{
+			this.value = newValue;
+		}
+
+		void lazySet(long newValue)
+		{
+			UPDATER.lazySet(this, newValue);
+		}
+
+		boolean compareAndSet(long expect, long update)
+		{
+			return UPDATER.compareAndSet(this, expect, update);
+		}
+	}
+}
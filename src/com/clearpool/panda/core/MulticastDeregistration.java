@@ -0,0 +1,31 @@
+package com.clearpool.panda.core;
+
+import java.nio.channels.DatagramChannel;
+
+class MulticastDeregistration implements SelectorActionable
+{
+	private final DatagramChannel channel;
+	private final ChannelReceiveInfo receiveInfo;
+
+	MulticastDeregistration(DatagramChannel channel, ChannelReceiveInfo receiveInfo)
+	{
+		this.channel = channel;
+		this.receiveInfo = receiveInfo;
+	}
+
+	DatagramChannel getChannel()
+	{
+		return this.channel;
+	}
+
+	ChannelReceiveInfo getReceiveInfo()
+	{
+		return this.receiveInfo;
+	}
+
+	@Override
+	public int getAction()
+	{
+		return SelectorActionable.DEREGISTER_MULTICAST_READ;
+	}
+}
@@ -0,0 +1,84 @@
+package com.clearpool.panda.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// A channel's membership of its group, so the kernel filters senders before their packets reach the selectorThread. Any source unless sources are listed, then one
+// source-specific membership per source. A blocked source is put on the block list of an any source membership, or has its source-specific membership dropped.
+class MulticastMembership
+{
+	private final DatagramChannel channel;
+	private final InetAddress group;
+	private final NetworkInterface networkInterface;
+	private final Set<InetAddress> sources;
+	private final MembershipKey anySourceKey;
+	private final Map<InetAddress, MembershipKey> sourceKeys;
+	private final Set<InetAddress> blockedSources;
+
+	// Called by selectorThread
+	MulticastMembership(DatagramChannel channel, InetAddress group, NetworkInterface networkInterface, InetAddress[] sources) throws IOException
+	{
+		this.channel = channel;
+		this.group = group;
+		this.networkInterface = networkInterface;
+		this.sources = new HashSet<InetAddress>();
+		this.sourceKeys = new HashMap<InetAddress, MembershipKey>();
+		this.blockedSources = new HashSet<InetAddress>();
+		if (sources.length == 0)
+		{
+			this.anySourceKey = channel.join(group, networkInterface);
+		}
+		else
+		{
+			this.anySourceKey = null;
+			for (InetAddress source : sources)
+			{
+				this.sources.add(source);
+				this.sourceKeys.put(source, channel.join(group, networkInterface, source));
+			}
+		}
+	}
+
+	// Called by selectorThread
+	void block(InetAddress source) throws IOException
+	{
+		if (!this.blockedSources.add(source)) return;
+		if (this.anySourceKey != null)
+		{
+			this.anySourceKey.block(source);
+			return;
+		}
+		MembershipKey sourceKey = this.sourceKeys.remove(source);
+		if (sourceKey != null) sourceKey.drop();
+	}
+
+	// Called by selectorThread - a source that was never listed stays filtered
+	void unblock(InetAddress source) throws IOException
+	{
+		if (!this.blockedSources.remove(source)) return;
+		if (this.anySourceKey != null)
+		{
+			this.anySourceKey.unblock(source);
+			return;
+		}
+		if (this.sources.contains(source)) this.sourceKeys.put(source, this.channel.join(this.group, this.networkInterface, source));
+	}
+
+	// Called by selectorThread
+	void drop()
+	{
+		if (this.anySourceKey != null) this.anySourceKey.drop();
+		for (MembershipKey sourceKey : this.sourceKeys.values())
+		{
+			sourceKey.drop();
+		}
+		this.sourceKeys.clear();
+	}
+}
@@ -1,5 +1,6 @@
 package com.clearpool.panda.core;
 
+import java.net.InetAddress;
 import java.nio.channels.DatagramChannel;
 
 
@@ -8,12 +9,14 @@ class MulticastRegistration implements SelectorActionable
 {
 	private final DatagramChannel channel;
 	private final String ip;
+	private final InetAddress[] sources;
 	private final Object attachment;
 	
-	MulticastRegistration(DatagramChannel channel, String ip, Object attachment)
+	MulticastRegistration(DatagramChannel channel, String ip, InetAddress[] sources, Object attachment)
 	{
 		this.channel = channel;
 		this.ip = ip;
+		this.sources = sources;
 		this.attachment = attachment;
 	}
 
@@ -27,6 +30,12 @@ class MulticastRegistration implements SelectorActionable
 		return this.ip;
 	}
 
+	// Empty to join for any source
+	InetAddress[] getSources()
+	{
+		return this.sources;
+	}
+
 	Object getAttachment()
 	{
 		return this.attachment;
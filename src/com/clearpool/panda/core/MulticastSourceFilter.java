@@ -0,0 +1,39 @@
+package com.clearpool.panda.core;
+
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+
+class MulticastSourceFilter implements SelectorActionable
+{
+	private final DatagramChannel channel;
+	private final InetAddress source;
+	private final boolean block;
+
+	MulticastSourceFilter(DatagramChannel channel, InetAddress source, boolean block)
+	{
+		this.channel = channel;
+		this.source = source;
+		this.block = block;
+	}
+
+	DatagramChannel getChannel()
+	{
+		return this.channel;
+	}
+
+	InetAddress getSource()
+	{
+		return this.source;
+	}
+
+	boolean isBlock()
+	{
+		return this.block;
+	}
+
+	@Override
+	public int getAction()
+	{
+		return SelectorActionable.FILTER_MULTICAST_SOURCE;
+	}
+}
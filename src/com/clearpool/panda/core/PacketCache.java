@@ -1,111 +1,285 @@
 package com.clearpool.panda.core;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
+// Packets live off-heap in fixed size segments taken from a PacketSegmentPool, oldest segments are evicted first. Only touched by the selectorThread.
 class PacketCache
 {
+	static final int MIN_SEGMENT_COUNT = 2;
+
 	private final int cacheSize;
-	private final byte[][] cache;
+	private final long retentionMillis;
+	private final PacketSegmentPool segmentPool;
+	private final PacketSegment[] segments;
+	private final long[] segmentOpenTimes;
 
-	private int elementCount;
-	private int headIndex;
-	private int tailIndex;
+	private int headSegmentIndex;
+	private int segmentCount;
 	private long headSequenceNumber;
 	private long tailSequenceNumber;
+	private double activity;
+	private double recoveryDepth;
 
 	PacketCache(int cacheSize)
+	{
+		this(cacheSize, 0);
+	}
+
+	// Bounded by packet count, sized for MTU sized packets, and optionally by time
+	PacketCache(int cacheSize, long retentionMillis)
+	{
+		this(cacheSize, getSegmentCount((long) cacheSize * (PacketSegment.RECORD_HEADER_SIZE + PandaUtils.MTU_SIZE)), retentionMillis);
+	}
+
+	// Bounded by bytes and optionally by time instead of by packet count
+	PacketCache(long cacheBytes, long retentionMillis)
+	{
+		this(Integer.MAX_VALUE, getSegmentCount(cacheBytes), retentionMillis);
+	}
+
+	private PacketCache(int cacheSize, int segmentCount, long retentionMillis)
+	{
+		this(cacheSize, segmentCount, retentionMillis, PacketSegmentPool.createPreallocated(segmentCount));
+	}
+
+	PacketCache(int cacheSize, int maxSegmentCount, long retentionMillis, PacketSegmentPool segmentPool)
 	{
 		this.cacheSize = cacheSize;
-		this.cache = new byte[this.cacheSize][];
+		this.retentionMillis = retentionMillis;
+		this.segmentPool = segmentPool;
+		this.segments = new PacketSegment[Math.max(MIN_SEGMENT_COUNT, maxSegmentCount)];
+		this.segmentOpenTimes = new long[this.segments.length];
 
-		this.elementCount = 0;
-		this.headIndex = 0;
-		this.tailIndex = 0;
+		this.headSegmentIndex = 0;
+		this.segmentCount = 0;
 		this.headSequenceNumber = 0;
 		this.tailSequenceNumber = 0;
+		this.activity = 0;
+		this.recoveryDepth = 0;
+		this.segmentPool.register(this);
+	}
+
+	// One segment more than needed, since the tail segment is only partially filled
+	private static int getSegmentCount(long cacheBytes)
+	{
+		int segmentSize = PandaUtils.PACKET_CACHE_SEGMENT_SIZE;
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SEGMENT_COUNT, (cacheBytes + segmentSize - 1) / segmentSize + 1));
 	}
 
-	void add(byte[] packetBytes, long sequenceNumber)
+	// Returns a buffer positioned where the next packet should be written, with room for maxPacketLength bytes. now is the selectorThread's clock, which segments are
+	// timed by for retentionMillis.
+	ByteBuffer claim(int maxPacketLength, long now)
 	{
-		if (this.elementCount == this.cacheSize)
+		PacketSegment segment = getTailSegment();
+		if (segment == null || !segment.hasRoom(maxPacketLength))
 		{
-			this.cache[this.headIndex] = packetBytes;
-			this.headIndex = getIndex(this.headIndex + 1);
-			this.tailIndex = getIndex(this.tailIndex + 1);
-			this.headSequenceNumber = (sequenceNumber - this.cacheSize + 1L);
+			segment = nextSegment(now);
 		}
-		else if (this.elementCount++ == 0)
+		return segment.claim(maxPacketLength);
+	}
+
+	// Records the claimed packet, packetBuffer must be the claimed buffer flipped around the packet
+	void commit(ByteBuffer packetBuffer, long sequenceNumber)
+	{
+		getTailSegment().commit(sequenceNumber, packetBuffer.remaining());
+		packetAdded(sequenceNumber);
+	}
+
+	void add(ByteBuffer packetBuffer, long sequenceNumber, long now)
+	{
+		PacketSegment segment = getTailSegment();
+		if (segment == null || !segment.hasRoom(packetBuffer.remaining()))
 		{
-			this.cache[this.tailIndex] = packetBytes;
-			this.headSequenceNumber = sequenceNumber;
+			segment = nextSegment(now);
 		}
-		else
+		segment.append(packetBuffer, sequenceNumber);
+		packetAdded(sequenceNumber);
+	}
+
+	void add(byte[] packetBytes, long sequenceNumber, long now)
+	{
+		add(ByteBuffer.wrap(packetBytes), sequenceNumber, now);
+	}
+
+	private void packetAdded(long sequenceNumber)
+	{
+		if (this.headSequenceNumber == 0) this.headSequenceNumber = sequenceNumber;
+		this.tailSequenceNumber = sequenceNumber;
+		if (this.tailSequenceNumber - this.headSequenceNumber >= this.cacheSize)
 		{
-			int nextIndex = getIndex(this.tailIndex + 1);
-			this.cache[nextIndex] = packetBytes;
-			this.tailIndex = nextIndex;
+			this.headSequenceNumber = this.tailSequenceNumber - this.cacheSize + 1;
 		}
+	}
 
-		this.tailSequenceNumber = sequenceNumber;
+	private PacketSegment nextSegment(long now)
+	{
+		PacketSegment tailSegment = getTailSegment();
+		if (tailSegment != null && tailSegment.isEmpty()) return tailSegment;
+
+		expireSegments(now);
+		PacketSegment segment = (this.segmentCount < this.segments.length) ? this.segmentPool.acquire(this) : null;
+		if (segment == null) segment = removeHeadSegment();
+		segment.reset();
+
+		int tailIndex = getIndex(this.headSegmentIndex + this.segmentCount);
+		this.segments[tailIndex] = segment;
+		this.segmentOpenTimes[tailIndex] = now;
+		this.segmentCount++;
+		this.activity++;
+		return segment;
+	}
+
+	// Called by selectorThread on a timer, so an idle cache gives up its old segments too. The tail segment is kept however old it is.
+	void expire(long now)
+	{
+		expireSegments(now);
+	}
+
+	// A segment has expired once the segment after it was opened more than retentionMillis ago, since every packet in it is at least that old
+	private void expireSegments(long now)
+	{
+		if (this.retentionMillis <= 0) return;
+		while (this.segmentCount > 1 && now - this.segmentOpenTimes[getIndex(this.headSegmentIndex + 1)] > this.retentionMillis)
+		{
+			evictHeadSegment();
+		}
+	}
+
+	// Called by the segmentPool to reclaim memory for another cache, never gives up the tail segment
+	boolean evictHeadSegment()
+	{
+		if (this.segmentCount <= 1) return false;
+		this.segmentPool.release(removeHeadSegment());
+		return true;
+	}
+
+	private PacketSegment removeHeadSegment()
+	{
+		PacketSegment evictedSegment = this.segments[this.headSegmentIndex];
+		if (!evictedSegment.isEmpty())
+		{
+			this.headSequenceNumber = Math.max(this.headSequenceNumber, evictedSegment.getLastSequenceNumber() + 1);
+		}
+		this.segments[this.headSegmentIndex] = null;
+		this.headSegmentIndex = getIndex(this.headSegmentIndex + 1);
+		this.segmentCount--;
+		return evictedSegment;
+	}
+
+	private PacketSegment getTailSegment()
+	{
+		if (this.segmentCount == 0) return null;
+		return this.segments[getIndex(this.headSegmentIndex + this.segmentCount - 1)];
 	}
 
 	private int getIndex(int index)
 	{
-		if (index < 0) return index + this.cacheSize;
-		return index % this.cacheSize;
+		return index % this.segments.length;
 	}
 
-	Pair<List<byte[]>, Long> getCachedPackets(long firstSequenceNumberRequested, long lastSequenceNumberRequested)
+	// Clamps the requested range to what is cached, returns first and last sequenceNumber or null if none of it is cached
+	Pair<Long, Long> getCachedRange(long firstSequenceNumberRequested, long lastSequenceNumberRequested, long now)
 	{
 		if (firstSequenceNumberRequested == 0L) return null;
 		if (lastSequenceNumberRequested == 0L) return null;
+		if (this.tailSequenceNumber == 0L) return null;
 
-		int distanceFirstFromHead = (int) (firstSequenceNumberRequested - this.headSequenceNumber);
-		int distanceLastFromTail = (int) (this.tailSequenceNumber - lastSequenceNumberRequested);
-
-		if ((lastSequenceNumberRequested < this.headSequenceNumber) || (firstSequenceNumberRequested > this.tailSequenceNumber)) return null;
-		if (distanceFirstFromHead >= this.elementCount) return null;
-		if (distanceLastFromTail >= this.elementCount) return null;
-		int firstIndex = getIndex(this.headIndex + (distanceFirstFromHead < 0 ? 0 : distanceFirstFromHead));
-		int lastIndex = getIndex(this.tailIndex - (distanceLastFromTail < 0 ? 0 : distanceLastFromTail));
+		expireSegments(now);
+		long firstSequenceNumber = Math.max(firstSequenceNumberRequested, this.headSequenceNumber);
+		long lastSequenceNumber = Math.min(lastSequenceNumberRequested, this.tailSequenceNumber);
+		recordRecoveryDepth(firstSequenceNumberRequested);
+		if (firstSequenceNumber > lastSequenceNumber) return null;
+		return new Pair<Long, Long>(Long.valueOf(firstSequenceNumber), Long.valueOf(lastSequenceNumber));
+	}
 
-		List<byte[]> packets = new LinkedList<byte[]>();
+	// Segment holding the packet, or null once the packet has been overwritten
+	PacketSegment getSegment(long sequenceNumber)
+	{
+		if (!isIntact(sequenceNumber)) return null;
+		return this.segments[findSegmentIndex(sequenceNumber)];
+	}
 
-		if (lastIndex < firstIndex)
+	// Depth in segments back from the tail, a request older than the head counts as one segment deeper than the whole cache
+	private void recordRecoveryDepth(long firstSequenceNumberRequested)
+	{
+		int depth;
+		if (this.segmentCount == 0 || firstSequenceNumberRequested < this.headSequenceNumber)
 		{
-			for (int i = firstIndex; i < this.cacheSize; i++)
-			{
-				byte[] packet = this.cache[i];
-				packets.add(packet);
-			}
-
-			for (int i = 0; i <= lastIndex; i++)
-			{
-				byte[] packet = this.cache[i];
-				packets.add(packet);
-			}
-
+			depth = this.segmentCount + 1;
 		}
 		else
 		{
-			for (int i = firstIndex; i <= lastIndex; i++)
+			depth = this.segmentCount - getIndex(findSegmentIndex(firstSequenceNumberRequested) - this.headSegmentIndex + this.segments.length);
+		}
+		this.recoveryDepth = Math.max(this.recoveryDepth, depth);
+	}
+
+	private int findSegmentIndex(long sequenceNumber)
+	{
+		int low = 0;
+		int high = this.segmentCount - 1;
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			PacketSegment segment = this.segments[getIndex(this.headSegmentIndex + mid)];
+			if (!segment.isEmpty() && segment.getFirstSequenceNumber() <= sequenceNumber)
 			{
-				byte[] packet = this.cache[i];
-				packets.add(packet);
+				low = mid;
+			}
+			else
+			{
+				high = mid - 1;
 			}
 		}
-		return new Pair<List<byte[]>, Long>(packets, Long.valueOf(getSequenceNumberOfIndex(firstIndex)));
+		return getIndex(this.headSegmentIndex + low);
+	}
+
+	// True while the bytes of the packet have not been overwritten by newer packets
+	boolean isIntact(long sequenceNumber)
+	{
+		if (this.segmentCount == 0) return false;
+		PacketSegment headSegment = this.segments[this.headSegmentIndex];
+		return !headSegment.isEmpty() && sequenceNumber >= headSegment.getFirstSequenceNumber() && sequenceNumber <= this.tailSequenceNumber;
+	}
+
+	// Relative claim on the segmentPool, decays so that old bursts and recoveries stop counting
+	double getDemand()
+	{
+		return 1 + this.activity + this.recoveryDepth;
+	}
+
+	void decayDemand()
+	{
+		this.activity /= 2;
+		this.recoveryDepth /= 2;
 	}
 
-	long getSequenceNumberOfIndex(int index)
+	long getRetentionMillis()
 	{
-		if ((this.elementCount < this.cacheSize) && (index > this.elementCount - 1)) return 0L;
-		if (index == this.headIndex) return this.headSequenceNumber;
-		if (index == this.tailIndex) return this.tailSequenceNumber;
+		return this.retentionMillis;
+	}
 
-		int distanceFromHead = index - this.headIndex;
-		if (distanceFromHead < 0) return this.headSequenceNumber + this.cacheSize + distanceFromHead;
-		return this.headSequenceNumber + distanceFromHead;
+	int getSegmentCount()
+	{
+		return this.segmentCount;
+	}
+
+	long getHeadSequenceNumber()
+	{
+		return this.headSequenceNumber;
+	}
+
+	long getTailSequenceNumber()
+	{
+		return this.tailSequenceNumber;
+	}
+
+	void close()
+	{
+		this.segmentPool.unregister(this);
+		while (this.segmentCount > 0)
+		{
+			this.segmentPool.release(removeHeadSegment());
+		}
 	}
 }
@@ -0,0 +1,82 @@
+package com.clearpool.panda.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// PacketCache whose segments are memory-mapped files, so recovery depth is bounded by disk rather than heap. Only touched by the selectorThread.
+class PacketJournal extends PacketCache
+{
+	private static final Logger LOGGER = Logger.getLogger(PacketJournal.class.getName());
+
+	private final MappedSegmentPool segmentPool;
+
+	PacketJournal(String multicastGroup, File directory, long retentionBytes, long retentionMillis, int segmentSize) throws IOException
+	{
+		this(new MappedSegmentPool(multicastGroup, directory, retentionBytes, segmentSize), retentionMillis);
+	}
+
+	private PacketJournal(MappedSegmentPool segmentPool, long retentionMillis)
+	{
+		super(Integer.MAX_VALUE, segmentPool.getCapacity(), retentionMillis, segmentPool);
+		this.segmentPool = segmentPool;
+	}
+
+	@Override
+	void close()
+	{
+		super.close();
+		this.segmentPool.close();
+	}
+
+	// Segment files are created on first use and reused once the journal wraps
+	private static class MappedSegmentPool extends PacketSegmentPool
+	{
+		private static final String FILE_SUFFIX = ".journal";
+
+		private final File directory;
+		private final String filePrefix;
+		private final List<FileChannel> fileChannels;
+
+		MappedSegmentPool(String multicastGroup, File directory, long retentionBytes, int segmentSize) throws IOException
+		{
+			super(Math.max(MIN_SEGMENT_COUNT * (long) segmentSize, retentionBytes), segmentSize);
+			this.directory = directory;
+			this.filePrefix = multicastGroup.replaceAll("[^A-Za-z0-9.]", "_") + "-";
+			this.fileChannels = new ArrayList<FileChannel>();
+
+			if (!this.directory.isDirectory() && !this.directory.mkdirs()) throw new IOException("Unable to create journal directory=" + this.directory);
+		}
+
+		@Override
+		PacketSegment allocateSegment(int index) throws IOException
+		{
+			File file = new File(this.directory, this.filePrefix + index + FILE_SUFFIX);
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			randomAccessFile.setLength(getSegmentSize());
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			this.fileChannels.add(fileChannel);
+			LOGGER.info("Mapped journal segment " + file + " size=" + getSegmentSize());
+			return new PacketSegment(fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, getSegmentSize()), fileChannel);
+		}
+
+		void close()
+		{
+			for (FileChannel fileChannel : this.fileChannels)
+			{
+				try
+				{
+					fileChannel.close();
+				}
+				catch (IOException e)
+				{
+					LOGGER.warning("Unable to close journal segment - " + e.getMessage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Holds consecutive packets as [length][packet] records in a fixed size buffer. Only touched by the selectorThread.
+class PacketSegment
+{
+	static final int RECORD_HEADER_SIZE = PandaUtils.RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE;
+	private static final int INITIAL_INDEX_SIZE = 64;
+
+	private final ByteBuffer buffer;
+	private final FileChannel fileChannel;
+
+	private int[] recordOffsets;
+	private int packetCount;
+	private int writeOffset;
+	private long firstSequenceNumber;
+
+	PacketSegment(ByteBuffer buffer)
+	{
+		this(buffer, null);
+	}
+
+	// fileChannel is the file the buffer is mapped from, starting at position 0
+	PacketSegment(ByteBuffer buffer, FileChannel fileChannel)
+	{
+		this.buffer = buffer;
+		this.fileChannel = fileChannel;
+		this.recordOffsets = new int[INITIAL_INDEX_SIZE];
+		this.packetCount = 0;
+		this.writeOffset = 0;
+		this.firstSequenceNumber = 0;
+	}
+
+	void reset()
+	{
+		this.packetCount = 0;
+		this.writeOffset = 0;
+		this.firstSequenceNumber = 0;
+	}
+
+	boolean hasRoom(int maxPacketLength)
+	{
+		return this.buffer.capacity() - this.writeOffset >= RECORD_HEADER_SIZE + maxPacketLength;
+	}
+
+	// Returns the segment buffer positioned where the next packet should be written
+	ByteBuffer claim(int maxPacketLength)
+	{
+		this.buffer.limit(this.writeOffset + RECORD_HEADER_SIZE + maxPacketLength);
+		this.buffer.position(this.writeOffset + RECORD_HEADER_SIZE);
+		return this.buffer;
+	}
+
+	// Records the packet written since claim and leaves the segment buffer positioned on it
+	void commit(long sequenceNumber, int packetLength)
+	{
+		if (this.packetCount == 0) this.firstSequenceNumber = sequenceNumber;
+		if (this.packetCount == this.recordOffsets.length)
+		{
+			int[] newRecordOffsets = new int[this.recordOffsets.length << 1];
+			System.arraycopy(this.recordOffsets, 0, newRecordOffsets, 0, this.packetCount);
+			this.recordOffsets = newRecordOffsets;
+		}
+		this.buffer.putInt(this.writeOffset, packetLength);
+		this.recordOffsets[this.packetCount++] = this.writeOffset;
+		this.buffer.limit(this.writeOffset + RECORD_HEADER_SIZE + packetLength);
+		this.buffer.position(this.writeOffset + RECORD_HEADER_SIZE);
+		this.writeOffset += RECORD_HEADER_SIZE + packetLength;
+	}
+
+	void append(ByteBuffer packetBuffer, long sequenceNumber)
+	{
+		int packetLength = packetBuffer.remaining();
+		int packetPosition = packetBuffer.position();
+		claim(packetLength).put(packetBuffer);
+		packetBuffer.position(packetPosition);
+		commit(sequenceNumber, packetLength);
+	}
+
+	// View of the packet, without its record header
+	ByteBuffer getPacket(long sequenceNumber)
+	{
+		int recordOffset = this.recordOffsets[(int) (sequenceNumber - this.firstSequenceNumber)];
+		ByteBuffer packetBuffer = this.buffer.duplicate();
+		packetBuffer.limit(recordOffset + RECORD_HEADER_SIZE + this.buffer.getInt(recordOffset));
+		packetBuffer.position(recordOffset + RECORD_HEADER_SIZE);
+		return packetBuffer;
+	}
+
+	// View of the consecutive records from first to last sequenceNumber, laid out exactly as they are sent in a gap response
+	ByteBuffer getRecords(long firstSequenceNumber, long lastSequenceNumber)
+	{
+		int lastRecordOffset = this.recordOffsets[(int) (lastSequenceNumber - this.firstSequenceNumber)];
+		ByteBuffer recordsBuffer = this.buffer.duplicate();
+		recordsBuffer.limit(lastRecordOffset + RECORD_HEADER_SIZE + this.buffer.getInt(lastRecordOffset));
+		recordsBuffer.position(this.recordOffsets[(int) (firstSequenceNumber - this.firstSequenceNumber)]);
+		return recordsBuffer;
+	}
+
+	boolean isEmpty()
+	{
+		return this.packetCount == 0;
+	}
+
+	long getFirstSequenceNumber()
+	{
+		return this.firstSequenceNumber;
+	}
+
+	long getLastSequenceNumber()
+	{
+		return this.firstSequenceNumber + this.packetCount - 1;
+	}
+
+	FileChannel getFileChannel()
+	{
+		return this.fileChannel;
+	}
+}
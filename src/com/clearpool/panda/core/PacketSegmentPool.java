@@ -0,0 +1,157 @@
+package com.clearpool.panda.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+// Hands out fixed size segments to PacketCaches within a byte budget. When the budget is used up, the segment is reclaimed from the cache holding the most segments
+// relative to its demand, where demand grows with how fast the cache fills and how deep its gap requests reach. Only touched by the selectorThread.
+class PacketSegmentPool
+{
+	private static final Logger LOGGER = Logger.getLogger(PacketSegmentPool.class.getName());
+
+	private final int segmentSize;
+	private final int capacity;
+	private final ArrayDeque<PacketSegment> freeSegments;
+	private final List<PacketCache> caches;
+
+	private int allocatedSegments;
+	private int reclaimsSinceDecay;
+
+	PacketSegmentPool(long budgetBytes, int segmentSize)
+	{
+		this.segmentSize = segmentSize;
+		this.capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budgetBytes / segmentSize));
+		this.freeSegments = new ArrayDeque<PacketSegment>();
+		this.caches = new CopyOnWriteArrayList<PacketCache>();
+
+		this.allocatedSegments = 0;
+		this.reclaimsSinceDecay = 0;
+	}
+
+	// Private pool with every segment allocated up front from as few direct buffers as possible
+	static PacketSegmentPool createPreallocated(int segmentCount)
+	{
+		int segmentSize = PandaUtils.PACKET_CACHE_SEGMENT_SIZE;
+		PacketSegmentPool pool = new PacketSegmentPool((long) segmentCount * segmentSize, segmentSize);
+		int segmentsPerRegion = Integer.MAX_VALUE / segmentSize;
+		ByteBuffer region = null;
+		for (int i = 0; i < segmentCount; i++)
+		{
+			if (i % segmentsPerRegion == 0)
+			{
+				region = ByteBuffer.allocateDirect(Math.min(segmentsPerRegion, segmentCount - i) * segmentSize);
+			}
+			region.limit(region.position() + segmentSize);
+			pool.freeSegments.add(new PacketSegment(region.slice()));
+			region.position(region.limit());
+		}
+		pool.allocatedSegments = segmentCount;
+		return pool;
+	}
+
+	void register(PacketCache cache)
+	{
+		this.caches.add(cache);
+	}
+
+	void unregister(PacketCache cache)
+	{
+		this.caches.remove(cache);
+	}
+
+	// Returns null when the requester itself should give up its oldest segment
+	PacketSegment acquire(PacketCache requester)
+	{
+		PacketSegment segment = this.freeSegments.poll();
+		if (segment != null) return segment;
+		if (this.allocatedSegments < this.capacity) return allocate();
+
+		PacketCache victim = selectVictim(requester);
+		if (victim == requester) return null;
+		if (victim != null && victim.evictHeadSegment())
+		{
+			return this.freeSegments.poll();
+		}
+		LOGGER.warning("PacketSegmentPool budget of " + this.capacity + " segments exhausted, allocating beyond budget");
+		return allocate();
+	}
+
+	private PacketSegment allocate()
+	{
+		try
+		{
+			PacketSegment segment = allocateSegment(this.allocatedSegments);
+			this.allocatedSegments++;
+			return segment;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to allocate packet segment " + this.allocatedSegments, e);
+		}
+	}
+
+	@SuppressWarnings("unused")
+	PacketSegment allocateSegment(int index) throws IOException
+	{
+		return new PacketSegment(ByteBuffer.allocateDirect(this.segmentSize));
+	}
+
+	private PacketCache selectVictim(PacketCache requester)
+	{
+		if (++this.reclaimsSinceDecay >= this.capacity)
+		{
+			this.reclaimsSinceDecay = 0;
+			for (PacketCache cache : this.caches)
+			{
+				cache.decayDemand();
+			}
+		}
+
+		PacketCache victim = null;
+		double victimScore = 0;
+		for (PacketCache cache : this.caches)
+		{
+			int segmentCount = cache.getSegmentCount();
+			if (cache == requester)
+			{
+				if (segmentCount == 0) continue;
+				segmentCount++;
+			}
+			else if (segmentCount <= 1)
+			{
+				continue;
+			}
+			double score = segmentCount / cache.getDemand();
+			if (victim == null || score > victimScore)
+			{
+				victim = cache;
+				victimScore = score;
+			}
+		}
+		return victim;
+	}
+
+	void release(PacketSegment segment)
+	{
+		this.freeSegments.add(segment);
+	}
+
+	int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	int getSegmentSize()
+	{
+		return this.segmentSize;
+	}
+
+	int getAllocatedSegments()
+	{
+		return this.allocatedSegments;
+	}
+}
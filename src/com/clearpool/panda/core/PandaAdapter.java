@@ -6,6 +6,7 @@ import java.net.StandardProtocolFamily;
 import java.net.StandardSocketOptions;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,7 +23,7 @@ public class PandaAdapter
 	public static final Map<String, PandaAdapter> ALL_PANDA_ADAPTERS = Collections.synchronizedMap(new HashMap<String, PandaAdapter>());
 
 	private final String name;
-	private final SelectorThread selectorThread;
+	private final SelectorThread[] selectorThreads;
 	private final Receiver receiver;
 	private final Sender sender;
 
@@ -35,11 +36,27 @@ public class PandaAdapter
 	{
 		this.name = name;
 		properties = (properties == null) ? new PandaProperties() : properties;
-		this.selectorThread = new SelectorThread(properties);
-		Pair<ServerSocketChannel, DatagramChannel> channelSocketPair = initChannelPair(this.name);
-		this.receiver = new Receiver(this.selectorThread, channelSocketPair.getA().socket().getLocalPort(), properties);
-		this.sender = new Sender(this.selectorThread, channelSocketPair.getA(), channelSocketPair.getB(), cacheSize, properties);
-		this.selectorThread.start();
+
+		// Each selectorThread owns its own groups and its own port, so gap requests for a group reach the thread that sent it
+		int selectorThreadCount = (int) Math.max(1, properties.getLongProperty(PandaProperties.SELECTOR_THREADS, 1));
+		this.selectorThreads = new SelectorThread[selectorThreadCount];
+		ServerSocketChannel[] tcpChannels = new ServerSocketChannel[selectorThreadCount];
+		DatagramChannel[] udpChannels = new DatagramChannel[selectorThreadCount];
+		int[] bindPorts = new int[selectorThreadCount];
+		for (int i = 0; i < selectorThreadCount; i++)
+		{
+			this.selectorThreads[i] = new SelectorThread(properties, i);
+			Pair<ServerSocketChannel, DatagramChannel> channelSocketPair = initChannelPair(this.name);
+			tcpChannels[i] = channelSocketPair.getA();
+			udpChannels[i] = channelSocketPair.getB();
+			bindPorts[i] = tcpChannels[i].socket().getLocalPort();
+		}
+		this.receiver = new Receiver(this.selectorThreads, bindPorts, properties);
+		this.sender = new Sender(this.selectorThreads, tcpChannels, udpChannels, cacheSize, properties);
+		for (SelectorThread selectorThread : this.selectorThreads)
+		{
+			selectorThread.start();
+		}
 		registerPandaAdapter();
 	}
 
@@ -84,6 +101,23 @@ public class PandaAdapter
 		this.sender.send(topic, ip, port, multicastGroup, interfaceIp, bytes);
 	}
 
+	public Publication createPublication(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp) throws Exception
+	{
+		if (multicastGroup == null) multicastGroup = PandaUtils.getMulticastGroup(ip, port);
+		return this.sender.createPublication(topic, ip, port, multicastGroup, interfaceIp);
+	}
+
+	public void send(Publication publication, byte[] bytes) throws Exception
+	{
+		this.sender.send(publication, bytes);
+	}
+
+	// Returns null when the publication is back-pressured. The claim must be committed or aborted by the calling thread before the next claim on the same publication.
+	public BufferClaim tryClaim(Publication publication, int length) throws Exception
+	{
+		return this.sender.tryClaim(publication, length);
+	}
+
 	// Skipping will only work at the ip/port level.
 	public PandaDataListener subscribe(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaDataListener listener, int recvBufferSize,
 			boolean skipGaps)
@@ -92,6 +126,84 @@ public class PandaAdapter
 		return this.receiver.subscribe(topic, ip, port, multicastGroup, interfaceIp, listener, recvBufferSize, skipGaps);
 	}
 
+	// Same as subscribe with a PandaDataListener, but the listener is handed views over the received packets instead of a copy of each message
+	public PandaMessageListener subscribeMessages(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaMessageListener listener,
+			int recvBufferSize, boolean skipGaps)
+	{
+		if (multicastGroup == null) multicastGroup = PandaUtils.getMulticastGroup(ip, port);
+		return this.receiver.subscribeMessages(topic, ip, port, multicastGroup, interfaceIp, listener, recvBufferSize, skipGaps);
+	}
+
+	// Subscribes the listener to all topics at once, they start delivering together. Never waits on the thread delivering the group.
+	public void subscribe(Collection<String> topics, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaDataListener listener, int recvBufferSize,
+			boolean skipGaps)
+	{
+		if (listener == null) return;
+		subscribeMessages(topics, ip, port, multicastGroup, interfaceIp, new CopyingMessageListener(listener), recvBufferSize, skipGaps);
+	}
+
+	public void subscribeMessages(Collection<String> topics, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaMessageListener listener,
+			int recvBufferSize, boolean skipGaps)
+	{
+		if (multicastGroup == null) multicastGroup = PandaUtils.getMulticastGroup(ip, port);
+		this.receiver.subscribeMessages(topics, ip, port, multicastGroup, interfaceIp, listener, recvBufferSize, skipGaps);
+	}
+
+	// Returns true if the listener was subscribed to the topic
+	public boolean unsubscribe(String topic, String ip, int port, String multicastGroup, PandaDataListener listener)
+	{
+		return unsubscribe(Collections.singleton(topic), ip, port, multicastGroup, listener);
+	}
+
+	public boolean unsubscribeMessages(String topic, String ip, int port, String multicastGroup, PandaMessageListener listener)
+	{
+		return unsubscribeMessages(Collections.singleton(topic), ip, port, multicastGroup, listener);
+	}
+
+	// Returns true if the listener was subscribed to any of the topics
+	public boolean unsubscribe(Collection<String> topics, String ip, int port, String multicastGroup, PandaDataListener listener)
+	{
+		if (listener == null) return false;
+		return unsubscribeMessages(topics, ip, port, multicastGroup, new CopyingMessageListener(listener));
+	}
+
+	public boolean unsubscribeMessages(Collection<String> topics, String ip, int port, String multicastGroup, PandaMessageListener listener)
+	{
+		if (multicastGroup == null) multicastGroup = PandaUtils.getMulticastGroup(ip, port);
+		return this.receiver.unsubscribeMessages(topics, multicastGroup, listener);
+	}
+
+	// Every listener on the topic goes. Returns true if the topic had listeners. The group is left once no topic has listeners.
+	public boolean unsubscribe(String topic, String multicastGroup)
+	{
+		return unsubscribe(Collections.singleton(topic), multicastGroup);
+	}
+
+	public boolean unsubscribe(Collection<String> topics, String multicastGroup)
+	{
+		return this.receiver.unsubscribe(topics, multicastGroup);
+	}
+
+	// Stops receiving the group whatever is still subscribed to it: the membership is dropped, its channels closed and the state of its sources freed. Subscribing again
+	// joins it anew. Returns false if the group was not joined.
+	public boolean leaveGroup(String multicastGroup)
+	{
+		return this.receiver.leaveGroup(multicastGroup);
+	}
+
+	// The kernel stops delivering the sender's packets on the group, and its repairs. On a group joined for MULTICAST_SOURCES the source's membership is dropped. Returns
+	// false if the group was not joined.
+	public boolean blockSource(String multicastGroup, InetAddress source)
+	{
+		return this.receiver.filterSource(multicastGroup, source, true);
+	}
+
+	// Undoes blockSource. A source not in MULTICAST_SOURCES of a group joined for them stays filtered.
+	public boolean unblockSource(String multicastGroup, InetAddress source)
+	{
+		return this.receiver.filterSource(multicastGroup, source, false);
+	}
+
 	public void recordStats(MetricRegistry metricsRegistry)
 	{
 		this.receiver.recordStats(metricsRegistry, this.name);
@@ -102,4 +214,9 @@ public class PandaAdapter
 	{
 		return this.receiver;
 	}
+
+	SelectorThread[] getSelectorThreads()
+	{
+		return this.selectorThreads;
+	}
 }
\ No newline at end of file
@@ -11,5 +11,7 @@ public enum PandaErrorCode
 	RETRANSMISSION_RESPONSE_PARTIAL,
 	RETRANSMISSION_RESPONSE_NONE,
 	RETRANSMISSION_DISABLED,
+	PACKET_LOSS_REORDER_BUFFER_OVERFLOW,
+	PACKET_LOSS_NOT_CACHED,
 	NONE;
 }
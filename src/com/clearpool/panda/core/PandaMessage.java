@@ -0,0 +1,64 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+
+// A message as a read-only view over the packet buffer it arrived in, only valid during PandaMessageListener.receivedPandaMessage. The topic is the String the listener
+// subscribed with, so it can be compared by reference. For a wildcard subscription it is the topic the message was sent on, decoded once and reused for later messages.
+public final class PandaMessage
+{
+	private String topic;
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	PandaMessage()
+	{
+		this.topic = null;
+		this.buffer = null;
+		this.offset = 0;
+		this.length = 0;
+	}
+
+	// Called by the thread that calls the listeners
+	void set(String messageTopic, ByteBuffer readOnlyBuffer, int messageOffset, int messageLength)
+	{
+		this.topic = messageTopic;
+		this.buffer = readOnlyBuffer;
+		this.offset = messageOffset;
+		this.length = messageLength;
+		readOnlyBuffer.limit(messageOffset + messageLength);
+		readOnlyBuffer.position(messageOffset);
+	}
+
+	public String getTopic()
+	{
+		return this.topic;
+	}
+
+	// Positioned at the first payload byte with the limit after the last one. The bytes around the payload belong to the rest of the packet.
+	public ByteBuffer getBuffer()
+	{
+		return this.buffer;
+	}
+
+	public int getOffset()
+	{
+		return this.offset;
+	}
+
+	public int getLength()
+	{
+		return this.length;
+	}
+
+	// Copies the payload, for listeners that keep it beyond the call
+	public byte[] getBytes()
+	{
+		byte[] bytes = new byte[this.length];
+		this.buffer.limit(this.offset + this.length);
+		this.buffer.position(this.offset);
+		this.buffer.get(bytes);
+		this.buffer.position(this.offset);
+		return bytes;
+	}
+}
@@ -0,0 +1,10 @@
+package com.clearpool.panda.core;
+
+// Receives each message as a view over the packet it arrived in, without copying it. The message and its buffer are reused for the next message, so anything that is
+// needed after the call returns has to be copied out.
+public interface PandaMessageListener
+{
+	void receivedPandaMessage(PandaMessage message);
+
+	void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable);
+}
@@ -5,9 +5,31 @@ import java.util.Map;
 
 public class PandaProperties
 {
-	public static final String PEG_SELECTOR_START_TIME = "PEG_SELECTOR_START_TIME";
-	public static final String PEG_SELECTOR_END_TIME = "PEG_SELECTOR_END_TIME";
+	public static final String IDLE_STRATEGY = "IDLE_STRATEGY";
 	public static final String MAINTAIN_DETAILED_STATS = "MAINTAIN_DETAILED_STATS";
+	public static final String SELECTOR_ACTION_QUEUE_SIZE = "SELECTOR_ACTION_QUEUE_SIZE";
+	public static final String PACKET_CACHE_BYTES = "PACKET_CACHE_BYTES";
+	public static final String PACKET_CACHE_MILLIS = "PACKET_CACHE_MILLIS";
+	public static final String PACKET_CACHE_BUDGET_BYTES = "PACKET_CACHE_BUDGET_BYTES";
+	public static final String JOURNAL_DIRECTORY = "JOURNAL_DIRECTORY";
+	public static final String JOURNAL_RETENTION_BYTES = "JOURNAL_RETENTION_BYTES";
+	public static final String JOURNAL_RETENTION_MILLIS = "JOURNAL_RETENTION_MILLIS";
+	public static final String JOURNAL_SEGMENT_SIZE = "JOURNAL_SEGMENT_SIZE";
+	public static final String REPAIR_PORT_OFFSET = "REPAIR_PORT_OFFSET";
+	public static final String REPAIR_NAK_BACKOFF_MILLIS = "REPAIR_NAK_BACKOFF_MILLIS";
+	public static final String REPAIR_SUPPRESSION_MILLIS = "REPAIR_SUPPRESSION_MILLIS";
+	public static final String FEC_BLOCK_SIZE = "FEC_BLOCK_SIZE";
+	public static final String REORDER_BUFFER_BYTES = "REORDER_BUFFER_BYTES";
+	public static final String OUT_OF_ORDER_PACKET_THRESHOLD = "OUT_OF_ORDER_PACKET_THRESHOLD";
+	public static final String NAK_DELAY_MILLIS = "NAK_DELAY_MILLIS";
+	public static final String GAP_GIVEUP_MILLIS = "GAP_GIVEUP_MILLIS";
+	public static final String GAP_REQUEST_FAILURE_THRESHOLD = "GAP_REQUEST_FAILURE_THRESHOLD";
+	public static final String HEARTBEAT_INTERVAL_MILLIS = "HEARTBEAT_INTERVAL_MILLIS";
+	public static final String DELIVERY_THREADS = "DELIVERY_THREADS";
+	public static final String SELECTOR_THREADS = "SELECTOR_THREADS";
+	public static final String SELECTOR_THREAD_INDEX = "SELECTOR_THREAD_INDEX";
+	public static final String RECEIVE_RING_BYTES = "RECEIVE_RING_BYTES";
+	public static final String MULTICAST_SOURCES = "MULTICAST_SOURCES";
 
 	private final Map<String, String> props;
 
@@ -37,6 +59,25 @@ public class PandaProperties
 		return Long.valueOf(value).longValue();
 	}
 
+	// Looks up property.scope first, so a setting can be overridden for a single multicast group
+	public long getLongProperty(String property, String scope, long defaultValue)
+	{
+		return getLongProperty(property + "." + scope, getLongProperty(property, defaultValue));
+	}
+
+	public String getStringProperty(String property, String defaultValue)
+	{
+		String value = this.props.get(property);
+		if (value == null) return defaultValue;
+		return value;
+	}
+
+	// Looks up property.scope first, as for long properties
+	public String getStringProperty(String property, String scope, String defaultValue)
+	{
+		return getStringProperty(property + "." + scope, getStringProperty(property, defaultValue));
+	}
+
 	public boolean getBooleanProperty(String property, boolean defaultValue)
 	{
 		String value = this.props.get(property);
@@ -47,6 +47,28 @@ public class PandaReceiveMgmtMBean
 		return packetsLost.toArray(ret);
 	}
 
+	public static String[] getPacketsRecovered()
+	{
+		List<String> packetsRecovered = new LinkedList<>();
+		for (PandaAdapter adapter : PandaAdapter.ALL_PANDA_ADAPTERS.values())
+		{
+			Receiver receiver = adapter.getReceiver();
+			for (ChannelReceiveInfo receiveInfo : receiver.getChannelReceiveInfos().values())
+			{
+				for (ChannelReceiveSequencer sequencer : receiveInfo.getSourceInfos().values())
+				{
+					if (sequencer.getPacketsRecoveredByFec() > 0 || sequencer.getPacketsRecoveredByRetransmission() > 0)
+					{
+						packetsRecovered.add("Source=" + sequencer.getKey() + " + Group=" + receiveInfo.getMulticastGroup() + " - fec=" + sequencer.getPacketsRecoveredByFec()
+								+ " retransmission=" + sequencer.getPacketsRecoveredByRetransmission());
+					}
+				}
+			}
+		}
+		String[] ret = new String[packetsRecovered.size()];
+		return packetsRecovered.toArray(ret);
+	}
+
 	public static String[] getQueueSize()
 	{
 		List<String> queueSize = new LinkedList<>();
@@ -83,6 +105,62 @@ public class PandaReceiveMgmtMBean
 		return lastSequenceNumbers.toArray(ret);
 	}
 
+	// Last sequenceNumber and cached range the source advertised in its latest heartbeat
+	public static String[] getSourceHeartbeats()
+	{
+		List<String> sourceHeartbeats = new LinkedList<>();
+		for (PandaAdapter adapter : PandaAdapter.ALL_PANDA_ADAPTERS.values())
+		{
+			Receiver receiver = adapter.getReceiver();
+			for (ChannelReceiveInfo receiveInfo : receiver.getChannelReceiveInfos().values())
+			{
+				for (ChannelReceiveSequencer sequencer : receiveInfo.getSourceInfos().values())
+				{
+					sourceHeartbeats.add("Source=" + sequencer.getKey() + " + Group=" + receiveInfo.getMulticastGroup() + " - sequenceNumber=" + sequencer.getAdvertisedSequenceNumber()
+							+ " cacheHead=" + sequencer.getSourceCacheHeadSequenceNumber() + " cacheTail=" + sequencer.getSourceCacheTailSequenceNumber());
+				}
+			}
+		}
+		String[] ret = new String[sourceHeartbeats.size()];
+		return sourceHeartbeats.toArray(ret);
+	}
+
+	// Bytes waiting in the ring of each deliveryThread, and the most ever waiting
+	public static String[] getReceiveRingOccupancy()
+	{
+		List<String> ringOccupancy = new LinkedList<>();
+		for (PandaAdapter adapter : PandaAdapter.ALL_PANDA_ADAPTERS.values())
+		{
+			for (DeliveryThread deliveryThread : adapter.getReceiver().getDeliveryThreads())
+			{
+				ringOccupancy.add("Thread=" + deliveryThread.getName() + " - bytesUsed=" + deliveryThread.getRingBytesUsed() + " maxBytesUsed="
+						+ deliveryThread.getRingMaxBytesUsed() + " capacity=" + deliveryThread.getRingCapacity() + " ringFull=" + deliveryThread.getRingFullCount());
+			}
+		}
+		String[] ret = new String[ringOccupancy.size()];
+		return ringOccupancy.toArray(ret);
+	}
+
+	public static String[] getGapThresholds()
+	{
+		List<String> gapThresholds = new LinkedList<>();
+		for (PandaAdapter adapter : PandaAdapter.ALL_PANDA_ADAPTERS.values())
+		{
+			Receiver receiver = adapter.getReceiver();
+			for (ChannelReceiveInfo receiveInfo : receiver.getChannelReceiveInfos().values())
+			{
+				for (ChannelReceiveSequencer sequencer : receiveInfo.getSourceInfos().values())
+				{
+					GapThresholds thresholds = sequencer.getGapThresholds();
+					gapThresholds.add("Source=" + sequencer.getKey() + " + Group=" + receiveInfo.getMulticastGroup() + " - outOfOrderPackets=" + thresholds.getOutOfOrderThreshold()
+							+ " nakDelayMillis=" + thresholds.getNakDelayMillis() + " giveUpMillis=" + thresholds.getGiveUpMillis() + " rttMillis=" + thresholds.getSmoothedRttMillis());
+				}
+			}
+		}
+		String[] ret = new String[gapThresholds.size()];
+		return gapThresholds.toArray(ret);
+	}
+
 	public static String[] getRetransmissionFailures()
 	{
 		List<String> retransmissionFailures = new LinkedList<>();
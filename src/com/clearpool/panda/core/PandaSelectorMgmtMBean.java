@@ -0,0 +1,42 @@
+package com.clearpool.panda.core;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class PandaSelectorMgmtMBean
+{
+	public static String[] getIdleStrategies()
+	{
+		List<String> idleStrategies = new LinkedList<>();
+		for (Map.Entry<String, PandaAdapter> adapterEntry : PandaAdapter.ALL_PANDA_ADAPTERS.entrySet())
+		{
+			SelectorThread[] selectorThreads = adapterEntry.getValue().getSelectorThreads();
+			for (int i = 0; i < selectorThreads.length; i++)
+			{
+				idleStrategies.add("Adapter=" + adapterEntry.getKey() + " + SelectorThread=" + i + " - " + selectorThreads[i].getIdleStrategy().name());
+			}
+		}
+		String[] ret = new String[idleStrategies.size()];
+		return idleStrategies.toArray(ret);
+	}
+
+	// idleStrategy is one of BUSY_SPIN, SPIN_YIELD, BACKOFF or BLOCKING. A selectorThreadIndex below 0 switches every selectorThread of the adapter.
+	public static void setIdleStrategy(String adapterName, int selectorThreadIndex, String idleStrategy)
+	{
+		if (adapterName == null || adapterName.isEmpty()) return;
+		if (idleStrategy == null || idleStrategy.isEmpty()) return;
+
+		PandaAdapter adapter = PandaAdapter.ALL_PANDA_ADAPTERS.get(adapterName);
+		if (adapter == null) return;
+		IdleStrategy strategy = IdleStrategy.fromName(idleStrategy, "idleStrategy");
+		SelectorThread[] selectorThreads = adapter.getSelectorThreads();
+		for (int i = 0; i < selectorThreads.length; i++)
+		{
+			if (selectorThreadIndex < 0 || selectorThreadIndex == i)
+			{
+				selectorThreads[i].setIdleStrategy(strategy);
+			}
+		}
+	}
+}
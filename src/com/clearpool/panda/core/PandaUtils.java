@@ -1,6 +1,8 @@
 package com.clearpool.panda.core;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 import com.codahale.metrics.Meter;
 
@@ -11,26 +13,97 @@ public class PandaUtils
 	static final int MAX_UDP_SIZE = 65535;
 	static final int MAX_TCP_SIZE = 65535;
 	static final byte PACKET_HEADER_SIZE = 11;
+	static final int PACKET_SEQUENCE_NUMBER_OFFSET = 2; // header length - 1 byte, packet flags - 1 byte
+	static final byte PACKET_FLAG_RETRANSMISSIONS = 1;
+	static final byte PACKET_FLAG_FEC_PARITY = 2;
+	static final byte PACKET_FLAG_HEARTBEAT = 4;
+	static final int HEARTBEAT_BODY_SIZE = 16; // cache head sequenceNumber - 8 bytes, cache tail sequenceNumber - 8 bytes
+	static final int FEC_PARITY_HEADER_SIZE = 3; // message count xor - 1 byte, payload length xor - 2 bytes
+	static final int MAX_FEC_BLOCK_SIZE = Long.SIZE;
+	static final int FEC_BLOCK_HISTORY_SIZE = 4;
+	static final int REORDER_RING_SIZE = 1 << 13;
+	static final long REORDER_BUFFER_BYTES = 1 << 24;
+	static final int WILDCARD_MATCH_CACHE_SIZE = 1 << 14;
+	static final long TIMER_WHEEL_TICK_MILLIS = 1;
+	static final int TIMER_WHEEL_SIZE = 1 << 10;
 	static final int MESSAGE_HEADER_FIXED_SIZE = 3; // topicId - 1 bytes, message length - 2 bytes
 	static final int NETWORK_HEADER_SIZE = 54; // Ethernet header - 26 bytes, IP header - 20 bytes, UDP header - 8 bytes
 	static final int MAX_PANDA_MESSAGE_SIZE = Short.MAX_VALUE;
 	static final int PANDA_PACKET_PAYLOAD_SIZE = MTU_SIZE - PACKET_HEADER_SIZE - NETWORK_HEADER_SIZE;
 	static final int PANDA_PACKET_MESSAGE_PAYLOAD_SIZE = PANDA_PACKET_PAYLOAD_SIZE - MESSAGE_HEADER_FIXED_SIZE;
+	static final int MAX_PANDA_PACKET_SIZE = PACKET_HEADER_SIZE + MESSAGE_HEADER_FIXED_SIZE + 255 + MAX_PANDA_MESSAGE_SIZE;
+	static final int PACKET_CACHE_SEGMENT_SIZE = 1 << 16;
+	static final long JOURNAL_RETENTION_BYTES = 1L << 30;
+	static final int JOURNAL_SEGMENT_SIZE = 1 << 26;
 	static final int RETRANSMISSION_RESPONSE_HEADER_SIZE = 12;
 	static final int RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE = 4;
 	static final int RETRANSMISSION_REQUEST_HEADER_SIZE = 13;
+	static final int RETRANSMISSION_REQUEST_ID_SIZE = 4;
+	static final int RETRANSMISSION_REQUEST_BITMAP_HEADER_SIZE = 2;
+	static final int MAX_RETRANSMISSION_REQUEST_BITMAP_SIZE = 1024;
+	static final int RETRANSMISSION_RESPONSE_REPAIRED = -1; // packetCount of a response whose packets were re-multicast on the repair group
+	static final long REPAIR_NAK_BACKOFF_MILLIS = 10;
+	static final long REPAIR_SUPPRESSION_MILLIS = 10;
+	static final int REPAIR_HISTORY_SIZE = 1 << 12;
 	static final int BLOCKING_QUEUE_SIZE = 1 << 12;
+	static final int SELECTOR_ACTION_QUEUE_SIZE = 1 << 16;
+	static final int PUBLICATION_CLAIM_BUFFER_COUNT = 64;
+	static final int RECEIVE_RING_BYTES = 1 << 26;
 
 	public static String getMulticastGroup(String ip, int port)
 	{
 		return ip + ":" + port;
 	}
 
+	// Index of the selectorThread that owns a multicast group. SELECTOR_THREAD_INDEX places a group explicitly, other groups are spread by hash. Sender and Receiver place
+	// groups alike, so an adapter sends and receives a group on the same thread.
+	static int getSelectorThreadIndex(String multicastGroup, int selectorThreadCount, PandaProperties properties)
+	{
+		if (selectorThreadCount <= 1) return 0;
+		long index = properties.getLongProperty(PandaProperties.SELECTOR_THREAD_INDEX, multicastGroup, -1);
+		if (index >= 0) return (int) (index % selectorThreadCount);
+		return (multicastGroup.hashCode() & Integer.MAX_VALUE) % selectorThreadCount;
+	}
+
+	// Port of the group's repair channel, or 0 when repairs are not multicast
+	static int getRepairPort(int port, String multicastGroup, PandaProperties properties)
+	{
+		long repairPortOffset = properties.getLongProperty(PandaProperties.REPAIR_PORT_OFFSET, multicastGroup, 0);
+		return (repairPortOffset > 0) ? (int) (port + repairPortOffset) : 0;
+	}
+
+	// Senders the group is joined for, from the comma separated MULTICAST_SOURCES, or none to join it for any source
+	static InetAddress[] getMulticastSources(String multicastGroup, PandaProperties properties)
+	{
+		String sources = properties.getStringProperty(PandaProperties.MULTICAST_SOURCES, multicastGroup, "").trim();
+		if (sources.isEmpty()) return new InetAddress[0];
+		String[] sourceIps = sources.split(",");
+		InetAddress[] sourceAddresses = new InetAddress[sourceIps.length];
+		for (int i = 0; i < sourceIps.length; i++)
+		{
+			try
+			{
+				sourceAddresses[i] = InetAddress.getByName(sourceIps[i].trim());
+			}
+			catch (UnknownHostException e)
+			{
+				throw new IllegalArgumentException(PandaProperties.MULTICAST_SOURCES + " of " + multicastGroup + " has unknown source " + sourceIps[i], e);
+			}
+		}
+		return sourceAddresses;
+	}
+
 	public static void updateMeterAsCounter(Meter meter, long newCount)
 	{
 		meter.mark(newCount - meter.getCount());
 	}
 
+	static int nextPowerOfTwo(int value)
+	{
+		if (value <= 1) return 1;
+		return Integer.highestOneBit(value - 1) << 1;
+	}
+
 	public static String getAddressString(InetSocketAddress sourceAddress)
 	{
 		return sourceAddress.getPort() + "@" + sourceAddress.getAddress().getHostAddress();
@@ -0,0 +1,87 @@
+package com.clearpool.panda.core;
+
+/**
+ * Reusable handle for publishing a topic to a multicast group. The channel and the encoded topic are resolved once by {@link PandaAdapter#createPublication}, so sending through
+ * a Publication does no group lookup or topic encoding. Only valid on the adapter that created it.
+ */
+public class Publication
+{
+	private final String topic;
+	private final byte[] topicBytes;
+	private final ChannelSendInfo channelSendInfo;
+	private final SelectorThread selectorThread;
+
+	private ClaimedPacket[] claimedPackets;
+	private int nextClaimIndex;
+	private BufferClaim bufferClaim;
+
+	Publication(String topic, ChannelSendInfo channelSendInfo, SelectorThread selectorThread)
+	{
+		this.topic = topic;
+		this.topicBytes = topic.getBytes();
+		this.channelSendInfo = channelSendInfo;
+		this.selectorThread = selectorThread;
+
+		this.claimedPackets = null;
+		this.nextClaimIndex = 0;
+		this.bufferClaim = null;
+	}
+
+	// Called by publishing thread - returns null while every claim buffer is still waiting on the selectorThread
+	BufferClaim tryClaim(int length)
+	{
+		if (this.claimedPackets == null) initClaimedPackets();
+		if (this.bufferClaim.isActive()) throw new IllegalStateException("Previous claim for topic=" + this.topic + " has not been committed or aborted");
+
+		ClaimedPacket claimedPacket = this.claimedPackets[this.nextClaimIndex];
+		if (claimedPacket.isInFlight()) return null;
+		int offset = claimedPacket.claim(length);
+		this.bufferClaim.wrap(claimedPacket, offset, length);
+		return this.bufferClaim;
+	}
+
+	private void initClaimedPackets()
+	{
+		this.claimedPackets = new ClaimedPacket[PandaUtils.PUBLICATION_CLAIM_BUFFER_COUNT];
+		for (int i = 0; i < this.claimedPackets.length; i++)
+		{
+			this.claimedPackets[i] = new ClaimedPacket(this.channelSendInfo, this.topicBytes);
+		}
+		this.bufferClaim = new BufferClaim(this);
+	}
+
+	// Called by publishing thread
+	void commit(ClaimedPacket claimedPacket)
+	{
+		claimedPacket.commit();
+		this.nextClaimIndex = (this.nextClaimIndex + 1) % this.claimedPackets.length;
+		this.selectorThread.sendToMulticastChannel(claimedPacket);
+		this.channelSendInfo.updateTopicStats(this.topic);
+	}
+
+	// Called by publishing thread - the aborted buffer is handed out again on the next claim
+	@SuppressWarnings("static-method")
+	void abort()
+	{
+	}
+
+	public String getTopic()
+	{
+		return this.topic;
+	}
+
+	public String getMulticastGroup()
+	{
+		return this.channelSendInfo.getMulticastGroup();
+	}
+
+	byte[] getTopicBytes()
+	{
+		return this.topicBytes;
+	}
+
+	ChannelSendInfo getChannelSendInfo()
+	{
+		return this.channelSendInfo;
+	}
+}
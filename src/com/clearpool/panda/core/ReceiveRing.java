@@ -0,0 +1,133 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+
+// Packets handed from the selectorThread to one DeliveryThread, copied into a single off-heap ring so that draining the sockets never waits on a listener. Each record is
+// [int recordLength][int receiverId][int tag][int payloadLength][payload] padded to RECORD_ALIGNMENT bytes, a record that does not fit before the end of the ring is
+// preceded by a padding record. One producer and one consumer thread.
+class ReceiveRing
+{
+	static final int RECORD_HEADER_SIZE = 16;
+	private static final int RECORD_ALIGNMENT = 8;
+	private static final int PADDING_RECEIVER_ID = -1;
+	private static final int MIN_CAPACITY = 4 * PandaUtils.MAX_UDP_SIZE;
+
+	private final int capacity;
+	private final int mask;
+	private final ByteBuffer writeBuffer;
+	private final ByteBuffer readBuffer;
+	private final MpscRingBuffer.PaddedSequence head;
+	private final MpscRingBuffer.PaddedSequence tail;
+
+	private long cachedHead;
+	private volatile long maxBytesUsed;
+
+	ReceiveRing(int requestedCapacity)
+	{
+		this.capacity = PandaUtils.nextPowerOfTwo(Math.max(MIN_CAPACITY, requestedCapacity));
+		this.mask = this.capacity - 1;
+		this.writeBuffer = ByteBuffer.allocateDirect(this.capacity);
+		this.readBuffer = this.writeBuffer.duplicate();
+		this.head = new MpscRingBuffer.PaddedSequence();
+		this.tail = new MpscRingBuffer.PaddedSequence();
+
+		this.cachedHead = 0;
+		this.maxBytesUsed = 0;
+	}
+
+	// Called by producer thread only - copies the remaining bytes of payload, which may be null. Returns false without touching payload if the ring is full.
+	boolean offer(int receiverId, int tag, ByteBuffer payload)
+	{
+		int payloadLength = (payload == null) ? 0 : payload.remaining();
+		int recordLength = align(RECORD_HEADER_SIZE + payloadLength);
+		long currentTail = this.tail.get();
+		int offset = (int) (currentTail & this.mask);
+		int paddingLength = (offset + recordLength > this.capacity) ? this.capacity - offset : 0;
+		long newTail = currentTail + paddingLength + recordLength;
+		if (newTail - this.cachedHead > this.capacity)
+		{
+			this.cachedHead = this.head.get();
+			if (newTail - this.cachedHead > this.capacity) return false;
+		}
+
+		if (paddingLength > 0)
+		{
+			this.writeBuffer.putInt(offset, paddingLength);
+			this.writeBuffer.putInt(offset + 4, PADDING_RECEIVER_ID);
+			offset = 0;
+		}
+		this.writeBuffer.putInt(offset, recordLength);
+		this.writeBuffer.putInt(offset + 4, receiverId);
+		this.writeBuffer.putInt(offset + 8, tag);
+		this.writeBuffer.putInt(offset + 12, payloadLength);
+		if (payloadLength > 0)
+		{
+			this.writeBuffer.clear();
+			this.writeBuffer.position(offset + RECORD_HEADER_SIZE);
+			this.writeBuffer.put(payload);
+		}
+
+		// A full write rather than a lazy one, so that a consumer about to park is sure to see the record or be unparked
+		this.tail.set(newTail);
+		long bytesUsed = newTail - this.cachedHead;
+		if (bytesUsed > this.maxBytesUsed) this.maxBytesUsed = bytesUsed;
+		return true;
+	}
+
+	// Called by consumer thread only - hands up to limit records to the handler, which must not throw. The payload is only valid during the call.
+	int read(RecordHandler handler, int limit)
+	{
+		long currentHead = this.head.get();
+		long currentTail = this.tail.get();
+		int recordsRead = 0;
+		while (currentHead < currentTail && recordsRead < limit)
+		{
+			int offset = (int) (currentHead & this.mask);
+			this.readBuffer.clear();
+			int recordLength = this.readBuffer.getInt(offset);
+			int receiverId = this.readBuffer.getInt(offset + 4);
+			if (receiverId != PADDING_RECEIVER_ID)
+			{
+				int tag = this.readBuffer.getInt(offset + 8);
+				int payloadLength = this.readBuffer.getInt(offset + 12);
+				this.readBuffer.position(offset + RECORD_HEADER_SIZE);
+				this.readBuffer.limit(offset + RECORD_HEADER_SIZE + payloadLength);
+				handler.recordRead(receiverId, tag, this.readBuffer);
+				recordsRead++;
+			}
+			currentHead += recordLength;
+			this.head.lazySet(currentHead);
+		}
+		return recordsRead;
+	}
+
+	private static int align(int length)
+	{
+		return (length + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+	}
+
+	boolean isEmpty()
+	{
+		return this.head.get() == this.tail.get();
+	}
+
+	long getBytesUsed()
+	{
+		return Math.max(0, this.tail.get() - this.head.get());
+	}
+
+	long getMaxBytesUsed()
+	{
+		return this.maxBytesUsed;
+	}
+
+	int capacity()
+	{
+		return this.capacity;
+	}
+
+	interface RecordHandler
+	{
+		void recordRead(int receiverId, int tag, ByteBuffer payload);
+	}
+}
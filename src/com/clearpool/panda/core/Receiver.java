@@ -1,6 +1,8 @@
 package com.clearpool.panda.core;
 
 import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -8,28 +10,123 @@ import com.codahale.metrics.MetricRegistry;
 
 class Receiver
 {
-	private final SelectorThread selectorThread;
-	private final int bindPort;
+	private final SelectorThread[] selectorThreads;
+	private final int[] bindPorts;
 	private final Map<String, ChannelReceiveInfo> channelInfos;
 	private final PandaProperties properties;
+	private final int deliveryThreadsPerSelector;
+	private final DeliveryThread[] deliveryThreads;
+	private final int[] groupCounts;
 
-	Receiver(SelectorThread selectorThread, int bindPort, PandaProperties properties)
+	// bindPorts[i] is the port selectorThreads[i] sends from, so packets this adapter sent itself can be told apart
+	Receiver(SelectorThread[] selectorThreads, int[] bindPorts, PandaProperties properties)
 	{
-		this.selectorThread = selectorThread;
-		this.bindPort = bindPort;
+		this.selectorThreads = selectorThreads;
+		this.bindPorts = bindPorts;
 		this.channelInfos = new ConcurrentHashMap<String, ChannelReceiveInfo>();
 		this.properties = properties;
+		this.deliveryThreadsPerSelector = (int) Math.max(0, properties.getLongProperty(PandaProperties.DELIVERY_THREADS, 0));
+		this.deliveryThreads = createDeliveryThreads(properties, this.deliveryThreadsPerSelector * selectorThreads.length);
+		this.groupCounts = new int[selectorThreads.length];
+	}
+
+	// With DELIVERY_THREADS set each selectorThread only drains and sequences, and its groups are spread over its own deliveryThreads that call their listeners. A ring
+	// never has more than one selectorThread writing to it.
+	private static DeliveryThread[] createDeliveryThreads(PandaProperties properties, int deliveryThreadCount)
+	{
+		int ringBytes = (int) properties.getLongProperty(PandaProperties.RECEIVE_RING_BYTES, PandaUtils.RECEIVE_RING_BYTES);
+		DeliveryThread[] deliveryThreads = new DeliveryThread[deliveryThreadCount];
+		for (int i = 0; i < deliveryThreads.length; i++)
+		{
+			deliveryThreads[i] = new DeliveryThread("PandaDeliveryThread-" + i, ringBytes);
+			deliveryThreads[i].start();
+		}
+		return deliveryThreads;
 	}
 
 	PandaDataListener subscribe(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaDataListener listener, int recvBufferSize, boolean skipGaps)
 	{
-		ChannelReceiveInfo receiveInfo = getChannelReceiverInfo(ip, port, multicastGroup, interfaceIp, recvBufferSize, skipGaps);
-		synchronized (receiveInfo)
+		PandaMessageListener messageListener = (listener != null) ? new CopyingMessageListener(listener) : null;
+		PandaMessageListener registeredListener = subscribeMessages(topic, ip, port, multicastGroup, interfaceIp, messageListener, recvBufferSize, skipGaps);
+		return (registeredListener instanceof CopyingMessageListener) ? ((CopyingMessageListener) registeredListener).getListener() : null;
+	}
+
+	// Returns the listener if it already was on the topic
+	PandaMessageListener subscribeMessages(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaMessageListener listener,
+			int recvBufferSize, boolean skipGaps)
+	{
+		Collection<String> topics = Collections.singleton(topic);
+		while (true)
 		{
-			return receiveInfo.registerTopicListener(topic, listener);
+			ChannelReceiveInfo receiveInfo = getChannelReceiverInfo(ip, port, multicastGroup, interfaceIp, recvBufferSize, skipGaps);
+			if (listener == null) return null;
+			PandaMessageListener registeredListener = receiveInfo.getTopicListener(topic, listener);
+			if (registeredListener != null) return registeredListener;
+			if (receiveInfo.registerTopicListeners(topics, listener)) return null;
 		}
 	}
 
+	// All topics start delivering together. A group being left while subscribing is joined again.
+	void subscribeMessages(Collection<String> topics, String ip, int port, String multicastGroup, InetAddress interfaceIp, PandaMessageListener listener,
+			int recvBufferSize, boolean skipGaps)
+	{
+		while (!getChannelReceiverInfo(ip, port, multicastGroup, interfaceIp, recvBufferSize, skipGaps).registerTopicListeners(topics, listener))
+		{
+			// Retry on the group that replaces it
+		}
+	}
+
+	// Returns true if the listener was on any of the topics. The group is left once no topic has listeners.
+	boolean unsubscribeMessages(Collection<String> topics, String multicastGroup, PandaMessageListener listener)
+	{
+		ChannelReceiveInfo receiveInfo = this.channelInfos.get(multicastGroup);
+		if (receiveInfo == null) return false;
+		boolean unsubscribed = receiveInfo.unregisterTopicListeners(topics, listener);
+		if (unsubscribed) leaveIfUnused(receiveInfo);
+		return unsubscribed;
+	}
+
+	// Every listener of the topics goes. Returns true if any of the topics had listeners. The group is left once no topic has listeners.
+	boolean unsubscribe(Collection<String> topics, String multicastGroup)
+	{
+		ChannelReceiveInfo receiveInfo = this.channelInfos.get(multicastGroup);
+		if (receiveInfo == null) return false;
+		boolean unsubscribed = receiveInfo.unregisterTopics(topics);
+		if (unsubscribed) leaveIfUnused(receiveInfo);
+		return unsubscribed;
+	}
+
+	// Leaves the group whatever is still subscribed to it. Returns false if the group was not joined.
+	boolean leaveGroup(String multicastGroup)
+	{
+		ChannelReceiveInfo receiveInfo = this.channelInfos.get(multicastGroup);
+		if (receiveInfo == null) return false;
+		return leave(receiveInfo, true);
+	}
+
+	// Stops or resumes receiving the source's packets on the group. Returns false if the group was not joined.
+	synchronized boolean filterSource(String multicastGroup, InetAddress source, boolean block)
+	{
+		ChannelReceiveInfo receiveInfo = this.channelInfos.get(multicastGroup);
+		if (receiveInfo == null) return false;
+		receiveInfo.filterSource(source, block);
+		return true;
+	}
+
+	private void leaveIfUnused(ChannelReceiveInfo receiveInfo)
+	{
+		if (receiveInfo.getTopicCount() == 0) leave(receiveInfo, false);
+	}
+
+	// Under the same lock as creating groups, so a group is never joined again before the old channel is off the selectorThread's books
+	private synchronized boolean leave(ChannelReceiveInfo receiveInfo, boolean force)
+	{
+		if (!receiveInfo.markLeaving(force)) return false;
+		receiveInfo.leave();
+		this.channelInfos.remove(receiveInfo.getMulticastGroup());
+		return true;
+	}
+
 	private ChannelReceiveInfo getChannelReceiverInfo(String multicastIp, int multicastPort, String multicastGroup, InetAddress interfaceIp, int recvBufferSize, boolean skipGaps)
 	{
 		ChannelReceiveInfo receiveInfo = this.channelInfos.get(multicastGroup);
@@ -40,8 +137,12 @@ class Receiver
 				receiveInfo = this.channelInfos.get(multicastGroup);
 				if (receiveInfo == null)
 				{
-					receiveInfo = new ChannelReceiveInfo(multicastIp, multicastPort, multicastGroup, interfaceIp, this.bindPort, this.selectorThread, recvBufferSize, skipGaps,
-							this.properties);
+					int selectorIndex = PandaUtils.getSelectorThreadIndex(multicastGroup, this.selectorThreads.length, this.properties);
+					int groupCount = this.groupCounts[selectorIndex]++;
+					DeliveryThread deliveryThread = (this.deliveryThreadsPerSelector > 0) ? this.deliveryThreads[selectorIndex * this.deliveryThreadsPerSelector + groupCount
+							% this.deliveryThreadsPerSelector] : null;
+					receiveInfo = new ChannelReceiveInfo(multicastIp, multicastPort, multicastGroup, interfaceIp, this.bindPorts[selectorIndex],
+							this.selectorThreads[selectorIndex], recvBufferSize, skipGaps, this.properties, deliveryThread);
 					this.channelInfos.put(multicastGroup, receiveInfo);
 				}
 			}
@@ -57,11 +158,16 @@ class Receiver
 			long bytesReceived = channelInfo.getBytesReceived();
 			long messagesReceived = channelInfo.getMessagesReceived();
 			long messagesHandled = channelInfo.getMessagesHandled();
+			long packetsRecoveredByFec = channelInfo.getPacketsRecoveredByFec();
+			long packetsRecoveredByRetransmission = channelInfo.getPacketsRecoveredByRetransmission();
 
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_RECEIVED-" + channelInfo.getMulticastGroup()), packetsReceived);
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-BYTES_RECEIVED-" + channelInfo.getMulticastGroup()), bytesReceived);
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-MESSAGES_RECEIVED-" + channelInfo.getMulticastGroup()), messagesReceived);
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-MESSAGES_HANDLED-" + channelInfo.getMulticastGroup()), messagesHandled);
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_RECOVERED_FEC-" + channelInfo.getMulticastGroup()), packetsRecoveredByFec);
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_RECOVERED_RETRANSMISSION-" + channelInfo.getMulticastGroup()),
+					packetsRecoveredByRetransmission);
 
 			for (Object topicReceived : channelInfo.getTopicReceivedCounters().keys())
 			{
@@ -75,10 +181,22 @@ class Receiver
 				PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-TOPIC_HANDLED-" + topicHandled + "-" + channelInfo.getMulticastGroup()), topicHandledCount);
 			}
 		}
+
+		for (DeliveryThread deliveryThread : this.deliveryThreads)
+		{
+			metricsRegistry.histogram(prefix + "-RECEIVE_RING_OCCUPANCY-" + deliveryThread.getName()).update(
+					(int) (100 * deliveryThread.getRingBytesUsed() / deliveryThread.getRingCapacity()));
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-RECEIVE_RING_FULL-" + deliveryThread.getName()), deliveryThread.getRingFullCount());
+		}
 	}
 
 	Map<String, ChannelReceiveInfo> getChannelReceiveInfos()
 	{
 		return this.channelInfos;
 	}
+
+	DeliveryThread[] getDeliveryThreads()
+	{
+		return this.deliveryThreads;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Out of order packets of a source, indexed by sequenceNumber modulo the capacity. The packets are copied into pooled direct slots of MTU size, larger packets get a slot of
+// their own that is dropped once the packet is dequeued. Only touched by the selectorThread.
+class ReorderRing
+{
+	private static final int SLOT_SIZE = PandaUtils.MTU_SIZE;
+
+	private final int mask;
+	private final long maxBytes;
+	private final long[] sequenceNumbers;
+	private final byte[] messageCounts;
+	private final ByteBuffer[] slots;
+	private final ArrayDeque<ByteBuffer> freeSlots;
+
+	private long firstSequenceNumber;
+	private long lastSequenceNumber;
+	private int size;
+	private long bytes;
+
+	ReorderRing(int capacity, long maxBytes)
+	{
+		int ringSize = PandaUtils.nextPowerOfTwo(capacity);
+		this.mask = ringSize - 1;
+		this.maxBytes = maxBytes;
+		this.sequenceNumbers = new long[ringSize];
+		this.messageCounts = new byte[ringSize];
+		this.slots = new ByteBuffer[ringSize];
+		this.freeSlots = new ArrayDeque<ByteBuffer>();
+
+		this.firstSequenceNumber = 0;
+		this.lastSequenceNumber = 0;
+		this.size = 0;
+		this.bytes = 0;
+	}
+
+	boolean contains(long sequenceNumber)
+	{
+		return this.sequenceNumbers[index(sequenceNumber)] == sequenceNumber;
+	}
+
+	// A packet fits if every queued sequenceNumber keeps its own index and the bytes stay within maxBytes, an empty ring takes any packet
+	boolean hasRoom(long sequenceNumber, int length)
+	{
+		if (this.size == 0) return true;
+		long first = Math.min(this.firstSequenceNumber, sequenceNumber);
+		long last = Math.max(this.lastSequenceNumber, sequenceNumber);
+		return last - first <= this.mask && this.bytes + length <= this.maxBytes;
+	}
+
+	// Copies the remaining bytes of packetBuffer, the caller checks hasRoom and contains first
+	void add(long sequenceNumber, byte messageCount, ByteBuffer packetBuffer)
+	{
+		int index = index(sequenceNumber);
+		int length = packetBuffer.remaining();
+		ByteBuffer slot = (length <= SLOT_SIZE) ? this.freeSlots.poll() : ByteBuffer.allocateDirect(length);
+		if (slot == null) slot = ByteBuffer.allocateDirect(SLOT_SIZE);
+		slot.clear();
+		slot.put(packetBuffer);
+		slot.flip();
+		this.sequenceNumbers[index] = sequenceNumber;
+		this.messageCounts[index] = messageCount;
+		this.slots[index] = slot;
+		this.bytes += length;
+		if (this.size == 0 || sequenceNumber < this.firstSequenceNumber) this.firstSequenceNumber = sequenceNumber;
+		if (this.size == 0 || sequenceNumber > this.lastSequenceNumber) this.lastSequenceNumber = sequenceNumber;
+		this.size++;
+	}
+
+	// The returned buffer is only valid until the packet is removed
+	ByteBuffer getPacket(long sequenceNumber)
+	{
+		return this.slots[index(sequenceNumber)];
+	}
+
+	byte getMessageCount(long sequenceNumber)
+	{
+		return this.messageCounts[index(sequenceNumber)];
+	}
+
+	void remove(long sequenceNumber)
+	{
+		int index = index(sequenceNumber);
+		if (this.sequenceNumbers[index] != sequenceNumber) return;
+		releaseSlot(index);
+		this.size--;
+		if (this.size == 0)
+		{
+			this.firstSequenceNumber = 0;
+			this.lastSequenceNumber = 0;
+			return;
+		}
+		if (sequenceNumber == this.firstSequenceNumber)
+		{
+			while (!contains(++this.firstSequenceNumber))
+			{
+				// Scan up to the next queued packet
+			}
+		}
+		else if (sequenceNumber == this.lastSequenceNumber)
+		{
+			while (!contains(--this.lastSequenceNumber))
+			{
+				// Scan down to the previous queued packet
+			}
+		}
+	}
+
+	void clear()
+	{
+		while (this.size > 0)
+		{
+			remove(this.firstSequenceNumber);
+		}
+	}
+
+	private void releaseSlot(int index)
+	{
+		ByteBuffer slot = this.slots[index];
+		this.bytes -= slot.limit();
+		if (slot.capacity() == SLOT_SIZE) this.freeSlots.add(slot);
+		this.slots[index] = null;
+		this.sequenceNumbers[index] = 0;
+	}
+
+	private int index(long sequenceNumber)
+	{
+		return (int) (sequenceNumber & this.mask);
+	}
+
+	int size()
+	{
+		return this.size;
+	}
+
+	// Lowest queued sequenceNumber, 0 when empty
+	long getFirstSequenceNumber()
+	{
+		return this.firstSequenceNumber;
+	}
+
+	// Highest queued sequenceNumber, 0 when empty
+	long getLastSequenceNumber()
+	{
+		return this.lastSequenceNumber;
+	}
+
+	long getBytes()
+	{
+		return this.bytes;
+	}
+}
@@ -5,6 +5,9 @@ interface SelectorActionable
 	static final int SEND_MULTICAST = 1;
 	static final int REGISTER_MULTICAST_READ = 2;
 	static final int REGISTER_TCP_ACTION = 3;
+	static final int SEND_CLAIMED_MULTICAST = 4;
+	static final int DEREGISTER_MULTICAST_READ = 5;
+	static final int FILTER_MULTICAST_SOURCE = 6;
 
 	int getAction();
 }
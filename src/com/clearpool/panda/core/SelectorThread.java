@@ -19,6 +19,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,21 +30,38 @@ class SelectorThread extends Thread
 
 	private final Selector selector;
 	private final ByteBuffer udpBuffer;
-	private final ByteBuffer tcpBuffer;
 	private final Map<String, DatagramChannel> inDatagramChannels;
-	private final ConcurrentLockFreeQueue<SelectorActionable> selectorActionQueue;
-	private final long pegStartTime;
-	private final long pegEndTime;
+	private final Map<DatagramChannel, MulticastMembership> memberships;
+	private final Map<String, GapRequestConnection> gapRequestConnections;
+	private final Queue<ByteBuffer> tcpReadBufferPool;
+	private final MpscRingBuffer<SelectorActionable> selectorActionQueue;
+	private final ChannelSendDetail[] sendDetails;
+	private final Queue<SelectorActionable> selectorActionOverflowQueue;
+	private final AtomicBoolean selectorParked;
+	private final TimerWheel timerWheel;
 
-	SelectorThread(PandaProperties properties) throws IOException
+	private volatile IdleStrategy idleStrategy;
+	private long currentTimeMillis;
+	private int idleCount;
+
+	// selectorThreadIndex is the thread's place among the adapter's selectorThreads, which scoped properties such as IDLE_STRATEGY are looked up by
+	SelectorThread(PandaProperties properties, int selectorThreadIndex) throws IOException
 	{
 		this.selector = Selector.open();
 		this.udpBuffer = ByteBuffer.allocateDirect(PandaUtils.MAX_UDP_SIZE);
-		this.tcpBuffer = ByteBuffer.allocateDirect(PandaUtils.MAX_TCP_SIZE);
 		this.inDatagramChannels = new HashMap<String, DatagramChannel>();
-		this.selectorActionQueue = new ConcurrentLockFreeQueue<SelectorActionable>();
-		this.pegStartTime = properties.getLongProperty(PandaProperties.PEG_SELECTOR_START_TIME, 0);
-		this.pegEndTime = properties.getLongProperty(PandaProperties.PEG_SELECTOR_END_TIME, 0);
+		this.memberships = new HashMap<DatagramChannel, MulticastMembership>();
+		this.gapRequestConnections = new HashMap<String, GapRequestConnection>();
+		this.tcpReadBufferPool = new ArrayDeque<ByteBuffer>();
+		this.selectorActionQueue = new MpscRingBuffer<SelectorActionable>((int) properties.getLongProperty(PandaProperties.SELECTOR_ACTION_QUEUE_SIZE,
+				PandaUtils.SELECTOR_ACTION_QUEUE_SIZE));
+		this.sendDetails = new ChannelSendDetail[this.selectorActionQueue.capacity()];
+		this.selectorActionOverflowQueue = new ArrayDeque<SelectorActionable>();
+		this.selectorParked = new AtomicBoolean(false);
+		this.idleStrategy = IdleStrategy.fromProperties(selectorThreadIndex, properties);
+		this.currentTimeMillis = System.currentTimeMillis();
+		this.idleCount = 0;
+		this.timerWheel = new TimerWheel(PandaUtils.TIMER_WHEEL_TICK_MILLIS, PandaUtils.TIMER_WHEEL_SIZE, this.currentTimeMillis);
 	}
 
 	@Override
@@ -53,17 +72,22 @@ class SelectorThread extends Thread
 		{
 			try
 			{
-				// Pull all actions + Service them
-				SelectorActionable next = this.selectorActionQueue.take();
-				while (next != null)
+				// Pull all actions + Service them (overflow only holds actions this thread queued while the ring was full, so it always goes last). The slots, and the
+				// sendDetails they own, go back to producers once every action pulled from them has been serviced.
+				this.selectorActionQueue.drainUnreleasedTo(activeSelectorActionQueue);
+				if (!this.selectorActionOverflowQueue.isEmpty())
 				{
-					activeSelectorActionQueue.add(next);
-					next = this.selectorActionQueue.take();
+					activeSelectorActionQueue.addAll(this.selectorActionOverflowQueue);
+					this.selectorActionOverflowQueue.clear();
 				}
-				serviceEachSelectorAction(activeSelectorActionQueue);
+				int workCount = serviceEachSelectorAction(activeSelectorActionQueue);
+				if (activeSelectorActionQueue.isEmpty()) this.selectorActionQueue.releaseDrained();
 
-				// Do selection
-				int selectedKeyCount = select();
+				// Do selection + Fire timers that are due
+				int selectedKeyCount = (workCount > 0) ? this.selector.selectNow() : select();
+				this.currentTimeMillis = System.currentTimeMillis();
+				workCount += selectedKeyCount + expireTimers(this.currentTimeMillis);
+				this.idleCount = (workCount > 0) ? 0 : this.idleCount + 1;
 				if (selectedKeyCount > 0)
 				{
 					Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
@@ -92,51 +116,61 @@ class SelectorThread extends Thread
 		LOGGER.warning("SelectorThread has been interrupted.  Stopping selection for selector");
 	}
 
+	// Called after a pass that serviced no actions, the idleStrategy decides whether to spin, yield, park or block
 	private int select() throws IOException
 	{
-		if (shouldPegCpu())
-		{
-			return this.selector.selectNow();
-		}
-		return this.selector.select();
-	}
+		IdleStrategy strategy = this.idleStrategy;
 
-	private boolean shouldPegCpu()
-	{
-		// Never pegging
-		if (this.pegStartTime == 0)
-		{
-			return false;
-		}
+		// Wait no longer than the next timer deadline
+		long nextDeadline = this.timerWheel.getNextDeadline();
+		long timeout = (nextDeadline == Long.MAX_VALUE) ? Long.MAX_VALUE : nextDeadline - this.currentTimeMillis;
+		if (timeout <= 0) return this.selector.selectNow();
+		if (!strategy.parks(this.idleCount)) return strategy.select(this.selector, this.idleCount, timeout);
 
-		long now = System.currentTimeMillis();
-
-		// Candidate for pegging - Before peg start time
-		if (now < this.pegStartTime)
+		// Producers only pay for a wakeup once we have advertised that we are about to park
+		this.selectorParked.set(true);
+		try
 		{
-			return false;
+			if (!this.selectorActionQueue.isEmpty() || !this.selectorActionOverflowQueue.isEmpty())
+			{
+				return this.selector.selectNow();
+			}
+			return strategy.select(this.selector, this.idleCount, timeout);
 		}
-
-		// Candidate for pegging - After peg start time, but before end time
-		if (this.pegEndTime == 0 || now <= this.pegEndTime)
+		finally
 		{
-			return true;
+			this.selectorParked.set(false);
 		}
+	}
 
-		// Candidate for pegging - After peg start time, and after end time
-		return false;
+	// Takes effect on the next pass of the loop
+	void setIdleStrategy(IdleStrategy idleStrategy)
+	{
+		this.idleStrategy = idleStrategy;
+		wakeupSelector();
+	}
+
+	IdleStrategy getIdleStrategy()
+	{
+		return this.idleStrategy;
 	}
 
-	private void serviceEachSelectorAction(Queue<SelectorActionable> activeActionQueue)
+	private int serviceEachSelectorAction(Queue<SelectorActionable> activeActionQueue)
 	{
+		int actionCount = 0;
 		SelectorActionable selectorActionable = activeActionQueue.poll();
 		while (selectorActionable != null)
 		{
+			actionCount++;
 			int action = selectorActionable.getAction();
 			if (action == SelectorActionable.SEND_MULTICAST)
 			{
 				sendMulticastData((ChannelSendDetail) selectorActionable, activeActionQueue);
 			}
+			else if (action == SelectorActionable.SEND_CLAIMED_MULTICAST)
+			{
+				sendClaimedData((ClaimedPacket) selectorActionable);
+			}
 			else if (action == SelectorActionable.REGISTER_MULTICAST_READ)
 			{
 				registerMulticastChannel((MulticastRegistration) selectorActionable);
@@ -145,173 +179,111 @@ class SelectorThread extends Thread
 			{
 				registerTcpChannel((TcpRegistration) selectorActionable);
 			}
+			else if (action == SelectorActionable.DEREGISTER_MULTICAST_READ)
+			{
+				deregisterMulticastChannel((MulticastDeregistration) selectorActionable);
+			}
+			else if (action == SelectorActionable.FILTER_MULTICAST_SOURCE)
+			{
+				filterMulticastSource((MulticastSourceFilter) selectorActionable);
+			}
 			selectorActionable = activeActionQueue.poll();
 		}
+		return actionCount;
 	}
 
 	private void handleTcpSelection(SelectionKey selectedKey)
 	{
 		if (!selectedKey.isValid()) return;
+		Object attachment = selectedKey.attachment();
 		if (selectedKey.isAcceptable())
 		{
 			try
 			{
 				SocketChannel socketChannel = ((ServerSocketChannel) selectedKey.channel()).accept();
 				socketChannel.configureBlocking(false);
-				socketChannel.register(this.selector, SelectionKey.OP_READ, selectedKey.attachment());
+				socketChannel.register(this.selector, SelectionKey.OP_READ, new GapResponseConnection(socketChannel, (Sender) attachment));
 			}
 			catch (Exception e)
 			{
 				LOGGER.log(Level.SEVERE, e.getMessage(), e);
 			}
 		}
-		else if (selectedKey.isReadable())
+		else if (attachment instanceof GapResponseConnection)
 		{
-			SocketChannel channel = (SocketChannel) selectedKey.channel();
-			boolean successfulRead = readTcpChannel(channel, selectedKey);
-
-			Object attachment = selectedKey.attachment();
-			if (attachment instanceof Sender)
-			{
-				Sender sender = (Sender) attachment;
-				if (successfulRead)
-				{
-					sender.processGapRequest(channel, this.tcpBuffer);
-				}
-				else
-				{
-					sender.close();
-				}
-			}
-			else if (attachment instanceof GapRequestManager)
-			{
-				GapRequestManager gapManager = (GapRequestManager) attachment;
-				if (successfulRead)
-				{
-					gapManager.processGapResponse(channel, selectedKey, this.tcpBuffer);
-				}
-				else
-				{
-					gapManager.close(false);
-				}
-			}
+			((GapResponseConnection) attachment).handleSelection(selectedKey);
 		}
-		else if (selectedKey.isWritable())
+		else if (attachment instanceof GapRequestConnection)
 		{
-			Object attachment = selectedKey.attachment();
-			if (attachment instanceof GapRequestManager)
-			{
-				try
-				{
-					GapRequestManager grm = (GapRequestManager) attachment;
-					ByteBuffer gapRequest = grm.getGapRequest();
-					if (gapRequest != null)
-					{
-						SocketChannel channel = (SocketChannel) selectedKey.channel();
-						if (LOGGER.getLevel() == Level.FINE)
-						{
-							LOGGER.log(
-									Level.FINE,
-									"Sending GapRequest to " + channel.getRemoteAddress() + " with multicastGroup " + grm.getMulticastGroup() + " for "
-											+ grm.getPacketCountRequested() + " packets starting with sequenceNumber " + grm.getFirstSequenceNumberRequested());
-						}
-						channel.write(gapRequest);
-						if (gapRequest.remaining() == 0)
-						{
-							selectedKey.interestOps(SelectionKey.OP_READ);
-						}
-					}
-					// This happens when the request times out
-					else
-					{
-						try
-						{
-							((SocketChannel) selectedKey.channel()).close();
-						}
-						catch (IOException e1)
-						{
-							LOGGER.log(Level.SEVERE, e1.getMessage(), e1);
-						}
-						selectedKey.cancel();
-					}
-				}
-				catch (Exception e)
-				{
-					LOGGER.log(Level.SEVERE, e.getMessage(), e);
-					try
-					{
-						((SocketChannel) selectedKey.channel()).close();
-					}
-					catch (IOException e1)
-					{
-						LOGGER.log(Level.SEVERE, e1.getMessage(), e1);
-					}
-					selectedKey.cancel();
-				}
-			}
-			else if (attachment instanceof GapResponseManager)
-			{
-				((GapResponseManager) attachment).sendResponse(selectedKey);
-			}
+			((GapRequestConnection) attachment).handleSelection(selectedKey);
 		}
-		else if (selectedKey.isConnectable())
-		{
-			try
-			{
-				if (((SocketChannel) selectedKey.channel()).finishConnect())
-				{
-					selectedKey.interestOps(SelectionKey.OP_WRITE);
-				}
-			}
-			catch (Exception e)
-			{
-				LOGGER.log(Level.SEVERE, e.getMessage(), e);
+	}
 
-				GapRequestManager gapManager = (GapRequestManager) selectedKey.attachment();
-				LOGGER.severe("Failed to establish TCP connection for re-transmission. Disabling future re-transmission attempts for " + gapManager.getMulticastGroup()
-						+ " on the receiver side.");
-				gapManager.setDisabled();
-				try
-				{
-					((SocketChannel) selectedKey.channel()).close();
-				}
-				catch (IOException e1)
-				{
-					LOGGER.log(Level.SEVERE, e1.getMessage(), e1);
-				}
-				selectedKey.cancel();
-			}
-		}
+	// Called by selectorThread - read once per loop iteration, so it does not move while the selected keys and due timers are handled
+	long getCurrentTimeMillis()
+	{
+		return this.currentTimeMillis;
 	}
 
-	private boolean readTcpChannel(SocketChannel channel, SelectionKey selectedKey)
+	// Called by selectorThread
+	void scheduleTimer(WheelTimer timer, long deadline)
 	{
-		this.tcpBuffer.clear();
-		try
-		{
-			int numBytesRead = channel.read(this.tcpBuffer);
-			if (numBytesRead == -1)
-			{
-				channel.close();
-				selectedKey.cancel();
-				return false;
-			}
-			this.tcpBuffer.flip();
-		}
-		catch (IOException e)
+		this.timerWheel.schedule(timer, deadline);
+	}
+
+	// Called by selectorThread
+	void cancelTimer(WheelTimer timer)
+	{
+		this.timerWheel.cancel(timer);
+	}
+
+	int expireTimers(long now)
+	{
+		return this.timerWheel.expire(now);
+	}
+
+	// Called by selectorThread - one connection per source adapter is shared by the gap requests of all its multicast groups
+	GapRequestConnection getGapRequestConnection(String sourceKey, InetSocketAddress sourceAddress)
+	{
+		GapRequestConnection connection = this.gapRequestConnections.get(sourceKey);
+		if (connection == null)
 		{
+			connection = new GapRequestConnection(this, sourceKey, sourceAddress);
 			try
 			{
-				channel.close();
+				connection.connect();
 			}
-			catch (IOException e1)
+			catch (IOException e)
 			{
 				LOGGER.log(Level.SEVERE, e.getMessage(), e);
+				return null;
 			}
-			selectedKey.cancel();
-			return false;
+			this.gapRequestConnections.put(sourceKey, connection);
 		}
-		return true;
+		return connection;
+	}
+
+	void removeGapRequestConnection(String sourceKey, GapRequestConnection connection)
+	{
+		if (this.gapRequestConnections.get(sourceKey) == connection) this.gapRequestConnections.remove(sourceKey);
+	}
+
+	ByteBuffer acquireTcpReadBuffer()
+	{
+		ByteBuffer buffer = this.tcpReadBufferPool.poll();
+		return (buffer == null) ? ByteBuffer.allocateDirect(2 * PandaUtils.MAX_TCP_SIZE) : buffer;
+	}
+
+	void releaseTcpReadBuffer(ByteBuffer buffer)
+	{
+		buffer.clear();
+		this.tcpReadBufferPool.add(buffer);
+	}
+
+	// Called by selectorThread
+	SelectionKey registerTcpChannel(AbstractSelectableChannel channel, int interestOps, Object attachment) throws IOException
+	{
+		return channel.register(this.selector, interestOps, attachment);
 	}
 
 	private void handleMulticastSelection(SelectionKey selectedKey)
@@ -336,20 +308,21 @@ class SelectorThread extends Thread
 	{
 		SelectorActionable nextSelectorActionable = actionQueue.peek();
 		ChannelSendInfo channelSendInfo = channelSendDetail.getChannelSendInfo();
-		String messageTopic = channelSendDetail.getMessageTopic();
-		int messageTopicLength = messageTopic.length();
+		byte[] messageTopicBytes = channelSendDetail.getMessageTopicBytes();
+		int messageTopicLength = messageTopicBytes.length;
 		byte[] messageBytes = channelSendDetail.getMessageBytes();
 		int messageBytesLength = messageBytes.length;
 		byte supportsRetransmissions = channelSendInfo.supportsRetransmissions();
 		long sequenceNumber = channelSendInfo.incrementAndGetSequenceNumber();
 		byte messageCount = 1;
-		byte[] messageTopicBytes = messageTopic.getBytes();
 		ByteBuffer multicastBuffer;
+		int packetStart;
 
 		if (messageBytesLength + messageTopicLength > PandaUtils.PANDA_PACKET_MESSAGE_PAYLOAD_SIZE || nextSelectorActionable == null
 				|| nextSelectorActionable.getAction() != SelectorActionable.SEND_MULTICAST || ((ChannelSendDetail) nextSelectorActionable).getChannelSendInfo() != channelSendInfo)
 		{
-			multicastBuffer = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + messageTopicLength + messageBytesLength);
+			multicastBuffer = channelSendInfo.getPacketBuffer(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + messageTopicLength + messageBytesLength);
+			packetStart = multicastBuffer.position();
 			multicastBuffer.put(PandaUtils.PACKET_HEADER_SIZE);
 			multicastBuffer.put(supportsRetransmissions);
 			multicastBuffer.putLong(sequenceNumber);
@@ -361,39 +334,39 @@ class SelectorThread extends Thread
 		}
 		else
 		{
-			ByteBuffer payloadBuffer = ByteBuffer.allocate(PandaUtils.PANDA_PACKET_PAYLOAD_SIZE);
-			payloadBuffer.put((byte) messageTopicLength);
-			payloadBuffer.put(messageTopicBytes);
-			payloadBuffer.putShort((short) messageBytesLength);
-			payloadBuffer.put(messageBytes);
+			multicastBuffer = channelSendInfo.getPacketBuffer(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.PANDA_PACKET_PAYLOAD_SIZE);
+			packetStart = multicastBuffer.position();
+			multicastBuffer.put(PandaUtils.PACKET_HEADER_SIZE);
+			multicastBuffer.put(supportsRetransmissions);
+			multicastBuffer.putLong(sequenceNumber);
+			multicastBuffer.put(messageCount);
+			multicastBuffer.put((byte) messageTopicLength);
+			multicastBuffer.put(messageTopicBytes);
+			multicastBuffer.putShort((short) messageBytesLength);
+			multicastBuffer.put(messageBytes);
 			while (messageCount < Byte.MAX_VALUE && nextSelectorActionable != null && nextSelectorActionable.getAction() == SelectorActionable.SEND_MULTICAST)
 			{
 				channelSendDetail = (ChannelSendDetail) nextSelectorActionable;
 				if (channelSendDetail.getChannelSendInfo() != channelSendInfo) break;
-				messageTopic = channelSendDetail.getMessageTopic();
+				messageTopicBytes = channelSendDetail.getMessageTopicBytes();
 				messageBytes = channelSendDetail.getMessageBytes();
-				messageTopicLength = messageTopic.length();
-				messageTopicBytes = messageTopic.getBytes();
+				messageTopicLength = messageTopicBytes.length;
 				messageBytesLength = messageBytes.length;
-				if (payloadBuffer.remaining() < PandaUtils.MESSAGE_HEADER_FIXED_SIZE + messageTopicLength + messageBytesLength) break;
+				if (multicastBuffer.remaining() < PandaUtils.MESSAGE_HEADER_FIXED_SIZE + messageTopicLength + messageBytesLength) break;
 				actionQueue.poll();
-				payloadBuffer.put((byte) messageTopicLength);
-				payloadBuffer.put(messageTopicBytes);
-				payloadBuffer.putShort((short) messageBytesLength);
-				payloadBuffer.put(messageBytes);
+				multicastBuffer.put((byte) messageTopicLength);
+				multicastBuffer.put(messageTopicBytes);
+				multicastBuffer.putShort((short) messageBytesLength);
+				multicastBuffer.put(messageBytes);
 				messageCount++;
 				nextSelectorActionable = actionQueue.peek();
 			}
-			multicastBuffer = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE + payloadBuffer.position());
-			multicastBuffer.put(PandaUtils.PACKET_HEADER_SIZE);
-			multicastBuffer.put(supportsRetransmissions);
-			multicastBuffer.putLong(sequenceNumber);
-			multicastBuffer.put(messageCount);
-			multicastBuffer.put(payloadBuffer.array(), 0, payloadBuffer.position());
+			multicastBuffer.put(packetStart + PandaUtils.PACKET_HEADER_SIZE - 1, messageCount);
 		}
 		try
 		{
-			multicastBuffer.flip();
+			multicastBuffer.limit(multicastBuffer.position());
+			multicastBuffer.position(packetStart);
 			channelSendInfo.sendToChannel(multicastBuffer);
 		}
 		catch (IOException e)
@@ -402,13 +375,76 @@ class SelectorThread extends Thread
 		}
 	}
 
+	static void sendClaimedData(ClaimedPacket claimedPacket)
+	{
+		ChannelSendInfo channelSendInfo = claimedPacket.getChannelSendInfo();
+		ByteBuffer packetBuffer = claimedPacket.getBuffer();
+		packetBuffer.putLong(PandaUtils.PACKET_SEQUENCE_NUMBER_OFFSET, channelSendInfo.incrementAndGetSequenceNumber());
+		try
+		{
+			channelSendInfo.sendToChannel(packetBuffer);
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			claimedPacket.sent();
+		}
+	}
+
 	private void registerMulticastChannel(MulticastRegistration registration)
 	{
 		try
 		{
 			DatagramChannel channel = registration.getChannel();
 			channel.register(this.selector, SelectionKey.OP_READ, registration.getAttachment());
-			channel.join(InetAddress.getByName(registration.getIp()), channel.getOption(StandardSocketOptions.IP_MULTICAST_IF));
+			this.memberships.put(channel, new MulticastMembership(channel, InetAddress.getByName(registration.getIp()), channel.getOption(StandardSocketOptions.IP_MULTICAST_IF),
+					registration.getSources()));
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+
+	// Leaves the group so the kernel stops delivering it, then frees the state of its sources
+	private void deregisterMulticastChannel(MulticastDeregistration deregistration)
+	{
+		DatagramChannel channel = deregistration.getChannel();
+		try
+		{
+			MulticastMembership membership = this.memberships.remove(channel);
+			if (membership != null) membership.drop();
+			SelectionKey selectionKey = channel.keyFor(this.selector);
+			if (selectionKey != null) selectionKey.cancel();
+			channel.close();
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+		finally
+		{
+			deregistration.getReceiveInfo().close();
+		}
+	}
+
+	private void filterMulticastSource(MulticastSourceFilter filter)
+	{
+		try
+		{
+			MulticastMembership membership = this.memberships.get(filter.getChannel());
+			if (membership == null) return;
+			if (filter.isBlock())
+			{
+				membership.block(filter.getSource());
+			}
+			else
+			{
+				membership.unblock(filter.getSource());
+			}
 		}
 		catch (Exception e)
 		{
@@ -428,11 +464,47 @@ class SelectorThread extends Thread
 		}
 	}
 
-	void sendToMulticastChannel(ChannelSendInfo sendInfo, String topic, byte[] bytes)
+	// The message is written into the ChannelSendDetail owned by the claimed ring slot, only an action queued by this thread while the ring is full allocates one
+	void sendToMulticastChannel(ChannelSendInfo sendInfo, byte[] topicBytes, byte[] bytes)
 	{
 		try
 		{
-			addToActionQueue(new ChannelSendDetail(sendInfo, topic, bytes));
+			boolean selectorThread = (Thread.currentThread() == this);
+			long sequence = (selectorThread && !this.selectorActionOverflowQueue.isEmpty()) ? -1 : this.selectorActionQueue.claim();
+			while (sequence < 0)
+			{
+				if (selectorThread)
+				{
+					this.selectorActionOverflowQueue.add(new ChannelSendDetail(sendInfo, topicBytes, bytes));
+					return;
+				}
+				wakeupSelector();
+				Thread.yield();
+				sequence = this.selectorActionQueue.claim();
+			}
+
+			int index = this.selectorActionQueue.indexOf(sequence);
+			ChannelSendDetail sendDetail = this.sendDetails[index];
+			if (sendDetail == null)
+			{
+				sendDetail = new ChannelSendDetail();
+				this.sendDetails[index] = sendDetail;
+			}
+			sendDetail.set(sendInfo, topicBytes, bytes);
+			this.selectorActionQueue.publish(sequence, sendDetail);
+			if (!selectorThread) wakeupSelector();
+		}
+		catch (Exception e)
+		{
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+
+	void sendToMulticastChannel(ClaimedPacket claimedPacket)
+	{
+		try
+		{
+			addToActionQueue(claimedPacket);
 		}
 		catch (Exception e)
 		{
@@ -459,7 +531,7 @@ class SelectorThread extends Thread
 				}
 				channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(recvBufferSize));
 				this.inDatagramChannels.put(multicastGroup, channel);
-				addToActionQueue(new MulticastRegistration(channel, ip, receiverInfo));
+				addToActionQueue(new MulticastRegistration(channel, ip, receiverInfo.getSources(), receiverInfo));
 			}
 		}
 		catch (Exception e)
@@ -468,6 +540,26 @@ class SelectorThread extends Thread
 		}
 	}
 
+	// Will be called synchronously, with the same lock as subscribeToMulticastChannel - the channel is closed and the receiverInfo closed on the selectorThread
+	void unsubscribeFromMulticastChannel(String multicastGroup, ChannelReceiveInfo receiverInfo)
+	{
+		DatagramChannel channel = this.inDatagramChannels.remove(multicastGroup);
+		if (channel != null)
+		{
+			addToActionQueue(new MulticastDeregistration(channel, receiverInfo));
+		}
+	}
+
+	// Will be called synchronously, with the same lock as subscribeToMulticastChannel - the kernel stops or resumes delivering the source's packets to the group's channel
+	void filterMulticastSource(String multicastGroup, InetAddress source, boolean block)
+	{
+		DatagramChannel channel = this.inDatagramChannels.get(multicastGroup);
+		if (channel != null)
+		{
+			addToActionQueue(new MulticastSourceFilter(channel, source, block));
+		}
+	}
+
 	void registerTcpChannelAction(AbstractSelectableChannel channel, int interestOps, Object attachment)
 	{
 		addToActionQueue(new TcpRegistration(channel, interestOps, attachment));
@@ -506,8 +598,32 @@ class SelectorThread extends Thread
 
 	private void addToActionQueue(SelectorActionable action)
 	{
-		this.selectorActionQueue.offer(action);
-		if (!shouldPegCpu()) this.selector.wakeup();
+		if (Thread.currentThread() == this)
+		{
+			// Never spin on our own queue - actions queued from within a callback are picked up on the next loop
+			if (!this.selectorActionOverflowQueue.isEmpty() || !this.selectorActionQueue.offer(action))
+			{
+				this.selectorActionOverflowQueue.add(action);
+			}
+			return;
+		}
+
+		while (!this.selectorActionQueue.offer(action))
+		{
+			wakeupSelector();
+			Thread.yield();
+		}
+		wakeupSelector();
+	}
+
+	// The idleStrategy may have been switched since the thread parked, so both ways it can be waiting are woken
+	private void wakeupSelector()
+	{
+		if (this.selectorParked.get() && this.selectorParked.compareAndSet(true, false))
+		{
+			this.selector.wakeup();
+			LockSupport.unpark(this);
+		}
 	}
 
 	@SuppressWarnings("static-method")
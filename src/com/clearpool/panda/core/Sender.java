@@ -1,14 +1,17 @@
 package com.clearpool.panda.core;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.codahale.metrics.MetricRegistry;
@@ -17,30 +20,63 @@ class Sender
 {
 	private final static Logger LOGGER = Logger.getLogger(Sender.class.getName());
 
-	private final SelectorThread selectorThread;
-	private final DatagramChannel outDatagramChannel;
+	private final SelectorThread[] selectorThreads;
+	private final DatagramChannel[] outDatagramChannels;
 	private final int cacheSize;
 	private final Map<String, ChannelSendInfo> channelInfos;
 	private final PandaProperties properties;
+	private final PacketSegmentPool[] segmentPools;
 
-	Sender(SelectorThread selectorThread, ServerSocketChannel tcpChannel, DatagramChannel udpChannel, int cacheSize, PandaProperties properties) throws Exception
+	// Each selectorThread accepts gap requests on tcpChannels[i] and sends from udpChannels[i], which are bound to the same port. Receivers connect to the port a group's
+	// packets came from, so its gap requests are served by the thread that owns its cache. The cache budget is split evenly between the threads.
+	Sender(SelectorThread[] selectorThreads, ServerSocketChannel[] tcpChannels, DatagramChannel[] udpChannels, int cacheSize, PandaProperties properties) throws Exception
 	{
-		this.selectorThread = selectorThread;
+		this.selectorThreads = selectorThreads;
 		this.cacheSize = cacheSize;
-		this.selectorThread.registerTcpChannelAction(tcpChannel, SelectionKey.OP_ACCEPT, this);
-		this.outDatagramChannel = udpChannel;
+		for (int i = 0; i < selectorThreads.length; i++)
+		{
+			selectorThreads[i].registerTcpChannelAction(tcpChannels[i], SelectionKey.OP_ACCEPT, this);
+		}
+		this.outDatagramChannels = udpChannels;
 		this.channelInfos = new ConcurrentHashMap<String, ChannelSendInfo>();
 		this.properties = properties;
+		long cacheBudgetBytes = properties.getLongProperty(PandaProperties.PACKET_CACHE_BUDGET_BYTES, 0);
+		this.segmentPools = new PacketSegmentPool[selectorThreads.length];
+		for (int i = 0; i < this.segmentPools.length; i++)
+		{
+			this.segmentPools[i] = (cacheBudgetBytes > 0 ? new PacketSegmentPool(cacheBudgetBytes / selectorThreads.length, PandaUtils.PACKET_CACHE_SEGMENT_SIZE) : null);
+		}
 	}
 
 	void send(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp, byte[] bytes) throws Exception
 	{
 		if (bytes.length > PandaUtils.MAX_PANDA_MESSAGE_SIZE) throw new Exception("Message length over size=" + PandaUtils.MAX_PANDA_MESSAGE_SIZE + " not allowed");
 		ChannelSendInfo channelInfo = getChannelSendInfo(ip, port, multicastGroup, interfaceIp);
-		this.selectorThread.sendToMulticastChannel(channelInfo, topic, bytes);
+		channelInfo.getSelectorThread().sendToMulticastChannel(channelInfo, channelInfo.getTopicBytes(topic), bytes);
 		channelInfo.updateTopicStats(topic);
 	}
 
+	void send(Publication publication, byte[] bytes) throws Exception
+	{
+		if (bytes.length > PandaUtils.MAX_PANDA_MESSAGE_SIZE) throw new Exception("Message length over size=" + PandaUtils.MAX_PANDA_MESSAGE_SIZE + " not allowed");
+		ChannelSendInfo channelInfo = publication.getChannelSendInfo();
+		channelInfo.getSelectorThread().sendToMulticastChannel(channelInfo, publication.getTopicBytes(), bytes);
+		channelInfo.updateTopicStats(publication.getTopic());
+	}
+
+	@SuppressWarnings("static-method")
+	BufferClaim tryClaim(Publication publication, int length) throws Exception
+	{
+		if (length > PandaUtils.MAX_PANDA_MESSAGE_SIZE) throw new Exception("Message length over size=" + PandaUtils.MAX_PANDA_MESSAGE_SIZE + " not allowed");
+		return publication.tryClaim(length);
+	}
+
+	Publication createPublication(String topic, String ip, int port, String multicastGroup, InetAddress interfaceIp) throws Exception
+	{
+		ChannelSendInfo channelInfo = getChannelSendInfo(ip, port, multicastGroup, interfaceIp);
+		return new Publication(topic, channelInfo, channelInfo.getSelectorThread());
+	}
+
 	private ChannelSendInfo getChannelSendInfo(String ip, int port, String multicastGroup, InetAddress interfaceIp) throws Exception
 	{
 		ChannelSendInfo sendInfo = this.channelInfos.get(multicastGroup);
@@ -51,7 +87,9 @@ class Sender
 				sendInfo = this.channelInfos.get(multicastGroup);
 				if (sendInfo == null)
 				{
-					sendInfo = new ChannelSendInfo(ip, port, multicastGroup, this.cacheSize, interfaceIp, this.outDatagramChannel, this.properties);
+					int selectorIndex = PandaUtils.getSelectorThreadIndex(multicastGroup, this.selectorThreads.length, this.properties);
+					sendInfo = new ChannelSendInfo(ip, port, multicastGroup, this.cacheSize, interfaceIp, this.outDatagramChannels[selectorIndex], this.properties,
+							this.segmentPools[selectorIndex], this.selectorThreads[selectorIndex]);
 					this.channelInfos.put(multicastGroup, sendInfo);
 				}
 			}
@@ -59,51 +97,87 @@ class Sender
 		return sendInfo;
 	}
 
-	void processGapRequest(SocketChannel channel, ByteBuffer tcpBuffer)
+	// Called by selectorThread
+	// missingSequenceNumbers selects which packets of the range to resend, every packet in the range is resent when it is null
+	GapResponseManager processGapRequest(SocketChannel channel, int requestId, long startSequenceNumber, int packetCount, BitSet missingSequenceNumbers, String multicastGroup)
 	{
-		if (tcpBuffer.remaining() >= PandaUtils.RETRANSMISSION_REQUEST_HEADER_SIZE)
+		List<Pair<Long, Long>> cachedRanges = new ArrayList<Pair<Long, Long>>();
+		ChannelSendInfo sendInfo = this.channelInfos.get(multicastGroup);
+		if (sendInfo != null && sendInfo.getSelectorThread() != Thread.currentThread())
+		{
+			// The cache belongs to another selectorThread, the requester connected to a port this group is not sent from
+			LOGGER.severe("Unable to fullfil request because multicastGroup=" + multicastGroup + " is not sent from this port");
+			sendInfo = null;
+		}
+		else if (sendInfo != null)
 		{
-			long startSequenceNumber = tcpBuffer.getLong();
-			int packetCount = tcpBuffer.getInt();
-			byte multicastGroupLength = tcpBuffer.get();
-			if (tcpBuffer.remaining() >= multicastGroupLength)
+			if (missingSequenceNumbers == null)
 			{
-				byte[] bytes = new byte[multicastGroupLength];
-				tcpBuffer.get(bytes);
-				String multicastGroup = new String(bytes);
-
-				Pair<List<byte[]>, Long> cachedPackets = null;
-				ChannelSendInfo sendInfo = this.channelInfos.get(multicastGroup);
-				if (sendInfo != null)
-				{
-					cachedPackets = sendInfo.getCachedPackets(startSequenceNumber, packetCount);
-				}
-				else
+				addCachedRange(cachedRanges, sendInfo, startSequenceNumber, packetCount);
+			}
+			else
+			{
+				// Each run of missing sequenceNumbers is resent as its own range
+				int runStart = missingSequenceNumbers.nextSetBit(0);
+				while (runStart >= 0 && runStart < packetCount)
 				{
-					LOGGER.severe("Unable to fullfil request because can't find sendinfo for multicastGroup=" + multicastGroup);
+					int runEnd = Math.min(packetCount, missingSequenceNumbers.nextClearBit(runStart));
+					addCachedRange(cachedRanges, sendInfo, startSequenceNumber + runStart, runEnd - runStart);
+					runStart = missingSequenceNumbers.nextSetBit(runEnd);
 				}
+			}
+		}
+		else
+		{
+			LOGGER.severe("Unable to fullfil request because can't find sendinfo for multicastGroup=" + multicastGroup);
+		}
 
-				if (cachedPackets == null)
-				{
-					this.selectorThread.registerTcpChannelAction(channel, SelectionKey.OP_WRITE, new GapResponseManager(channel, null, 0));
-					LOGGER.warning("SERVICING REQUEST - |Group=" + multicastGroup + "|startSequenceNumber=" + startSequenceNumber + "|packetCount=" + packetCount
-							+ "|responseStart=0|responsePacketCount=0");
-				}
-				else
-				{
-					List<byte[]> respondedPackets = cachedPackets.getA();
-					long respondedStartSequenceNumber = cachedPackets.getB().longValue();
-					this.selectorThread.registerTcpChannelAction(channel, SelectionKey.OP_WRITE, new GapResponseManager(channel, respondedPackets, respondedStartSequenceNumber));
-					LOGGER.warning("SERVICING REQUEST - |Group=" + multicastGroup + "|startSequenceNumber=" + startSequenceNumber + "|packetCount=" + packetCount
-							+ "|responseStart=" + respondedStartSequenceNumber + "|responsePacketCount=" + respondedPackets.size());
-				}
+		GapResponseManager responseManager = new GapResponseManager(channel, (sendInfo == null) ? null : sendInfo.getPacketCache(), requestId, cachedRanges);
+		LOGGER.warning("SERVICING REQUEST - |Group=" + multicastGroup + "|startSequenceNumber=" + startSequenceNumber + "|packetCount=" + packetCount + "|selective="
+				+ (missingSequenceNumbers != null) + "|responseStart=" + responseManager.getStartSequenceNumber() + "|responsePacketCount=" + responseManager.getTotalPackets()
+				+ "|repair=" + (sendInfo != null && sendInfo.isRepairMulticast()) + "|requestId=" + requestId);
+		if (sendInfo != null && sendInfo.isRepairMulticast() && !cachedRanges.isEmpty())
+		{
+			GapResponseManager repairedResponseManager = sendRepair(channel, requestId, sendInfo, cachedRanges, responseManager, sendInfo.getSelectorThread()
+					.getCurrentTimeMillis());
+			if (repairedResponseManager != responseManager) return repairedResponseManager;
+		}
+		if (sendInfo != null) sendInfo.addPacketsResent(responseManager.getTotalPackets());
+		return responseManager;
+	}
+
+	// The packets go out once on the group's repair channel and the requester is only told to expect them there, so the cost of a loss event does not grow with the
+	// number of receivers. Falls back to the unicast response if the repair can not be sent.
+	private static GapResponseManager sendRepair(SocketChannel channel, int requestId, ChannelSendInfo sendInfo, List<Pair<Long, Long>> cachedRanges,
+			GapResponseManager unicastResponseManager, long now)
+	{
+		try
+		{
+			for (Pair<Long, Long> cachedRange : cachedRanges)
+			{
+				sendInfo.sendRepair(cachedRange.getA().longValue(), cachedRange.getB().longValue(), now);
 			}
+			return GapResponseManager.createRepairedResponse(channel, requestId, unicastResponseManager.getStartSequenceNumber());
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.SEVERE, "Unable to multicast repair for group=" + sendInfo.getMulticastGroup() + ", responding with unicast", e);
+			return unicastResponseManager;
 		}
 	}
 
-	void close()
+	private static void addCachedRange(List<Pair<Long, Long>> cachedRanges, ChannelSendInfo sendInfo, long startSequenceNumber, int packetCount)
 	{
+		Pair<Long, Long> cachedRange = sendInfo.getCachedRange(startSequenceNumber, packetCount);
+		if (cachedRange != null) cachedRanges.add(cachedRange);
+	}
 
+	void close()
+	{
+		for (ChannelSendInfo sendInfo : this.channelInfos.values())
+		{
+			sendInfo.close();
+		}
 	}
 
 	void recordStats(MetricRegistry metricsRegistry, String prefix)
@@ -113,10 +187,16 @@ class Sender
 			long packetsSent = sendInfo.getPacketsSent();
 			long bytesSent = sendInfo.getBytesSent();
 			long packetsResent = sendInfo.getPacketsResent();
+			long packetsRepaired = sendInfo.getPacketsRepaired();
+			long fecPacketsSent = sendInfo.getFecPacketsSent();
+			long heartbeatsSent = sendInfo.getHeartbeatsSent();
 
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_SENT-" + sendInfo.getMulticastGroup()), packetsSent);
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-BYTES_SENT-" + sendInfo.getMulticastGroup()), bytesSent);
 			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_RESENT-" + sendInfo.getMulticastGroup()), packetsResent);
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-PACKETS_REPAIRED-" + sendInfo.getMulticastGroup()), packetsRepaired);
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-FEC_PACKETS_SENT-" + sendInfo.getMulticastGroup()), fecPacketsSent);
+			PandaUtils.updateMeterAsCounter(metricsRegistry.meter(prefix + "-HEARTBEATS_SENT-" + sendInfo.getMulticastGroup()), heartbeatsSent);
 
 			for (Object topicSent : sendInfo.getTopicSentCounters().keys())
 			{
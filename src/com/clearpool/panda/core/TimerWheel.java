@@ -0,0 +1,170 @@
+package com.clearpool.panda.core;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Hashed timer wheel with tickMillis resolution. A timer is linked into the slot of its deadline tick and timers more than one turn of the wheel away are skipped until the
+// wheel comes round to their turn, so scheduling, cancelling and each tick are O(1) in the number of timers. Only touched by the selectorThread.
+class TimerWheel
+{
+	private static final Logger LOGGER = Logger.getLogger(TimerWheel.class.getName());
+
+	private final long tickMillis;
+	private final int mask;
+	private final WheelTimer[] slots;
+
+	private long currentTick;
+	private int timerCount;
+	private long nextDeadline;
+	private long nextTick;
+	private boolean nextDeadlineKnown;
+
+	TimerWheel(long tickMillis, int slotCount, long now)
+	{
+		this.tickMillis = tickMillis;
+		this.slots = new WheelTimer[PandaUtils.nextPowerOfTwo(slotCount)];
+		this.mask = this.slots.length - 1;
+
+		this.currentTick = now / tickMillis;
+		this.timerCount = 0;
+		this.nextDeadline = Long.MAX_VALUE;
+		this.nextTick = this.currentTick + 1;
+		this.nextDeadlineKnown = true;
+	}
+
+	// Reschedules the timer if it is already scheduled, a deadline that has already passed fires on the next tick
+	void schedule(WheelTimer timer, long deadline)
+	{
+		if (timer.isScheduled()) unlink(timer);
+		long tick = Math.max(deadline / this.tickMillis, this.currentTick + 1);
+		int index = (int) (tick & this.mask);
+		timer.deadline = deadline;
+		timer.tick = tick;
+		timer.slot = index;
+		timer.previous = null;
+		timer.next = this.slots[index];
+		if (timer.next != null) timer.next.previous = timer;
+		this.slots[index] = timer;
+		this.timerCount++;
+		if (this.nextDeadlineKnown)
+		{
+			if (deadline < this.nextDeadline)
+			{
+				this.nextDeadline = deadline;
+				this.nextTick = tick;
+			}
+		}
+		else if (tick < this.nextTick)
+		{
+			this.nextTick = tick;
+		}
+	}
+
+	void cancel(WheelTimer timer)
+	{
+		if (timer.isScheduled()) unlink(timer);
+	}
+
+	private void unlink(WheelTimer timer)
+	{
+		if (timer.previous != null)
+		{
+			timer.previous.next = timer.next;
+		}
+		else
+		{
+			this.slots[timer.slot] = timer.next;
+		}
+		if (timer.next != null) timer.next.previous = timer.previous;
+		timer.previous = null;
+		timer.next = null;
+		timer.slot = -1;
+		this.timerCount--;
+		if (timer.deadline == this.nextDeadline) this.nextDeadlineKnown = false;
+	}
+
+	// Fires every timer whose deadline tick has been reached. Timers are unlinked before any of them fires, so a timer scheduled from expired() waits for a later call.
+	int expire(long now)
+	{
+		long nowTick = now / this.tickMillis;
+		if (nowTick <= this.currentTick) return 0;
+		WheelTimer expiredTimers = null;
+		long ticks = Math.min(nowTick - this.currentTick, this.slots.length);
+		for (long tick = this.currentTick + 1; tick <= this.currentTick + ticks; tick++)
+		{
+			WheelTimer timer = this.slots[(int) (tick & this.mask)];
+			while (timer != null)
+			{
+				WheelTimer nextTimer = timer.next;
+				if (timer.deadline / this.tickMillis <= nowTick)
+				{
+					unlink(timer);
+					timer.next = expiredTimers;
+					expiredTimers = timer;
+				}
+				timer = nextTimer;
+			}
+		}
+		this.currentTick = nowTick;
+
+		int expiredCount = 0;
+		while (expiredTimers != null)
+		{
+			WheelTimer timer = expiredTimers;
+			expiredTimers = timer.next;
+			timer.next = null;
+			try
+			{
+				timer.expired(now);
+			}
+			catch (Exception e)
+			{
+				LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			}
+			expiredCount++;
+		}
+		return expiredCount;
+	}
+
+	// Earliest deadline of the scheduled timers, Long.MAX_VALUE if there are none. No timer is due before the tick of the earliest one, so the scan starts there and stops
+	// at the first tick with a timer due in it; all timers are only looked at when none is due within a turn of the wheel.
+	long getNextDeadline()
+	{
+		if (this.nextDeadlineKnown) return this.nextDeadline;
+		this.nextDeadlineKnown = true;
+		this.nextDeadline = Long.MAX_VALUE;
+		if (this.timerCount == 0) return this.nextDeadline;
+
+		long firstTick = Math.max(this.nextTick, this.currentTick + 1);
+		for (long tick = firstTick; tick < firstTick + this.slots.length; tick++)
+		{
+			for (WheelTimer timer = this.slots[(int) (tick & this.mask)]; timer != null; timer = timer.next)
+			{
+				if (timer.tick == tick && timer.deadline < this.nextDeadline) this.nextDeadline = timer.deadline;
+			}
+			if (this.nextDeadline != Long.MAX_VALUE)
+			{
+				this.nextTick = tick;
+				return this.nextDeadline;
+			}
+		}
+
+		for (WheelTimer timer : this.slots)
+		{
+			for (; timer != null; timer = timer.next)
+			{
+				if (timer.deadline < this.nextDeadline)
+				{
+					this.nextDeadline = timer.deadline;
+					this.nextTick = timer.tick;
+				}
+			}
+		}
+		return this.nextDeadline;
+	}
+
+	int getTimerCount()
+	{
+		return this.timerCount;
+	}
+}
@@ -0,0 +1,175 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Values by the wire bytes of their topic, so a message's topic is looked up straight from the packet buffer without building a String. Open addressing with linear probing
+// over a table at most half full. A table built from the subscribed topics is never changed, a new one is built and published whenever a topic is added, so readers need no
+// locking. Its wildcard topics go to a TopicTrie instead. A table built with a capacity is owned by one thread that adds to it, such as a cache of wildcard matches. Topics
+// of a length no entry has are rejected before hashing.
+class TopicTable<T>
+{
+	private static final int NOT_FOUND = -1;
+
+	private final int mask;
+	private final byte[][] topicBytes;
+	private final String[] topics;
+	private final int[] hashes;
+	private final Object[] values;
+	private final TopicTrie<T> wildcards;
+
+	private long lengthMask;
+	private int size;
+
+	TopicTable(Map<String, T> valuesByTopic)
+	{
+		this.mask = PandaUtils.nextPowerOfTwo(Math.max(2, 2 * valuesByTopic.size())) - 1;
+		this.topicBytes = new byte[this.mask + 1][];
+		this.topics = new String[this.mask + 1];
+		this.hashes = new int[this.mask + 1];
+		this.values = new Object[this.mask + 1];
+		this.lengthMask = 0;
+		this.size = 0;
+
+		Map<String, T> valuesByWildcardTopic = new HashMap<String, T>();
+		for (Map.Entry<String, T> entry : valuesByTopic.entrySet())
+		{
+			if (entry.getValue() == null) continue;
+			if (TopicTrie.isWildcard(entry.getKey()))
+			{
+				valuesByWildcardTopic.put(entry.getKey(), entry.getValue());
+			}
+			else
+			{
+				byte[] bytes = entry.getKey().getBytes();
+				put(bytes, hash(bytes), entry.getKey(), entry.getValue());
+			}
+		}
+		this.wildcards = valuesByWildcardTopic.isEmpty() ? null : new TopicTrie<T>(valuesByWildcardTopic);
+	}
+
+	// An empty table for up to capacity topics, values may be null to remember topics that have none
+	TopicTable(int capacity)
+	{
+		this.mask = PandaUtils.nextPowerOfTwo(Math.max(2, 2 * capacity)) - 1;
+		this.topicBytes = new byte[this.mask + 1][];
+		this.topics = new String[this.mask + 1];
+		this.hashes = new int[this.mask + 1];
+		this.values = new Object[this.mask + 1];
+		this.wildcards = null;
+		this.lengthMask = 0;
+		this.size = 0;
+	}
+
+	// Adds the topic of length bytes at offset of buffer, which must not be in the table yet. Returns its index, or a negative value when the table is full.
+	int add(ByteBuffer buffer, int offset, int length, String topic, T value)
+	{
+		if (2 * (this.size + 1) > this.mask + 1) return NOT_FOUND;
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = buffer.get(offset + i);
+		}
+		return put(bytes, hash(bytes), topic, value);
+	}
+
+	void clear()
+	{
+		Arrays.fill(this.topicBytes, null);
+		Arrays.fill(this.topics, null);
+		Arrays.fill(this.values, null);
+		this.lengthMask = 0;
+		this.size = 0;
+	}
+
+	private int put(byte[] bytes, int hash, String topic, Object value)
+	{
+		int index = hash & this.mask;
+		while (this.topicBytes[index] != null)
+		{
+			index = (index + 1) & this.mask;
+		}
+		this.topicBytes[index] = bytes;
+		this.topics[index] = topic;
+		this.hashes[index] = hash;
+		this.values[index] = value;
+		this.lengthMask |= lengthBit(bytes.length);
+		this.size++;
+		return index;
+	}
+
+	// Index of the topic of length bytes at offset of buffer, or a negative value when no entry has it. Does not move the position of buffer.
+	int indexOf(ByteBuffer buffer, int offset, int length)
+	{
+		if ((this.lengthMask & lengthBit(length)) == 0) return NOT_FOUND;
+		int hash = hash(buffer, offset, length);
+		int index = hash & this.mask;
+		byte[] bytes;
+		while ((bytes = this.topicBytes[index]) != null)
+		{
+			if (this.hashes[index] == hash && matches(bytes, buffer, offset, length)) return index;
+			index = (index + 1) & this.mask;
+		}
+		return NOT_FOUND;
+	}
+
+	@SuppressWarnings("unchecked")
+	T getValue(int index)
+	{
+		return (T) this.values[index];
+	}
+
+	String getTopic(int index)
+	{
+		return this.topics[index];
+	}
+
+	// Null when no wildcard topic was subscribed
+	TopicTrie<T> getWildcards()
+	{
+		return this.wildcards;
+	}
+
+	int size()
+	{
+		return this.size;
+	}
+
+	private static boolean matches(byte[] bytes, ByteBuffer buffer, int offset, int length)
+	{
+		if (bytes.length != length) return false;
+		for (int i = 0; i < length; i++)
+		{
+			if (bytes[i] != buffer.get(offset + i)) return false;
+		}
+		return true;
+	}
+
+	private static long lengthBit(int length)
+	{
+		return 1L << (length & 63);
+	}
+
+	// FNV-1a, the same over a byte[] and over a range of a buffer
+	private static int hash(byte[] bytes)
+	{
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < bytes.length; i++)
+		{
+			hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+		}
+		return hash;
+	}
+
+	private static int hash(ByteBuffer buffer, int offset, int length)
+	{
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < length; i++)
+		{
+			hash = (hash ^ (buffer.get(offset + i) & 0xFF)) * 0x01000193;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,139 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+// Values of wildcard topics, matched against a topic's wire bytes in one walk. A '*' at the end of a topic matches the rest of any topic, anywhere else it matches one or
+// more bytes up to the next '.', so EQ.NYSE.* matches every EQ.NYSE topic and EQ.*.IBM matches IBM on every exchange. When several wildcard topics match, the one whose
+// literal bytes match furthest wins. Never changed once built.
+class TopicTrie<T>
+{
+	static final byte WILDCARD = '*';
+	private static final byte SEPARATOR = '.';
+
+	private final Node root;
+	private final int size;
+
+	TopicTrie(Map<String, T> valuesByWildcardTopic)
+	{
+		this.root = new Node();
+		int entries = 0;
+		for (Map.Entry<String, T> entry : valuesByWildcardTopic.entrySet())
+		{
+			if (entry.getValue() == null) continue;
+			add(entry.getKey().getBytes(), entry.getValue());
+			entries++;
+		}
+		this.size = entries;
+	}
+
+	static boolean isWildcard(String topic)
+	{
+		return topic.indexOf(WILDCARD) >= 0;
+	}
+
+	private void add(byte[] topicBytes, Object value)
+	{
+		Node node = this.root;
+		for (int i = 0; i < topicBytes.length; i++)
+		{
+			if (topicBytes[i] != WILDCARD)
+			{
+				node = node.getOrAddChild(topicBytes[i]);
+			}
+			else if (i == topicBytes.length - 1)
+			{
+				node.restValue = value;
+				return;
+			}
+			else
+			{
+				if (node.segmentWildcard == null) node.segmentWildcard = new Node();
+				node = node.segmentWildcard;
+			}
+		}
+		node.value = value;
+	}
+
+	// Value of the wildcard topic matching the topic of length bytes at offset of buffer, or null. Does not move the position of buffer.
+	@SuppressWarnings("unchecked")
+	T match(ByteBuffer buffer, int offset, int length)
+	{
+		return (T) match(this.root, buffer, offset, offset + length);
+	}
+
+	private static Object match(Node node, ByteBuffer buffer, int position, int end)
+	{
+		// Literal bytes first, so the most specific wildcard topic wins
+		if (position == end)
+		{
+			if (node.value != null) return node.value;
+		}
+		else
+		{
+			Node child = node.getChild(buffer.get(position));
+			if (child != null)
+			{
+				Object value = match(child, buffer, position + 1, end);
+				if (value != null) return value;
+			}
+		}
+
+		if (node.segmentWildcard != null)
+		{
+			for (int segmentEnd = position + 1; segmentEnd <= end && buffer.get(segmentEnd - 1) != SEPARATOR; segmentEnd++)
+			{
+				Object value = match(node.segmentWildcard, buffer, segmentEnd, end);
+				if (value != null) return value;
+			}
+		}
+		return node.restValue;
+	}
+
+	int size()
+	{
+		return this.size;
+	}
+
+	private static class Node
+	{
+		private byte[] labels;
+		private Node[] children;
+		Node segmentWildcard;
+		Object value;
+		Object restValue;
+
+		Node()
+		{
+			this.labels = new byte[0];
+			this.children = new Node[0];
+			this.segmentWildcard = null;
+			this.value = null;
+			this.restValue = null;
+		}
+
+		Node getChild(byte label)
+		{
+			for (int i = 0; i < this.labels.length; i++)
+			{
+				if (this.labels[i] == label) return this.children[i];
+			}
+			return null;
+		}
+
+		Node getOrAddChild(byte label)
+		{
+			Node child = getChild(label);
+			if (child == null)
+			{
+				child = new Node();
+				this.labels = Arrays.copyOf(this.labels, this.labels.length + 1);
+				this.children = Arrays.copyOf(this.children, this.children.length + 1);
+				this.labels[this.labels.length - 1] = label;
+				this.children[this.children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.clearpool.panda.core;
+
+// Timer of a TimerWheel, linked into its slot in place so rescheduling the same timer does not allocate
+abstract class WheelTimer
+{
+	long deadline;
+	long tick;
+	int slot = -1;
+	WheelTimer previous;
+	WheelTimer next;
+
+	// Called by selectorThread once the deadline has passed, the timer may be scheduled again from here
+	abstract void expired(long now);
+
+	boolean isScheduled()
+	{
+		return this.slot >= 0;
+	}
+
+	long getDeadline()
+	{
+		return this.deadline;
+	}
+}
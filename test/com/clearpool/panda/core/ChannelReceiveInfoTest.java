@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -75,6 +78,364 @@ public class ChannelReceiveInfoTest
 		Assert.assertEquals(5, channelReceiveInfo.getMessagesReceived());
 	}
 
+	@Test
+	public void testDeliveryThread() throws Exception
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		DeliveryThread deliveryThread = new DeliveryThread("testDeliveryThread", 0);
+		deliveryThread.start();
+		final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS,
+				deliveryThread)
+		{
+			@Override
+			void callErrorListeners(PandaErrorCode errorCode, String message, Throwable throwable)
+			{
+				delivered.add(errorCode.name());
+			}
+		};
+		channelReceiveInfo.registerTopicListener("1", new PandaDataListener()
+		{
+			@Override
+			public void receivedPandaData(String topic, byte[] payload)
+			{
+				delivered.add(Thread.currentThread().getName() + ":" + ByteBuffer.wrap(payload).getInt());
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		});
+
+		// Packets 1 and 3 arrive before 2, listeners still see them in sequence and errors in between
+		InetSocketAddress sourceAddress = new InetSocketAddress("127.0.0.2", 10);
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 1));
+		channelReceiveInfo.deliverErrorToListeners(PandaErrorCode.EXCEPTION, "test", null);
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 3));
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 2));
+
+		long timeout = System.currentTimeMillis() + 1000;
+		while (delivered.size() < 4)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < timeout);
+			Thread.sleep(1);
+		}
+		Assert.assertEquals("[testDeliveryThread:1, EXCEPTION, testDeliveryThread:2, testDeliveryThread:3]", delivered.toString());
+		Assert.assertEquals(3, channelReceiveInfo.getPacketsReceived());
+		Assert.assertEquals(0, deliveryThread.getRingBytesUsed());
+		Assert.assertTrue(deliveryThread.getRingMaxBytesUsed() > 0);
+		deliveryThread.interrupt();
+		deliveryThread.join();
+	}
+
+	@Test
+	public void testDroppedErrorIsNotDeliveredLater() throws Exception
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		DeliveryThread deliveryThread = new DeliveryThread("testDeliveryThread", 0);
+		Assert.assertTrue(deliveryThread.isDaemon());
+		final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS,
+				deliveryThread)
+		{
+			@Override
+			void parseAndCallListeners(byte messageCount, ByteBuffer packetBuffer)
+			{
+			}
+
+			@Override
+			void callErrorListeners(PandaErrorCode errorCode, String message, Throwable throwable)
+			{
+				delivered.add(message);
+			}
+		};
+
+		// Nothing drains the ring before the thread starts, so once it is full the error is dropped
+		int recordLength = 65536;
+		for (int i = 0; i < deliveryThread.getRingCapacity() / recordLength; i++)
+		{
+			channelReceiveInfo.parseAndDeliverToListeners((byte) 1, ByteBuffer.allocate(recordLength - ReceiveRing.RECORD_HEADER_SIZE));
+		}
+		Assert.assertEquals(deliveryThread.getRingCapacity(), deliveryThread.getRingBytesUsed());
+		channelReceiveInfo.deliverErrorToListeners(PandaErrorCode.EXCEPTION, "dropped", null);
+
+		deliveryThread.start();
+		channelReceiveInfo.deliverErrorToListeners(PandaErrorCode.EXCEPTION, "delivered", null);
+		long timeout = System.currentTimeMillis() + 1000;
+		while (delivered.isEmpty())
+		{
+			Assert.assertTrue(System.currentTimeMillis() < timeout);
+			Thread.sleep(1);
+		}
+		Assert.assertEquals("[delivered]", delivered.toString());
+		deliveryThread.interrupt();
+		deliveryThread.join();
+	}
+
+	@Test
+	public void testLeaveClosesSources() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		PandaMessageListener listener = new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		};
+		Assert.assertTrue(channelReceiveInfo.registerTopicListeners(Collections.singleton("1"), listener));
+
+		// Packet 3 is queued behind the gap
+		InetSocketAddress sourceAddress = new InetSocketAddress("127.0.0.2", 10);
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 1));
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 3));
+		Assert.assertEquals(1, channelReceiveInfo.getSourceInfos().size());
+
+		Assert.assertFalse(channelReceiveInfo.markLeaving(false));
+		Assert.assertTrue(channelReceiveInfo.markLeaving(true));
+		Assert.assertFalse(channelReceiveInfo.markLeaving(true));
+		Assert.assertEquals(0, channelReceiveInfo.getTopicCount());
+		Assert.assertFalse(channelReceiveInfo.registerTopicListeners(Collections.singleton("1"), listener));
+		channelReceiveInfo.leave();
+		Assert.assertTrue(channelReceiveInfo.isClosed());
+		Assert.assertEquals(0, channelReceiveInfo.getSourceInfos().size());
+
+		// Packets read before the channel closed are dropped
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 2));
+		Assert.assertEquals(0, channelReceiveInfo.getSourceInfos().size());
+		Assert.assertEquals(1, channelReceiveInfo.getPacketsReceived());
+	}
+
+	@Test
+	public void testMessageListenerGetsViewsOverPacket() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		final String subscribedTopic = new String("1");
+		final List<PandaMessage> messages = new ArrayList<PandaMessage>();
+		final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		final List<Integer> payloads = new ArrayList<Integer>();
+		channelReceiveInfo.registerTopicListener(subscribedTopic, new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+				messages.add(message);
+				buffers.add(message.getBuffer());
+				Assert.assertEquals(subscribedTopic, message.getTopic());
+				Assert.assertEquals(4, message.getLength());
+				Assert.assertEquals(message.getOffset(), message.getBuffer().position());
+				Assert.assertEquals(4, message.getBuffer().remaining());
+				Assert.assertTrue(message.getBuffer().isReadOnly());
+				payloads.add(Integer.valueOf(message.getBuffer().getInt(message.getOffset())));
+				Assert.assertEquals(ByteBuffer.wrap(message.getBytes()).getInt(), payloads.get(payloads.size() - 1).intValue());
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		});
+
+		// Both packets arrive in the same buffer, as they do from the selectorThread
+		InetSocketAddress sourceAddress = new InetSocketAddress("127.0.0.2", 10);
+		ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(PandaUtils.MAX_UDP_SIZE);
+		for (long sequenceNumber = 1; sequenceNumber <= 2; sequenceNumber++)
+		{
+			receiveBuffer.clear();
+			receiveBuffer.put(createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 3, sequenceNumber));
+			receiveBuffer.flip();
+			channelReceiveInfo.dataReceived(sourceAddress, receiveBuffer);
+		}
+
+		Assert.assertEquals("[1, 1, 1, 2, 2, 2]", payloads.toString());
+		Assert.assertEquals(6, channelReceiveInfo.getMessagesHandled());
+		for (int i = 1; i < messages.size(); i++)
+		{
+			Assert.assertSame(messages.get(0), messages.get(i));
+			Assert.assertSame(buffers.get(0), buffers.get(i));
+		}
+	}
+
+	@Test
+	public void testWildcardSubscription() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		final List<String> topics = new ArrayList<String>();
+		channelReceiveInfo.registerTopicListener("*", new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+				topics.add(message.getTopic());
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		});
+
+		InetSocketAddress sourceAddress = new InetSocketAddress("127.0.0.2", 10);
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 3, 1));
+		Assert.assertEquals("[1, 1, 1]", topics.toString());
+		Assert.assertSame(topics.get(0), topics.get(2));
+
+		// An exact subscription takes the topic over from the wildcard
+		final List<String> exactTopics = new ArrayList<String>();
+		channelReceiveInfo.registerTopicListener("1", new PandaDataListener()
+		{
+			@Override
+			public void receivedPandaData(String topic, byte[] payload)
+			{
+				exactTopics.add(topic);
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		});
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 2, 2));
+		Assert.assertEquals(3, topics.size());
+		Assert.assertEquals("[1, 1]", exactTopics.toString());
+		Assert.assertEquals(5, channelReceiveInfo.getMessagesHandled());
+	}
+
+	@Test
+	public void testListenersShareOneView() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		final List<String> received = new ArrayList<String>();
+		final List<PandaMessage> messages = new ArrayList<PandaMessage>();
+		PandaMessageListener firstListener = new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+				messages.add(message);
+				received.add("first:" + message.getBuffer().getInt());
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+				received.add("first:" + issueCode.name());
+			}
+		};
+		PandaMessageListener secondListener = new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+				messages.add(message);
+				received.add("second:" + message.getBuffer().getInt());
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+				received.add("second:" + issueCode.name());
+			}
+		};
+		Assert.assertNull(channelReceiveInfo.registerTopicListener("1", firstListener));
+		Assert.assertNull(channelReceiveInfo.registerTopicListener("1", secondListener));
+		Assert.assertSame(firstListener, channelReceiveInfo.registerTopicListener("1", firstListener));
+		Assert.assertNull(channelReceiveInfo.registerTopicListener("2", firstListener));
+
+		// The first listener reads the payload, the second still sees it from the start
+		channelReceiveInfo.dataReceived(new InetSocketAddress("127.0.0.2", 10), createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, 7));
+		Assert.assertEquals("[first:7, second:7]", received.toString());
+		Assert.assertSame(messages.get(0), messages.get(1));
+		Assert.assertEquals(1, channelReceiveInfo.getMessagesHandled());
+
+		// Each listener on the group hears of an error once
+		received.clear();
+		channelReceiveInfo.deliverErrorToListeners(PandaErrorCode.EXCEPTION, "test", null);
+		Assert.assertEquals("[first:EXCEPTION, second:EXCEPTION]", received.toString());
+	}
+
+	@Test
+	public void testConcurrentBatchSubscribeWhileDelivering() throws Exception
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		final ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		final int[] delivered = new int[1];
+		final PandaMessageListener listener = new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+				delivered[0]++;
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		};
+
+		// Four threads subscribe 500 topics each in batches of 50, topic 1 comes with the last batch of the first thread
+		Thread[] subscribers = new Thread[4];
+		for (int t = 0; t < subscribers.length; t++)
+		{
+			final int thread = t;
+			subscribers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int batch = 0; batch < 10; batch++)
+					{
+						List<String> topics = new ArrayList<String>();
+						for (int i = 0; i < 50; i++)
+						{
+							topics.add("T" + thread + "." + batch + "." + i);
+						}
+						if (thread == 0 && batch == 9) topics.add("1");
+						channelReceiveInfo.registerTopicListeners(topics, listener);
+					}
+				}
+			};
+			subscribers[t].start();
+		}
+		InetSocketAddress sourceAddress = new InetSocketAddress("127.0.0.2", 10);
+		long sequenceNumber = 1;
+		while (subscribers[0].isAlive())
+		{
+			channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, sequenceNumber++));
+		}
+		for (Thread subscriber : subscribers)
+		{
+			subscriber.join();
+		}
+		Assert.assertEquals(2001, channelReceiveInfo.getTopicCount());
+
+		int deliveredBefore = delivered[0];
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, sequenceNumber++));
+		Assert.assertEquals(deliveredBefore + 1, delivered[0]);
+
+		// Unsubscribing the batch with topic 1 stops its delivery
+		List<String> topics = new ArrayList<String>();
+		topics.add("1");
+		topics.add("T0.0.0");
+		topics.add("NOT_SUBSCRIBED");
+		Assert.assertTrue(channelReceiveInfo.unregisterTopicListeners(topics, listener));
+		Assert.assertFalse(channelReceiveInfo.unregisterTopicListeners(topics, listener));
+		Assert.assertEquals(1999, channelReceiveInfo.getTopicCount());
+		channelReceiveInfo.dataReceived(sourceAddress, createPacketBuffer(PandaUtils.PACKET_HEADER_SIZE, 1, sequenceNumber++));
+		Assert.assertEquals(deliveredBefore + 1, delivered[0]);
+	}
+
 	private static ByteBuffer createPacketBuffer(int packetHeaderSize, int messageCount, long sequenceNumber)
 	{
 		String topic = "1";
@@ -93,7 +454,7 @@ public class ChannelReceiveInfoTest
 			buffer.put((byte) 1);
 			buffer.put(topic.getBytes());
 			buffer.putShort((short) 4); // messageLength
-			buffer.putInt(0);
+			buffer.putInt((int) sequenceNumber);
 		}
 		buffer.rewind();
 		return buffer;
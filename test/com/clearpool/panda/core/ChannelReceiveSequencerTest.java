@@ -98,31 +98,134 @@ public class ChannelReceiveSequencerTest
 		Assert.assertEquals(sequencer.getGapRequestManager().getPacketCountRequested(), 1);
 		long timeOfRequest = sequencer.getGapRequestManager().getTimeOfRequest();
 
-		// [26,50] - Add to queue while recovering
+		Thread.sleep(1);
+
+		// [26,50] - Add to queue while recovering - 25 is requested without waiting for 2
 		for (int i = 26; i <= 50; i++)
 		{
 			sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
 		}
 		Assert.assertEquals(47, sequencer.getQueueSize());
+		Assert.assertEquals(2, sequencer.getGapRequestManagerCount());
+		Assert.assertEquals(2, sequencer.getPacketsDropped());
 		Assert.assertEquals(sequencer.getGapRequestManager().getFirstSequenceNumberRequested(), 2);
 		Assert.assertEquals(sequencer.getGapRequestManager().getPacketCountRequested(), 1);
 		Assert.assertEquals(timeOfRequest, sequencer.getGapRequestManager().getTimeOfRequest());
 
 		// declare 2 as dropped
-		sequencer.closeRequestManager(false);
+		sequencer.getGapRequestManager().close(false);
 		sequencer.skipPacketAndDequeue(2);
 		Assert.assertEquals(24, sequencer.getLastSequenceNumber());
 		Assert.assertEquals(25, sequencer.getQueueSize());
-		Assert.assertNull(sequencer.getGapRequestManager());
-
-		Thread.sleep(1);
+		Assert.assertEquals(1, sequencer.getGapRequestManagerCount());
+		Assert.assertEquals(sequencer.getGapRequestManager().getFirstSequenceNumberRequested(), 25);
+		Assert.assertEquals(sequencer.getGapRequestManager().getPacketCountRequested(), 1);
+		Assert.assertTrue(sequencer.getGapRequestManager().getTimeOfRequest() > timeOfRequest);
 
-		// [51,51] - Add to queue while recovering
+		// [51,51] - Add to queue while recovering - nothing new to request
 		sequencer.packetReceived(true, 51, (byte) 3, createPacket(3));
 		Assert.assertEquals(26, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getGapRequestManagerCount());
 		Assert.assertEquals(sequencer.getGapRequestManager().getFirstSequenceNumberRequested(), 25);
-		Assert.assertEquals(sequencer.getGapRequestManager().getPacketCountRequested(), 1);
-		Assert.assertTrue(sequencer.getGapRequestManager().getTimeOfRequest() > timeOfRequest);
+	}
+
+	@Test
+	public void testSendSelectiveGapRequests() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// [1,1] - No Queue
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+
+		// [3,4] and [6,24] - Queued, 2 and 5 are missing
+		for (int i = 3; i <= 24; i++)
+		{
+			if (i != 5) sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
+		}
+		Assert.assertEquals(21, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getGapRequestManagerCount());
+		GapRequestManager firstRequestManager = sequencer.getGapRequestManager();
+		Assert.assertEquals(2, firstRequestManager.getFirstSequenceNumberRequested());
+		Assert.assertEquals(5, firstRequestManager.getLastSequenceNumberRequested());
+		Assert.assertEquals(2, firstRequestManager.getPacketCountRequested());
+		Assert.assertEquals(2, sequencer.getPacketsDropped());
+
+		// [26,26] - Queued, 25 is requested while the first request is outstanding
+		sequencer.packetReceived(true, 26, (byte) 3, createPacket(3));
+		Assert.assertEquals(2, sequencer.getGapRequestManagerCount());
+		Assert.assertEquals(3, sequencer.getPacketsDropped());
+
+		// Response only holds 2, so 5 is skipped while 25 is still being recovered
+		sequencer.packetReceived(true, 2, (byte) 3, createPacket(3));
+		Assert.assertEquals(4, sequencer.getLastSequenceNumber());
+		firstRequestManager.close(true);
+		Assert.assertEquals(24, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(1, sequencer.getPacketsLost());
+		Assert.assertEquals(1, sequencer.getGapRequestManagerCount());
+		Assert.assertEquals(25, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+		Assert.assertEquals(1, sequencer.getGapRequestManager().getPacketCountRequested());
+
+		// Response for 25 completes the second request
+		sequencer.packetReceived(true, 25, (byte) 3, createPacket(3));
+		Assert.assertEquals(26, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getPacketsLost());
+		Assert.assertNull(sequencer.getGapRequestManager());
+	}
+
+	@Test
+	public void testNakBackoffSuppressedByRepair() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false, 60000,
+				PandaUtils.REORDER_BUFFER_BYTES, new GapThresholds());
+
+		// [1,1] - No Queue
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+
+		// [3,23] - Queued - drop is declared but the request is held back
+		for (int i = 3; i <= 23; i++)
+		{
+			sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
+		}
+		Assert.assertEquals(21, sequencer.getQueueSize());
+		Assert.assertNull(sequencer.getGapRequestManager());
+
+		// [2,2] - Repaired for another receiver, so no request is ever sent
+		sequencer.packetReceived(true, 2, (byte) 3, createPacket(3));
+		Assert.assertEquals(23, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertEquals(0, sequencer.getNumOfRetransmissionRequests());
+		Assert.assertEquals(0, sequencer.getPacketsLost());
+	}
+
+	@Test
+	public void testNakSentAfterBackoff() throws IOException, InterruptedException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false, 20,
+				PandaUtils.REORDER_BUFFER_BYTES, new GapThresholds());
+
+		// [1,1] - No Queue
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+
+		// [3,23] - Queued - drop is declared
+		for (int i = 3; i <= 23; i++)
+		{
+			sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
+		}
+
+		Thread.sleep(25);
+
+		// [24,24] - Back-off is over and no repair was seen
+		sequencer.packetReceived(true, 24, (byte) 3, createPacket(3));
+		Assert.assertEquals(1, sequencer.getNumOfRetransmissionRequests());
+		Assert.assertEquals(2, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+		Assert.assertEquals(1, sequencer.getGapRequestManager().getPacketCountRequested());
 	}
 
 	@Test
@@ -520,6 +623,248 @@ public class ChannelReceiveSequencerTest
 		Assert.assertNull(sequencer.getGapRequestManager());
 	}
 
+	@Test
+	public void testFecParityRecoversSingleLoss() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		final int[] messagesReceived = new int[1];
+		testChannelReceiveInfo.registerTopicListener("1", new PandaDataListener()
+		{
+			@Override
+			public void receivedPandaData(String topic, byte[] payload)
+			{
+				Assert.assertEquals(4, payload.length);
+				messagesReceived[0]++;
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		});
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// The first parity packet only tells the sequencer the block size
+		sequencer.fecParityReceived(true, 1, (byte) 4, createParity(1, 4));
+		for (int i = 1; i <= 4; i++)
+		{
+			sequencer.packetReceived(true, i, (byte) i, createPacket(i));
+		}
+		Assert.assertEquals(4, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(10, messagesReceived[0]);
+
+		// [5,8] - 7 is lost and rebuilt from the parity
+		sequencer.packetReceived(true, 5, (byte) 1, createPacket(1));
+		sequencer.packetReceived(true, 6, (byte) 2, createPacket(2));
+		sequencer.packetReceived(true, 8, (byte) 4, createPacket(4));
+		Assert.assertEquals(1, sequencer.getQueueSize());
+		sequencer.fecParityReceived(true, 5, (byte) 4, createParity(5, 4));
+		Assert.assertEquals(8, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertEquals(20, messagesReceived[0]);
+		Assert.assertEquals(1, sequencer.getPacketsRecoveredByFec());
+		Assert.assertNull(sequencer.getGapRequestManager());
+
+		// The lost packet arriving late is a duplicate
+		sequencer.packetReceived(true, 7, (byte) 3, createPacket(3));
+		Assert.assertEquals(20, messagesReceived[0]);
+
+		// [9,12] - two losses in a block are left to gap requests
+		sequencer.packetReceived(true, 9, (byte) 1, createPacket(1));
+		sequencer.packetReceived(true, 12, (byte) 4, createPacket(4));
+		sequencer.fecParityReceived(true, 9, (byte) 4, createParity(9, 4));
+		Assert.assertEquals(9, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(1, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getPacketsRecoveredByFec());
+	}
+
+	@Test
+	public void testReorderBufferOverflow() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		int packetLength = createPacket(3).remaining();
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false, 0,
+				3 * packetLength, new GapThresholds());
+
+		// [1,1] - No Queue
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+
+		// [3,4],[6,6] - Queued up to the byte bound, duplicates are not queued twice
+		sequencer.packetReceived(true, 3, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 4, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 4, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 6, (byte) 3, createPacket(3));
+		Assert.assertEquals(3, sequencer.getQueueSize());
+		Assert.assertEquals(3 * packetLength, sequencer.getQueueBytes());
+		Assert.assertEquals(1, sequencer.getLastSequenceNumber());
+
+		// [7,7] - Does not fit, so the oldest gap is given up
+		sequencer.packetReceived(true, 7, (byte) 3, createPacket(3));
+		Assert.assertEquals(4, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(2, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getPacketsLost());
+		Assert.assertEquals(1, sequencer.getRequestGiveUps(PandaErrorCode.PACKET_LOSS_REORDER_BUFFER_OVERFLOW));
+
+		// [5,5] - Recovered packet fills the remaining gap
+		sequencer.packetReceived(true, 5, (byte) 3, createPacket(3));
+		Assert.assertEquals(7, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertEquals(0, sequencer.getQueueBytes());
+	}
+
+	@Test
+	public void testAdaptiveOutOfOrderThreshold() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// [1,2000] - Never reordered
+		for (int i = 1; i <= 2000; i++)
+		{
+			sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
+		}
+		Assert.assertEquals(2, sequencer.getGapThresholds().getOutOfOrderThreshold());
+
+		// [2002,2003] - Queued
+		sequencer.packetReceived(true, 2002, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 2003, (byte) 3, createPacket(3));
+		Assert.assertNull(sequencer.getGapRequestManager());
+
+		// [2004,2004] - Gap is requested without waiting for 20 packets
+		sequencer.packetReceived(true, 2004, (byte) 3, createPacket(3));
+		Assert.assertNotNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(2001, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+	}
+
+	@Test
+	public void testGapTimerWhenSourceGoesQuiet() throws IOException, InterruptedException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false, 0,
+				PandaUtils.REORDER_BUFFER_BYTES, new GapThresholds(0, 20, 50, 0));
+
+		// [1,1],[3,3] - Gap and then nothing more from the source
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 3, (byte) 3, createPacket(3));
+		Assert.assertNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(0, testSelectorThread.expireTimers(System.currentTimeMillis()));
+
+		// NAK delay passes
+		Thread.sleep(25);
+		Assert.assertEquals(1, testSelectorThread.expireTimers(System.currentTimeMillis()));
+		Assert.assertNotNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(2, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+
+		// Request times out
+		Thread.sleep(55);
+		Assert.assertEquals(1, testSelectorThread.expireTimers(System.currentTimeMillis()));
+		Assert.assertNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(3, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertEquals(1, sequencer.getRequestGiveUps(PandaErrorCode.PACKET_LOSS_RETRANSMISSION_TIMEOUT));
+
+		// Nothing left to time
+		Thread.sleep(25);
+		Assert.assertEquals(0, testSelectorThread.expireTimers(System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testHeartbeatRequestsTailGap() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// Heartbeat before any packet is only remembered
+		sequencer.heartbeatReceived(true, 7, 1, 7);
+		Assert.assertEquals(0, sequencer.getAdvertisedSequenceNumber());
+		Assert.assertEquals(1, sequencer.getSourceCacheHeadSequenceNumber());
+
+		// [1,2] - Then the source goes idle after sending [3,5]
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+		sequencer.packetReceived(true, 2, (byte) 3, createPacket(3));
+		sequencer.heartbeatReceived(true, 5, 1, 5);
+		Assert.assertEquals(5, sequencer.getAdvertisedSequenceNumber());
+		Assert.assertEquals(5, sequencer.getSourceCacheTailSequenceNumber());
+		Assert.assertEquals(0, sequencer.getQueueSize());
+		Assert.assertNotNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(3, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+		Assert.assertEquals(5, sequencer.getGapRequestManager().getLastSequenceNumberRequested());
+
+		// The same heartbeat again asks for nothing more
+		sequencer.heartbeatReceived(true, 5, 1, 5);
+		Assert.assertEquals(1, sequencer.getGapRequestManagerCount());
+
+		// Retransmissions fill the tail gap
+		for (int i = 3; i <= 5; i++)
+		{
+			sequencer.packetReceived(true, i, (byte) 3, createPacket(3));
+		}
+		Assert.assertEquals(5, sequencer.getLastSequenceNumber());
+		Assert.assertNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(0, sequencer.getPacketsLost());
+	}
+
+	@Test
+	public void testHeartbeatSkipsUncachedGap() throws IOException, InterruptedException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// [1,1] - The source has since sent [2,10] but only caches [6,10]
+		sequencer.packetReceived(true, 1, (byte) 3, createPacket(3));
+		sequencer.heartbeatReceived(true, 10, 6, 10);
+		Assert.assertEquals(5, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(4, sequencer.getPacketsLost());
+		Assert.assertEquals(1, sequencer.getRequestGiveUps(PandaErrorCode.PACKET_LOSS_NOT_CACHED));
+		Assert.assertNull(sequencer.getGapRequestManager());
+
+		// The cached part of the gap is requested on the next tick
+		Thread.sleep(2);
+		Assert.assertEquals(1, testSelectorThread.expireTimers(System.currentTimeMillis()));
+		Assert.assertNotNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(6, sequencer.getGapRequestManager().getFirstSequenceNumberRequested());
+		Assert.assertEquals(10, sequencer.getGapRequestManager().getLastSequenceNumberRequested());
+	}
+
+	@Test
+	public void testHeartbeatWithoutRetransmissions() throws IOException
+	{
+		TestSelectorThread testSelectorThread = new TestSelectorThread();
+		ChannelReceiveInfo testChannelReceiveInfo = new ChannelReceiveInfo("test1:1000", 1000, "test1:1000", this.LOCAL_IP, 1, testSelectorThread, 1000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(testSelectorThread, "test1:1000", this.SOURCE_ADDRESS, testChannelReceiveInfo, 100, false);
+
+		// Tail loss is still counted, the source just can not resend it
+		sequencer.packetReceived(false, 1, (byte) 3, createPacket(3));
+		sequencer.heartbeatReceived(false, 4, 0, 0);
+		Assert.assertEquals(4, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(3, sequencer.getPacketsLost());
+		Assert.assertNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(0, testSelectorThread.expireTimers(System.currentTimeMillis() + 10));
+	}
+
+	// Parity of a block whose packet n has n messages
+	private static ByteBuffer createParity(long firstSequenceNumber, int blockSize)
+	{
+		FecBlock fecBlock = new FecBlock();
+		fecBlock.reset(firstSequenceNumber);
+		for (int i = 1; i <= blockSize; i++)
+		{
+			ByteBuffer packet = createPacket(i);
+			fecBlock.add(firstSequenceNumber + i - 1, (byte) i, packet, 0, packet.remaining());
+		}
+		ByteBuffer parity = ByteBuffer.allocate(PandaUtils.MTU_SIZE);
+		fecBlock.writeParity(parity, (byte) (PandaUtils.PACKET_FLAG_RETRANSMISSIONS | PandaUtils.PACKET_FLAG_FEC_PARITY), (byte) blockSize);
+		parity.flip();
+		parity.position(PandaUtils.PACKET_HEADER_SIZE);
+		return parity;
+	}
+
 	private static ByteBuffer createPacket(int messageCount)
 	{
 		String topic = "1";
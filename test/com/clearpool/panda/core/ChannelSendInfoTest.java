@@ -0,0 +1,299 @@
+package com.clearpool.panda.core;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelSendInfoTest
+{
+	private InetAddress LOCAL_IP;
+	private DatagramChannel sendChannel;
+	private DatagramChannel repairChannel;
+
+	@Before
+	public void before() throws Exception
+	{
+		this.LOCAL_IP = InetAddress.getByName("127.0.0.1");
+		this.sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+		this.sendChannel.bind(new InetSocketAddress(this.LOCAL_IP, 0));
+		this.repairChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+		this.repairChannel.bind(new InetSocketAddress(this.LOCAL_IP, 0));
+		this.repairChannel.configureBlocking(false);
+	}
+
+	@After
+	public void after() throws Exception
+	{
+		this.sendChannel.close();
+		this.repairChannel.close();
+	}
+
+	@Test
+	public void testSendRepairSuppressesRecentRepairs() throws Exception
+	{
+		int repairPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.REPAIR_PORT_OFFSET, "1");
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", repairPort - 1, "127.0.0.1:" + (repairPort - 1), 100, this.LOCAL_IP, this.sendChannel, properties);
+		Assert.assertTrue(sendInfo.isRepairMulticast());
+		for (int i = 1; i <= 5; i++)
+		{
+			sendInfo.getPacketCache().add(new byte[] { (byte) i }, i, 0L);
+		}
+
+		sendInfo.sendRepair(2, 3, 1000);
+		assertRepaired(2, 3);
+
+		// NAKs from other receivers for the same loss only repair what has not just been sent
+		sendInfo.sendRepair(2, 4, 1005);
+		assertRepaired(4);
+
+		// Once the suppression window has passed the packets are repaired again
+		sendInfo.sendRepair(2, 2, 1000 + PandaUtils.REPAIR_SUPPRESSION_MILLIS);
+		assertRepaired(2);
+		Assert.assertEquals(4, sendInfo.getPacketsRepaired());
+		Assert.assertEquals(0, sendInfo.getPacketsResent());
+	}
+
+	@Test
+	public void testSendThroughPublication() throws Exception
+	{
+		int groupPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		Sender sender = new Sender(new SelectorThread[] { selectorThread }, new ServerSocketChannel[1], new DatagramChannel[] { this.sendChannel }, 0,
+				new PandaProperties());
+		Publication publication = sender.createPublication("TOPIC", "127.0.0.1", groupPort, "127.0.0.1:" + groupPort, this.LOCAL_IP);
+		selectorThread.start();
+		try
+		{
+			sender.send(publication, "message".getBytes());
+			ByteBuffer packet = receive();
+			Assert.assertEquals(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + "TOPIC".length() + "message".length(), packet.remaining());
+			Assert.assertEquals(PandaUtils.PACKET_HEADER_SIZE, packet.get());
+			Assert.assertEquals(0, packet.get());
+			Assert.assertEquals(1, packet.getLong());
+			Assert.assertEquals(1, packet.get());
+			byte[] topicBytes = new byte[packet.get()];
+			packet.get(topicBytes);
+			Assert.assertEquals("TOPIC", new String(topicBytes));
+			byte[] messageBytes = new byte[packet.getShort()];
+			packet.get(messageBytes);
+			Assert.assertEquals("message", new String(messageBytes));
+
+			try
+			{
+				sender.send(publication, new byte[PandaUtils.MAX_PANDA_MESSAGE_SIZE + 1]);
+				Assert.fail();
+			}
+			catch (Exception e)
+			{
+				Assert.assertEquals("Message length over size=" + PandaUtils.MAX_PANDA_MESSAGE_SIZE + " not allowed", e.getMessage());
+			}
+			Thread.sleep(10);
+			Assert.assertNull(this.repairChannel.receive(ByteBuffer.allocate(PandaUtils.MTU_SIZE)));
+		}
+		finally
+		{
+			selectorThread.interrupt();
+			selectorThread.join(1000);
+		}
+	}
+
+	@Test
+	public void testRepairDisabledByDefault() throws Exception
+	{
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", 1000, "127.0.0.1:1000", 100, this.LOCAL_IP, this.sendChannel, new PandaProperties());
+		Assert.assertFalse(sendInfo.isRepairMulticast());
+	}
+
+	@Test
+	public void testSendFecParityEveryBlock() throws Exception
+	{
+		int groupPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.FEC_BLOCK_SIZE + ".127.0.0.1:" + groupPort, "2");
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", groupPort, "127.0.0.1:" + groupPort, 100, this.LOCAL_IP, this.sendChannel, properties);
+		for (int i = 1; i <= 3; i++)
+		{
+			long sequenceNumber = sendInfo.incrementAndGetSequenceNumber();
+			ByteBuffer packet = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE + i);
+			packet.put(PandaUtils.PACKET_HEADER_SIZE);
+			packet.put(sendInfo.supportsRetransmissions());
+			packet.putLong(sequenceNumber);
+			packet.put((byte) i);
+			for (int b = 0; b < i; b++)
+			{
+				packet.put((byte) (i * 16 + b));
+			}
+			packet.flip();
+			sendInfo.sendToChannel(packet);
+		}
+		Assert.assertEquals(3, sendInfo.getPacketsSent());
+		Assert.assertEquals(1, sendInfo.getFecPacketsSent());
+
+		// Data packets 1 and 2 are followed by the parity of their block
+		receive();
+		receive();
+		ByteBuffer parity = receive();
+		Assert.assertEquals(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.FEC_PARITY_HEADER_SIZE + 2, parity.remaining());
+		Assert.assertEquals(PandaUtils.PACKET_FLAG_RETRANSMISSIONS | PandaUtils.PACKET_FLAG_FEC_PARITY, parity.get(1));
+		Assert.assertEquals(1, parity.getLong(PandaUtils.PACKET_SEQUENCE_NUMBER_OFFSET));
+		Assert.assertEquals(2, parity.get(PandaUtils.PACKET_HEADER_SIZE - 1));
+		parity.position(PandaUtils.PACKET_HEADER_SIZE);
+		Assert.assertEquals(1 ^ 2, parity.get());
+		Assert.assertEquals(1 ^ 2, parity.getShort());
+		Assert.assertEquals((byte) (16 ^ 32), parity.get());
+		Assert.assertEquals((byte) 33, parity.get());
+
+		// The block of packet 3 is not complete yet
+		ByteBuffer packet = receive();
+		Assert.assertEquals(3, packet.getLong(PandaUtils.PACKET_SEQUENCE_NUMBER_OFFSET));
+		Thread.sleep(10);
+		Assert.assertNull(this.repairChannel.receive(ByteBuffer.allocate(PandaUtils.MTU_SIZE)));
+	}
+
+	@Test
+	public void testFecDisabledByDefault() throws Exception
+	{
+		int groupPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", groupPort, "127.0.0.1:" + groupPort, 100, this.LOCAL_IP, this.sendChannel, new PandaProperties());
+		for (int i = 1; i <= 4; i++)
+		{
+			ByteBuffer packet = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE);
+			packet.put(PandaUtils.PACKET_HEADER_SIZE);
+			packet.put(sendInfo.supportsRetransmissions());
+			packet.putLong(sendInfo.incrementAndGetSequenceNumber());
+			packet.put((byte) 0);
+			packet.flip();
+			sendInfo.sendToChannel(packet);
+		}
+		Assert.assertEquals(0, sendInfo.getFecPacketsSent());
+	}
+
+	@Test
+	public void testHeartbeatOnIdleChannel() throws Exception
+	{
+		int groupPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.HEARTBEAT_INTERVAL_MILLIS, "50");
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", groupPort, "127.0.0.1:" + groupPort, 100, this.LOCAL_IP, this.sendChannel, properties, null,
+				selectorThread);
+		for (int i = 1; i <= 2; i++)
+		{
+			ByteBuffer packet = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE);
+			packet.put(PandaUtils.PACKET_HEADER_SIZE);
+			packet.put(sendInfo.supportsRetransmissions());
+			packet.putLong(sendInfo.incrementAndGetSequenceNumber());
+			packet.put((byte) 0);
+			packet.flip();
+			sendInfo.sendToChannel(packet);
+		}
+		receive();
+		receive();
+
+		// Nothing goes out while the channel is busy
+		long sendTime = System.currentTimeMillis();
+		Assert.assertEquals(0, selectorThread.expireTimers(sendTime + 10));
+		Assert.assertEquals(0, sendInfo.getHeartbeatsSent());
+
+		// Idle for the interval
+		Assert.assertEquals(1, selectorThread.expireTimers(sendTime + 100));
+		Assert.assertEquals(1, sendInfo.getHeartbeatsSent());
+		ByteBuffer heartbeat = receive();
+		Assert.assertEquals(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.HEARTBEAT_BODY_SIZE, heartbeat.remaining());
+		Assert.assertEquals(PandaUtils.PACKET_FLAG_RETRANSMISSIONS | PandaUtils.PACKET_FLAG_HEARTBEAT, heartbeat.get(1));
+		Assert.assertEquals(2, heartbeat.getLong(PandaUtils.PACKET_SEQUENCE_NUMBER_OFFSET));
+		Assert.assertEquals(0, heartbeat.get(PandaUtils.PACKET_HEADER_SIZE - 1));
+		heartbeat.position(PandaUtils.PACKET_HEADER_SIZE);
+		Assert.assertEquals(1, heartbeat.getLong());
+		Assert.assertEquals(2, heartbeat.getLong());
+
+		// And again every interval after that
+		Assert.assertEquals(0, selectorThread.expireTimers(sendTime + 120));
+		Assert.assertEquals(1, selectorThread.expireTimers(sendTime + 160));
+		Assert.assertEquals(2, sendInfo.getHeartbeatsSent());
+	}
+
+	@Test
+	public void testPacketCacheMillisWithoutBytes() throws Exception
+	{
+		int groupPort = ((InetSocketAddress) this.repairChannel.getLocalAddress()).getPort();
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.PACKET_CACHE_MILLIS, "20");
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", groupPort, "127.0.0.1:" + groupPort, 100, this.LOCAL_IP, this.sendChannel, properties, null,
+				selectorThread);
+		Assert.assertEquals(20, sendInfo.getPacketCache().getRetentionMillis());
+
+		ByteBuffer packet = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE);
+		packet.put(PandaUtils.PACKET_HEADER_SIZE);
+		packet.put(sendInfo.supportsRetransmissions());
+		packet.putLong(sendInfo.incrementAndGetSequenceNumber());
+		packet.put((byte) 0);
+		packet.flip();
+		sendInfo.sendToChannel(packet);
+
+		// Expiry runs on a timer while the channel is idle, and stops with only the tail segment left
+		Assert.assertEquals(1, selectorThread.expireTimers(System.currentTimeMillis() + 100));
+		Assert.assertEquals(0, selectorThread.expireTimers(System.currentTimeMillis() + 200));
+	}
+
+	@Test
+	public void testHeartbeatDisabledByDefault() throws Exception
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelSendInfo sendInfo = new ChannelSendInfo("127.0.0.1", 1000, "127.0.0.1:1000", 100, this.LOCAL_IP, this.sendChannel, new PandaProperties(), null,
+				selectorThread);
+		ByteBuffer packet = ByteBuffer.allocate(PandaUtils.PACKET_HEADER_SIZE);
+		packet.put(PandaUtils.PACKET_HEADER_SIZE);
+		packet.put(sendInfo.supportsRetransmissions());
+		packet.putLong(sendInfo.incrementAndGetSequenceNumber());
+		packet.put((byte) 0);
+		packet.flip();
+		sendInfo.sendToChannel(packet);
+		Assert.assertEquals(0, selectorThread.expireTimers(System.currentTimeMillis() + 60000));
+		Assert.assertEquals(0, sendInfo.getHeartbeatsSent());
+	}
+
+	private ByteBuffer receive() throws Exception
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.MTU_SIZE);
+		long timeout = System.currentTimeMillis() + 1000;
+		while (this.repairChannel.receive(buffer) == null)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < timeout);
+			Thread.sleep(1);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void assertRepaired(int... firstBytes) throws Exception
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(PandaUtils.MTU_SIZE);
+		for (int firstByte : firstBytes)
+		{
+			buffer.clear();
+			long timeout = System.currentTimeMillis() + 1000;
+			while (this.repairChannel.receive(buffer) == null)
+			{
+				Assert.assertTrue(System.currentTimeMillis() < timeout);
+				Thread.sleep(1);
+			}
+			Assert.assertEquals(1, buffer.position());
+			Assert.assertEquals((byte) firstByte, buffer.get(0));
+		}
+		Thread.sleep(10);
+		buffer.clear();
+		Assert.assertNull(this.repairChannel.receive(buffer));
+	}
+}
@@ -16,6 +16,7 @@ public class GapRequestManagerTest
 	private InetSocketAddress SOURCE_ADDRESS;
 	private String SOURCE_KEY;
 	private PandaProperties PROPS;
+	private ByteBuffer readBuffer;
 
 	@Before
 	public void before()
@@ -26,6 +27,7 @@ public class GapRequestManagerTest
 			this.SOURCE_ADDRESS = new InetSocketAddress(this.LOCAL_IP, 34533);
 			this.SOURCE_KEY = PandaUtils.getAddressString(this.SOURCE_ADDRESS);
 			this.PROPS = new PandaProperties();
+			this.readBuffer = ByteBuffer.allocate(2 * PandaUtils.MAX_TCP_SIZE);
 		}
 		catch (Exception e)
 		{
@@ -46,7 +48,7 @@ public class GapRequestManagerTest
 
 		gapRequestManager.sendGapRequest(3, 5, 1);
 		ByteBuffer response = createResponse(3, 5);
-		gapRequestManager.processGapResponse(null, null, response);
+		processGapResponse(gapRequestManager, response);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -71,7 +73,7 @@ public class GapRequestManagerTest
 		}
 		response1.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response1);
+		processGapResponse(gapRequestManager, response1);
 		Assert.assertFalse(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(0, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(0, gapRequestManager.getResponsePacketCount());
@@ -84,7 +86,7 @@ public class GapRequestManagerTest
 		}
 		response2.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response2);
+		processGapResponse(gapRequestManager, response2);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -109,7 +111,7 @@ public class GapRequestManagerTest
 		}
 		response1.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response1);
+		processGapResponse(gapRequestManager, response1);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -122,7 +124,7 @@ public class GapRequestManagerTest
 		}
 		response2.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response2);
+		processGapResponse(gapRequestManager, response2);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -147,7 +149,7 @@ public class GapRequestManagerTest
 		}
 		response1.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response1);
+		processGapResponse(gapRequestManager, response1);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -160,7 +162,7 @@ public class GapRequestManagerTest
 		}
 		response2.rewind();
 
-		gapRequestManager.processGapResponse(null, null, response2);
+		processGapResponse(gapRequestManager, response2);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(3, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(5, gapRequestManager.getResponsePacketCount());
@@ -178,7 +180,7 @@ public class GapRequestManagerTest
 		gapRequestManager.sendGapRequest(3, 5, 1);
 		ByteBuffer response = createResponse(0, 0);
 
-		gapRequestManager.processGapResponse(null, null, response);
+		processGapResponse(gapRequestManager, response);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(0, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(0, gapRequestManager.getResponsePacketCount());
@@ -196,13 +198,72 @@ public class GapRequestManagerTest
 		gapRequestManager.sendGapRequest(3, 5, 1);
 		ByteBuffer response = createResponse(6, 2);
 
-		gapRequestManager.processGapResponse(null, null, response);
+		processGapResponse(gapRequestManager, response);
 		Assert.assertTrue(gapRequestManager.isResponseHeaderReceived());
 		Assert.assertEquals(6, gapRequestManager.getResponseFirstSequenceNumber());
 		Assert.assertEquals(2, gapRequestManager.getResponsePacketCount());
 		Assert.assertEquals(0, gapRequestManager.getPacketsRemainingToDeliver());
 	}
 
+	@Test
+	public void testProcessGapResponseAfterClose() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		ChannelReceiveSequencer sequencer = new ChannelReceiveSequencer(selectorThread, "1.1.1.1:1", this.SOURCE_ADDRESS, channelReceiveInfo, 1000, false);
+		GapRequestManager gapRequestManager = new GapRequestManager(selectorThread, "1.1.1.1:1", this.SOURCE_KEY, this.SOURCE_ADDRESS, sequencer);
+
+		gapRequestManager.sendGapRequest(3, 5, 1);
+		gapRequestManager.close(false);
+		Assert.assertEquals(1, sequencer.getRetransmissionFailures());
+
+		// Late response is consumed so the next response on the connection can be read, but not acted on
+		Assert.assertTrue(processGapResponse(gapRequestManager, createResponse(0, 0)));
+		Assert.assertEquals(0, sequencer.getLastSequenceNumber());
+		Assert.assertEquals(1, sequencer.getRetransmissionFailures());
+		Assert.assertEquals(0, this.readBuffer.position());
+	}
+
+	@Test
+	public void testProcessGapResponseRepaired() throws IOException
+	{
+		TestSelectorThread selectorThread = new TestSelectorThread();
+		ChannelReceiveInfo channelReceiveInfo = new ChannelReceiveInfo("1.1.1.1", 1, "1.1.1.1:1", this.LOCAL_IP, 10, selectorThread, 10000, false, this.PROPS);
+		channelReceiveInfo.dataReceived(this.SOURCE_ADDRESS, createPacket(5, 1));
+		for (int i = 3; i <= 23; i++)
+		{
+			channelReceiveInfo.dataReceived(this.SOURCE_ADDRESS, createPacket(5, i));
+		}
+		ChannelReceiveSequencer sequencer = channelReceiveInfo.getSourceInfos().get(this.SOURCE_ADDRESS);
+		GapRequestManager gapRequestManager = sequencer.getGapRequestManager();
+		Assert.assertEquals(2, gapRequestManager.getFirstSequenceNumberRequested());
+
+		// Header only response, the request stays open until the packet arrives on the repair group
+		ByteBuffer response = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE);
+		response.putLong(2);
+		response.putInt(PandaUtils.RETRANSMISSION_RESPONSE_REPAIRED);
+		response.rewind();
+		Assert.assertTrue(processGapResponse(gapRequestManager, response));
+		Assert.assertTrue(gapRequestManager.isRepairPending());
+		Assert.assertEquals(0, gapRequestManager.getResponsePacketCount());
+		Assert.assertSame(gapRequestManager, sequencer.getGapRequestManager());
+
+		channelReceiveInfo.dataReceived(this.SOURCE_ADDRESS, createPacket(5, 2));
+		Assert.assertEquals(23, sequencer.getLastSequenceNumber());
+		Assert.assertNull(sequencer.getGapRequestManager());
+		Assert.assertEquals(0, sequencer.getRetransmissionFailures());
+	}
+
+	// Mimics GapRequestConnection, which keeps whatever the manager has not consumed for the next read
+	private boolean processGapResponse(GapRequestManager gapRequestManager, ByteBuffer fragment) throws IOException
+	{
+		this.readBuffer.put(fragment);
+		this.readBuffer.flip();
+		boolean complete = gapRequestManager.processGapResponse(null, this.readBuffer);
+		this.readBuffer.compact();
+		return complete;
+	}
+
 	private static ByteBuffer createResponse(int firstSequenceNumber, int packetCount)
 	{
 		LinkedList<ByteBuffer> packetBuffers = new LinkedList<ByteBuffer>();
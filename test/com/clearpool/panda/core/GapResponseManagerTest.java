@@ -0,0 +1,171 @@
+package com.clearpool.panda.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GapResponseManagerTest
+{
+	private static final int PACKET_SIZE = 30000;
+
+	private SocketChannel clientChannel;
+	private SocketChannel serverChannel;
+
+	@Before
+	public void before() throws IOException
+	{
+		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		this.clientChannel = SocketChannel.open(serverSocketChannel.getLocalAddress());
+		this.serverChannel = serverSocketChannel.accept();
+		serverSocketChannel.close();
+		this.serverChannel.configureBlocking(false);
+	}
+
+	@After
+	public void after() throws IOException
+	{
+		this.clientChannel.close();
+		this.serverChannel.close();
+	}
+
+	@Test
+	public void testSendResponseFromMemory() throws IOException
+	{
+		PacketCache cache = new PacketCache(100);
+		for (int i = 1; i <= 7; i++)
+		{
+			cache.add(createPacket(i), i, 0L);
+		}
+		assertResponse(new GapResponseManager(this.serverChannel, cache, 7, 2, 5), 7, 2, 5);
+	}
+
+	@Test
+	public void testSendResponseFromJournal() throws IOException
+	{
+		File directory = File.createTempFile("panda", "journal");
+		directory.delete();
+		PacketJournal journal = new PacketJournal("1.1.1.1:1", directory, 4 * PandaUtils.PACKET_CACHE_SEGMENT_SIZE, 0, PandaUtils.PACKET_CACHE_SEGMENT_SIZE);
+		try
+		{
+			for (int i = 1; i <= 7; i++)
+			{
+				journal.add(createPacket(i), i, 0L);
+			}
+			assertResponse(new GapResponseManager(this.serverChannel, journal, 7, 2, 5), 7, 2, 5);
+		}
+		finally
+		{
+			journal.close();
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testSendResponseAbortedWhenOverwritten() throws IOException
+	{
+		PacketCache cache = new PacketCache(10);
+		cache.add(createPacket(1), 1L, 0L);
+		GapResponseManager gapResponseManager = new GapResponseManager(this.serverChannel, cache, 1, 1, 1);
+		for (int i = 2; i <= 20; i++)
+		{
+			cache.add(createPacket(i), i, 0L);
+		}
+		gapResponseManager.sendResponse();
+	}
+
+	@Test
+	public void testSendResponsesOnSameChannel() throws IOException
+	{
+		PacketCache cache = new PacketCache(100);
+		for (int i = 1; i <= 7; i++)
+		{
+			cache.add(createPacket(i), i, 0L);
+		}
+		assertResponse(new GapResponseManager(this.serverChannel, cache, 1, 2, 2), 1, 2, 2);
+		assertResponse(new GapResponseManager(this.serverChannel, cache, 2, 5, 3), 2, 5, 3);
+		Assert.assertTrue(this.serverChannel.isOpen());
+	}
+
+	@Test
+	public void testSendSelectiveResponse() throws IOException
+	{
+		PacketCache cache = new PacketCache(100);
+		for (int i = 1; i <= 7; i++)
+		{
+			cache.add(createPacket(i), i, 0L);
+		}
+		List<Pair<Long, Long>> ranges = new ArrayList<Pair<Long, Long>>();
+		ranges.add(new Pair<Long, Long>(Long.valueOf(2), Long.valueOf(3)));
+		ranges.add(new Pair<Long, Long>(Long.valueOf(5), Long.valueOf(5)));
+		ranges.add(new Pair<Long, Long>(Long.valueOf(6), Long.valueOf(7)));
+		GapResponseManager gapResponseManager = new GapResponseManager(this.serverChannel, cache, 3, ranges);
+		Assert.assertEquals(2, gapResponseManager.getStartSequenceNumber());
+		Assert.assertEquals(5, gapResponseManager.getTotalPackets());
+		assertResponse(gapResponseManager, 3, 2, new long[] { 2, 3, 5, 6, 7 });
+	}
+
+	@Test
+	public void testSendEmptyResponse() throws IOException
+	{
+		assertResponse(new GapResponseManager(this.serverChannel, null, 8, 0, 0), 8, 0, 0);
+	}
+
+	private void assertResponse(GapResponseManager gapResponseManager, int requestId, long startSequenceNumber, int packetCount) throws IOException
+	{
+		long[] sequenceNumbers = new long[packetCount];
+		for (int i = 0; i < packetCount; i++)
+		{
+			sequenceNumbers[i] = startSequenceNumber + i;
+		}
+		assertResponse(gapResponseManager, requestId, startSequenceNumber, sequenceNumbers);
+	}
+
+	private void assertResponse(GapResponseManager gapResponseManager, int requestId, long startSequenceNumber, long[] sequenceNumbers) throws IOException
+	{
+		int packetCount = sequenceNumbers.length;
+		ByteBuffer readBuffer = ByteBuffer.allocate(PandaUtils.RETRANSMISSION_REQUEST_ID_SIZE + PandaUtils.RETRANSMISSION_RESPONSE_HEADER_SIZE + packetCount
+				* (PandaUtils.RETRANSMISSION_RESPONSE_PACKET_HEADER_SIZE + PACKET_SIZE));
+		while (!gapResponseManager.sendResponse())
+		{
+			this.clientChannel.read(readBuffer);
+		}
+		while (readBuffer.hasRemaining() && this.clientChannel.read(readBuffer) >= 0)
+		{
+		}
+		readBuffer.flip();
+
+		Assert.assertEquals(requestId, readBuffer.getInt());
+		Assert.assertEquals(startSequenceNumber, readBuffer.getLong());
+		Assert.assertEquals(packetCount, readBuffer.getInt());
+		for (int i = 0; i < packetCount; i++)
+		{
+			Assert.assertEquals(PACKET_SIZE, readBuffer.getInt());
+			Assert.assertEquals((byte) sequenceNumbers[i], readBuffer.get(readBuffer.position()));
+			readBuffer.position(readBuffer.position() + PACKET_SIZE);
+		}
+		Assert.assertFalse(readBuffer.hasRemaining());
+	}
+
+	private static byte[] createPacket(int firstByte)
+	{
+		byte[] packet = new byte[PACKET_SIZE];
+		packet[0] = (byte) firstByte;
+		return packet;
+	}
+}
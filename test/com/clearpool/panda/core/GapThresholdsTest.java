@@ -0,0 +1,99 @@
+package com.clearpool.panda.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class GapThresholdsTest
+{
+	@Test
+	public void testFixedThresholdsUntilWarmedUp()
+	{
+		GapThresholds thresholds = new GapThresholds();
+		for (int i = 0; i < 1000; i++)
+		{
+			thresholds.inOrderPacketReceived();
+		}
+		Assert.assertEquals(GapThresholds.OUT_OF_ORDER_PACKET_THRESHOLD, thresholds.getOutOfOrderThreshold());
+		Assert.assertEquals(GapThresholds.QUEUE_GIVEUP_TIME, thresholds.getNakDelayMillis());
+		Assert.assertEquals(GapThresholds.QUEUE_GIVEUP_TIME, thresholds.getGiveUpMillis());
+		Assert.assertEquals(GapThresholds.REQUEST_MANAGER_FAILURE_THRESHOLD, thresholds.getRequestFailureThreshold());
+	}
+
+	@Test
+	public void testOutOfOrderThresholdFollowsReorderDepth()
+	{
+		GapThresholds thresholds = new GapThresholds();
+		for (int i = 0; i < 2000; i++)
+		{
+			thresholds.inOrderPacketReceived();
+		}
+
+		// Never reordered
+		Assert.assertEquals(2, thresholds.getOutOfOrderThreshold());
+		Assert.assertEquals(10, thresholds.getNakDelayMillis());
+
+		// Rare reordering is left to gap requests
+		thresholds.reorderedPacketReceived(8, 3);
+		Assert.assertEquals(2, thresholds.getOutOfOrderThreshold());
+
+		// Regular reordering is waited for
+		for (int i = 0; i < 10; i++)
+		{
+			thresholds.reorderedPacketReceived(5, 20);
+		}
+		Assert.assertEquals(6, thresholds.getOutOfOrderThreshold());
+		Assert.assertEquals(40, thresholds.getNakDelayMillis());
+
+		// Deep reordering is capped
+		for (int i = 0; i < 10; i++)
+		{
+			thresholds.reorderedPacketReceived(100, 20);
+		}
+		Assert.assertEquals(GapThresholds.OUT_OF_ORDER_PACKET_THRESHOLD, thresholds.getOutOfOrderThreshold());
+	}
+
+	@Test
+	public void testGiveUpFollowsRtt()
+	{
+		GapThresholds lanThresholds = new GapThresholds();
+		lanThresholds.gapRecovered(1);
+		Assert.assertEquals(250, lanThresholds.getGiveUpMillis());
+
+		GapThresholds thresholds = new GapThresholds();
+		thresholds.gapRecovered(100);
+		Assert.assertEquals(100, thresholds.getSmoothedRttMillis());
+		Assert.assertEquals(4 * (100 + 4 * 50), thresholds.getGiveUpMillis());
+
+		GapThresholds wanThresholds = new GapThresholds();
+		wanThresholds.gapRecovered(2000);
+		Assert.assertEquals(24000, wanThresholds.getGiveUpMillis());
+		for (int i = 0; i < 5; i++)
+		{
+			wanThresholds.gapRecovered(60000);
+		}
+		Assert.assertEquals(30000, wanThresholds.getGiveUpMillis());
+	}
+
+	@Test
+	public void testOverridesPerGroup()
+	{
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.OUT_OF_ORDER_PACKET_THRESHOLD, "4");
+		properties.setProperty(PandaProperties.GAP_GIVEUP_MILLIS + ".1.1.1.1:1", "5000");
+		properties.setProperty(PandaProperties.NAK_DELAY_MILLIS + ".1.1.1.1:1", "50");
+		properties.setProperty(PandaProperties.GAP_REQUEST_FAILURE_THRESHOLD, "5");
+
+		GapThresholds thresholds = new GapThresholds(properties, "1.1.1.1:1");
+		thresholds.gapRecovered(10);
+		Assert.assertEquals(4, thresholds.getOutOfOrderThreshold());
+		Assert.assertEquals(50, thresholds.getNakDelayMillis());
+		Assert.assertEquals(5000, thresholds.getGiveUpMillis());
+		Assert.assertEquals(5, thresholds.getRequestFailureThreshold());
+
+		GapThresholds otherThresholds = new GapThresholds(properties, "2.2.2.2:2");
+		Assert.assertEquals(4, otherThresholds.getOutOfOrderThreshold());
+		Assert.assertEquals(GapThresholds.QUEUE_GIVEUP_TIME, otherThresholds.getNakDelayMillis());
+		Assert.assertEquals(GapThresholds.QUEUE_GIVEUP_TIME, otherThresholds.getGiveUpMillis());
+	}
+}
@@ -0,0 +1,143 @@
+package com.clearpool.panda.core;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class MpscRingBufferTest
+{
+	@Test
+	public void testCapacityRoundedToPowerOfTwo()
+	{
+		Assert.assertEquals(1, new MpscRingBuffer<Integer>(0).capacity());
+		Assert.assertEquals(4, new MpscRingBuffer<Integer>(3).capacity());
+		Assert.assertEquals(8, new MpscRingBuffer<Integer>(8).capacity());
+	}
+
+	@Test
+	public void testOfferPollInOrderAcrossWrap()
+	{
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(4);
+		Assert.assertTrue(ring.isEmpty());
+		Assert.assertNull(ring.poll());
+
+		int next = 0;
+		for (int lap = 0; lap < 10; lap++)
+		{
+			Assert.assertTrue(ring.offer(Integer.valueOf(lap * 3)));
+			Assert.assertTrue(ring.offer(Integer.valueOf(lap * 3 + 1)));
+			Assert.assertTrue(ring.offer(Integer.valueOf(lap * 3 + 2)));
+			Assert.assertEquals(3, ring.size());
+			for (int i = 0; i < 3; i++)
+			{
+				Assert.assertEquals(next++, ring.poll().intValue());
+			}
+			Assert.assertTrue(ring.isEmpty());
+		}
+	}
+
+	@Test
+	public void testOfferWhenFull()
+	{
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(2);
+		Assert.assertTrue(ring.offer(Integer.valueOf(1)));
+		Assert.assertTrue(ring.offer(Integer.valueOf(2)));
+		Assert.assertFalse(ring.offer(Integer.valueOf(3)));
+		Assert.assertEquals(2, ring.size());
+
+		Assert.assertEquals(1, ring.poll().intValue());
+		Assert.assertTrue(ring.offer(Integer.valueOf(3)));
+
+		Queue<Integer> drained = new ArrayDeque<Integer>();
+		Assert.assertEquals(2, ring.drainTo(drained));
+		Assert.assertEquals(2, drained.poll().intValue());
+		Assert.assertEquals(3, drained.poll().intValue());
+	}
+
+	@Test
+	public void testDrainedSlotsReusedOnlyOnceReleased()
+	{
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(2);
+		long sequence = ring.claim();
+		Assert.assertEquals(0, sequence);
+		Assert.assertTrue(ring.offer(Integer.valueOf(2)));
+		Assert.assertEquals(-1, ring.claim());
+
+		// The consumer waits for the claimed slot to be published
+		Queue<Integer> drained = new ArrayDeque<Integer>();
+		Assert.assertEquals(0, ring.drainUnreleasedTo(drained));
+		ring.publish(sequence, Integer.valueOf(1));
+		Assert.assertEquals(2, ring.drainUnreleasedTo(drained));
+		Assert.assertEquals(1, drained.poll().intValue());
+		Assert.assertEquals(2, drained.poll().intValue());
+
+		// Drained but still in use by the consumer
+		Assert.assertFalse(ring.offer(Integer.valueOf(3)));
+		Assert.assertFalse(ring.isEmpty());
+		ring.releaseDrained();
+		Assert.assertTrue(ring.isEmpty());
+		sequence = ring.claim();
+		Assert.assertEquals(2, sequence);
+		Assert.assertEquals(0, ring.indexOf(sequence));
+		ring.publish(sequence, Integer.valueOf(3));
+		Assert.assertEquals(1, ring.drainUnreleasedTo(drained));
+		Assert.assertEquals(3, drained.poll().intValue());
+	}
+
+	@Test
+	public void testMultipleProducersKeepPerProducerOrder() throws InterruptedException
+	{
+		final int producers = 4;
+		final int perProducer = 20000;
+		final MpscRingBuffer<long[]> ring = new MpscRingBuffer<long[]>(1024);
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int p = 0; p < producers; p++)
+		{
+			final int producerId = p;
+			Thread thread = new Thread() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int i = 0; i < perProducer; i++)
+					{
+						long[] value = new long[] { producerId, i };
+						while (!ring.offer(value))
+						{
+							Thread.yield();
+						}
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		start.countDown();
+		long[] lastSeen = new long[producers];
+		Arrays.fill(lastSeen, -1);
+		int received = 0;
+		while (received < producers * perProducer)
+		{
+			long[] value = ring.poll();
+			if (value == null) continue;
+			int producerId = (int) value[0];
+			Assert.assertEquals(lastSeen[producerId] + 1, value[1]);
+			lastSeen[producerId] = value[1];
+			received++;
+		}
+		Assert.assertTrue(ring.isEmpty());
+	}
+}
@@ -1,6 +1,6 @@
 package com.clearpool.panda.core;
 
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -12,134 +12,238 @@ public class PacketCacheTest
 	public void testAdd()
 	{
 		PacketCache cache = new PacketCache(3);
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 1 }, 1L);
-		Assert.assertEquals(1L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 2 }, 2L);
-		Assert.assertEquals(1L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(2L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(0L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 3 }, 3L);
-		Assert.assertEquals(1L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(2L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(3L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 4 }, 4L);
-		Assert.assertEquals(4L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(2L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(3L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 5 }, 5L);
-		Assert.assertEquals(4L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(5L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(3L, cache.getSequenceNumberOfIndex(2));
-
-		cache.add(new byte[] { 6 }, 6L);
-		Assert.assertEquals(4L, cache.getSequenceNumberOfIndex(0));
-		Assert.assertEquals(5L, cache.getSequenceNumberOfIndex(1));
-		Assert.assertEquals(6L, cache.getSequenceNumberOfIndex(2));
+		assertRange(cache, 0L, 0L);
+
+		cache.add(new byte[] { 1 }, 1L, 0L);
+		assertRange(cache, 1L, 1L);
+
+		cache.add(new byte[] { 2 }, 2L, 0L);
+		assertRange(cache, 1L, 2L);
+
+		cache.add(new byte[] { 3 }, 3L, 0L);
+		assertRange(cache, 1L, 3L);
+
+		cache.add(new byte[] { 4 }, 4L, 0L);
+		assertRange(cache, 2L, 4L);
+
+		cache.add(new byte[] { 5 }, 5L, 0L);
+		assertRange(cache, 3L, 5L);
+
+		cache.add(new byte[] { 6 }, 6L, 0L);
+		assertRange(cache, 4L, 6L);
+		assertCachedPackets(cache, 4L, 6L, Integer.valueOf(3), 4L);
+	}
+
+	@Test
+	public void testAddLargePacketsEvictsSegments()
+	{
+		PacketCache cache = new PacketCache(3);
+		for (int i = 1; i <= 5; i++)
+		{
+			cache.add(createPacket(i, 30000), i, 0L);
+		}
+		assertRange(cache, 3L, 5L);
+		assertCachedPackets(cache, 1L, 5L, Integer.valueOf(3), 3L, 30000);
+
+		cache.add(createPacket(6, 30000), 6L, 0L);
+		assertRange(cache, 4L, 6L);
+		Assert.assertTrue(cache.isIntact(3L));
+
+		cache.add(createPacket(7, 30000), 7L, 0L);
+		assertRange(cache, 5L, 7L);
+		Assert.assertFalse(cache.isIntact(4L));
+		Assert.assertTrue(cache.isIntact(5L));
+		Assert.assertFalse(cache.isIntact(8L));
+
+		assertCachedPackets(cache, 5L, 7L, Integer.valueOf(3), 5L, 30000);
+	}
+
+	@Test
+	public void testClaimAndCommit()
+	{
+		PacketCache cache = new PacketCache(3);
+		ByteBuffer buffer = cache.claim(100, 0L);
+		Assert.assertTrue(buffer.remaining() >= 100);
+		int packetStart = buffer.position();
+		buffer.put((byte) 1);
+		buffer.put((byte) 2);
+		buffer.limit(buffer.position());
+		buffer.position(packetStart);
+		cache.commit(buffer, 1L);
+		assertRange(cache, 1L, 1L);
+		Assert.assertEquals(2, buffer.remaining());
+
+		assertCachedPackets(cache, 1L, 1L, Integer.valueOf(1), 1L);
+		ByteBuffer packet = cache.getSegment(1L).getPacket(1L);
+		Assert.assertEquals(2, packet.remaining());
+		Assert.assertEquals(2, packet.get(packet.position() + 1));
+
+		cache.add(new byte[] { 2 }, 2L, 0L);
+		assertCachedPackets(cache, 1L, 2L, Integer.valueOf(2), 1L);
 	}
 
 	@Test
 	public void testGetCachedPackets()
 	{
 		PacketCache cache = new PacketCache(3);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 2L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 1 }, 1L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), Integer.valueOf(1), 1L);
-		assertPair(cache.getCachedPackets(1L, 2L), Integer.valueOf(1), 1L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(1), 1L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 2 }, 2L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), Integer.valueOf(1), 1L);
-		assertPair(cache.getCachedPackets(1L, 2L), Integer.valueOf(2), 1L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(2), 1L);
-		assertPair(cache.getCachedPackets(2L, 3L), Integer.valueOf(1), 2L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 3 }, 3L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), Integer.valueOf(1), 1L);
-		assertPair(cache.getCachedPackets(1L, 2L), Integer.valueOf(2), 1L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(3), 1L);
-		assertPair(cache.getCachedPackets(2L, 3L), Integer.valueOf(2), 2L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 4 }, 4L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 2L), Integer.valueOf(1), 2L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(3), 2L);
-		assertPair(cache.getCachedPackets(2L, 3L), Integer.valueOf(2), 2L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 5 }, 5L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 2L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(3), 3L);
-		assertPair(cache.getCachedPackets(2L, 3L), Integer.valueOf(1), 3L);
-		assertPair(cache.getCachedPackets(6L, 6L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 7L), null, 0L);
-
-		cache.add(new byte[] { 6 }, 6L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 2L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(3), 4L);
-		assertPair(cache.getCachedPackets(2L, 3L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 6L), Integer.valueOf(1), 6L);
-		assertPair(cache.getCachedPackets(6L, 7L), Integer.valueOf(1), 6L);
-
-		cache.add(new byte[] { 7 }, 7L);
-		assertPair(cache.getCachedPackets(0L, 0L), null, 0L);
-		assertPair(cache.getCachedPackets(0L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 1L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 2L), null, 0L);
-		assertPair(cache.getCachedPackets(1L, 6L), Integer.valueOf(2), 5L);
-		assertPair(cache.getCachedPackets(2L, 3L), null, 0L);
-		assertPair(cache.getCachedPackets(6L, 6L), Integer.valueOf(1), 6L);
-		assertPair(cache.getCachedPackets(6L, 7L), Integer.valueOf(2), 6L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 2L, null, 0L);
+		assertCachedPackets(cache, 1L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 1 }, 1L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, Integer.valueOf(1), 1L);
+		assertCachedPackets(cache, 1L, 2L, Integer.valueOf(1), 1L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(1), 1L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 2 }, 2L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, Integer.valueOf(1), 1L);
+		assertCachedPackets(cache, 1L, 2L, Integer.valueOf(2), 1L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(2), 1L);
+		assertCachedPackets(cache, 2L, 3L, Integer.valueOf(1), 2L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 3 }, 3L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, Integer.valueOf(1), 1L);
+		assertCachedPackets(cache, 1L, 2L, Integer.valueOf(2), 1L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(3), 1L);
+		assertCachedPackets(cache, 2L, 3L, Integer.valueOf(2), 2L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 4 }, 4L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 2L, Integer.valueOf(1), 2L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(3), 2L);
+		assertCachedPackets(cache, 2L, 3L, Integer.valueOf(2), 2L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 5 }, 5L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 2L, null, 0L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(3), 3L);
+		assertCachedPackets(cache, 2L, 3L, Integer.valueOf(1), 3L);
+		assertCachedPackets(cache, 6L, 6L, null, 0L);
+		assertCachedPackets(cache, 6L, 7L, null, 0L);
+
+		cache.add(new byte[] { 6 }, 6L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 2L, null, 0L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(3), 4L);
+		assertCachedPackets(cache, 2L, 3L, null, 0L);
+		assertCachedPackets(cache, 6L, 6L, Integer.valueOf(1), 6L);
+		assertCachedPackets(cache, 6L, 7L, Integer.valueOf(1), 6L);
+
+		cache.add(new byte[] { 7 }, 7L, 0L);
+		assertCachedPackets(cache, 0L, 0L, null, 0L);
+		assertCachedPackets(cache, 0L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 1L, null, 0L);
+		assertCachedPackets(cache, 1L, 2L, null, 0L);
+		assertCachedPackets(cache, 1L, 6L, Integer.valueOf(2), 5L);
+		assertCachedPackets(cache, 2L, 3L, null, 0L);
+		assertCachedPackets(cache, 6L, 6L, Integer.valueOf(1), 6L);
+		assertCachedPackets(cache, 6L, 7L, Integer.valueOf(2), 6L);
+	}
+
+	@Test
+	public void testRetentionMillis()
+	{
+		PacketCache cache = new PacketCache(2L * PandaUtils.PACKET_CACHE_SEGMENT_SIZE, 20);
+		for (int i = 1; i <= 3; i++)
+		{
+			cache.add(createPacket(i, 30000), i, 1000L + i);
+		}
+		// Packets 1 and 2 expire once the segment opened by packet 3 is more than 20ms old
+		assertCachedPackets(cache, 1L, 3L, Integer.valueOf(3), 1L, -1, 1023L);
+		assertCachedPackets(cache, 1L, 3L, Integer.valueOf(1), 3L, -1, 1024L);
+	}
+
+	@Test
+	public void testExpireWhileIdle()
+	{
+		PacketCache cache = new PacketCache(2L * PandaUtils.PACKET_CACHE_SEGMENT_SIZE, 20);
+		for (int i = 1; i <= 3; i++)
+		{
+			cache.add(createPacket(i, 30000), i, 1000L);
+		}
+		cache.expire(1000L);
+		assertRange(cache, 1, 3);
+
+		cache.expire(1050L);
+		assertRange(cache, 3, 3);
+		Assert.assertEquals(1, cache.getSegmentCount());
+	}
+
+	private static void assertRange(PacketCache cache, long headSequenceNumber, long tailSequenceNumber)
+	{
+		Assert.assertEquals(headSequenceNumber, cache.getHeadSequenceNumber());
+		Assert.assertEquals(tailSequenceNumber, cache.getTailSequenceNumber());
+	}
+
+	private static byte[] createPacket(int firstByte, int length)
+	{
+		byte[] packet = new byte[length];
+		packet[0] = (byte) firstByte;
+		return packet;
+	}
+
+	static void assertCachedPackets(PacketCache cache, long firstSequenceNumberRequested, long lastSequenceNumberRequested, Integer count, long firstSequenceNumber)
+	{
+		assertCachedPackets(cache, firstSequenceNumberRequested, lastSequenceNumberRequested, count, firstSequenceNumber, -1);
+	}
+
+	static void assertCachedPackets(PacketCache cache, long firstSequenceNumberRequested, long lastSequenceNumberRequested, Integer count, long firstSequenceNumber,
+			int packetLength)
+	{
+		assertCachedPackets(cache, firstSequenceNumberRequested, lastSequenceNumberRequested, count, firstSequenceNumber, packetLength, 0L);
 	}
 
-	private void assertPair(Pair<List<byte[]>, Long> cachedPackets, Integer count, long firstSequenceNumber)
+	// Reads the range back at time now the way the gap responder does, clamped by getCachedRange and then as the records of each segment. Every packet starts with the low
+	// byte of its sequenceNumber. A null count expects none of the range to be cached, a negative packetLength skips checking lengths.
+	static void assertCachedPackets(PacketCache cache, long firstSequenceNumberRequested, long lastSequenceNumberRequested, Integer count, long firstSequenceNumber,
+			int packetLength, long now)
 	{
+		Pair<Long, Long> cachedRange = cache.getCachedRange(firstSequenceNumberRequested, lastSequenceNumberRequested, now);
 		if (count == null)
 		{
-			Assert.assertNull(cachedPackets);
+			Assert.assertNull(cachedRange);
+			return;
 		}
-		else
+		long lastSequenceNumber = firstSequenceNumber + count.intValue() - 1;
+		Assert.assertEquals(firstSequenceNumber, cachedRange.getA().longValue());
+		Assert.assertEquals(lastSequenceNumber, cachedRange.getB().longValue());
+		long sequenceNumber = firstSequenceNumber;
+		while (sequenceNumber <= lastSequenceNumber)
 		{
-			Assert.assertEquals(count.intValue(), cachedPackets.getA().size());
-			Assert.assertEquals(firstSequenceNumber, cachedPackets.getB().longValue());
-			Assert.assertEquals((byte) (int) firstSequenceNumber, cachedPackets.getA().get(0)[0]);
+			PacketSegment segment = cache.getSegment(sequenceNumber);
+			Assert.assertNotNull(segment);
+			ByteBuffer records = segment.getRecords(sequenceNumber, Math.min(lastSequenceNumber, segment.getLastSequenceNumber()));
+			while (records.hasRemaining())
+			{
+				int recordPacketLength = records.getInt();
+				if (packetLength >= 0) Assert.assertEquals(packetLength, recordPacketLength);
+				Assert.assertEquals((byte) sequenceNumber++, records.get(records.position()));
+				records.position(records.position() + recordPacketLength);
+			}
 		}
 	}
-}
\ No newline at end of file
+}
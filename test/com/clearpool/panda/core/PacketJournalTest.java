@@ -0,0 +1,79 @@
+package com.clearpool.panda.core;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketJournalTest
+{
+	private File directory;
+	private PacketJournal journal;
+
+	@Before
+	public void before() throws Exception
+	{
+		this.directory = File.createTempFile("panda", "journal");
+		this.directory.delete();
+		this.journal = null;
+	}
+
+	@After
+	public void after()
+	{
+		if (this.journal != null) this.journal.close();
+		File[] files = this.directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testRetentionBytes() throws Exception
+	{
+		this.journal = new PacketJournal("1.1.1.1:1", this.directory, 3 * PandaUtils.PACKET_CACHE_SEGMENT_SIZE, 0, PandaUtils.PACKET_CACHE_SEGMENT_SIZE);
+		Assert.assertEquals(0, this.directory.listFiles().length);
+
+		// Two packets per segment, three segments
+		for (int i = 1; i <= 6; i++)
+		{
+			this.journal.add(createPacket(i, 30000), i, 0L);
+		}
+		Assert.assertEquals(3, this.directory.listFiles().length);
+		PacketCacheTest.assertCachedPackets(this.journal, 1L, 6L, Integer.valueOf(6), 1L, 30000);
+
+		this.journal.add(createPacket(7, 30000), 7L, 0L);
+		Assert.assertEquals(3, this.directory.listFiles().length);
+		PacketCacheTest.assertCachedPackets(this.journal, 1L, 7L, Integer.valueOf(5), 3L, 30000);
+		Assert.assertFalse(this.journal.isIntact(2L));
+		Assert.assertTrue(this.journal.isIntact(3L));
+	}
+
+	@Test
+	public void testRetentionMillis() throws Exception
+	{
+		this.journal = new PacketJournal("1.1.1.1:1", this.directory, 4 * PandaUtils.PACKET_CACHE_SEGMENT_SIZE, 20, PandaUtils.PACKET_CACHE_SEGMENT_SIZE);
+		for (int i = 1; i <= 3; i++)
+		{
+			this.journal.add(createPacket(i, 30000), i, 1000L);
+		}
+		PacketCacheTest.assertCachedPackets(this.journal, 1L, 3L, Integer.valueOf(3), 1L, 30000, 1000L);
+
+		// Third packet is in the tail segment which is never expired
+		PacketCacheTest.assertCachedPackets(this.journal, 1L, 3L, Integer.valueOf(1), 3L, 30000, 1050L);
+	}
+
+	private static byte[] createPacket(int firstByte, int length)
+	{
+		byte[] packet = new byte[length];
+		packet[0] = (byte) firstByte;
+		return packet;
+	}
+}
@@ -0,0 +1,68 @@
+package com.clearpool.panda.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class PacketSegmentPoolTest
+{
+	private static final int PACKET_SIZE = 30000; // Two packets per segment
+
+	@Test
+	public void testBudgetSharedByDemand()
+	{
+		int segmentSize = PandaUtils.PACKET_CACHE_SEGMENT_SIZE;
+		PacketSegmentPool pool = new PacketSegmentPool(4 * segmentSize, segmentSize);
+		PacketCache busyCache = new PacketCache(Integer.MAX_VALUE, pool.getCapacity(), 0, pool);
+		PacketCache quietCache = new PacketCache(Integer.MAX_VALUE, pool.getCapacity(), 0, pool);
+
+		for (int i = 1; i <= 6; i++)
+		{
+			busyCache.add(new byte[PACKET_SIZE], i, 0L);
+		}
+		quietCache.add(new byte[PACKET_SIZE], 1L, 0L);
+		quietCache.add(new byte[PACKET_SIZE], 2L, 0L);
+		Assert.assertEquals(4, pool.getAllocatedSegments());
+		Assert.assertEquals(3, busyCache.getSegmentCount());
+		Assert.assertEquals(1, quietCache.getSegmentCount());
+
+		// Budget is used up and the quiet cache already holds its share, so it recycles its own segment
+		quietCache.add(new byte[PACKET_SIZE], 3L, 0L);
+		Assert.assertEquals(1, quietCache.getSegmentCount());
+		Assert.assertEquals(3L, quietCache.getHeadSequenceNumber());
+		Assert.assertEquals(1L, busyCache.getHeadSequenceNumber());
+
+		// A gap request reaching past the quiet cache raises its demand, so the next segment comes from the busy cache
+		Assert.assertNull(quietCache.getCachedRange(1L, 2L, 0L));
+		quietCache.add(new byte[PACKET_SIZE], 4L, 0L);
+		quietCache.add(new byte[PACKET_SIZE], 5L, 0L);
+		Assert.assertEquals(2, quietCache.getSegmentCount());
+		Assert.assertEquals(3L, quietCache.getHeadSequenceNumber());
+		Assert.assertEquals(2, busyCache.getSegmentCount());
+		Assert.assertEquals(3L, busyCache.getHeadSequenceNumber());
+		Assert.assertFalse(busyCache.isIntact(2L));
+		Assert.assertEquals(4, pool.getAllocatedSegments());
+	}
+
+	@Test
+	public void testCloseReleasesSegments()
+	{
+		int segmentSize = PandaUtils.PACKET_CACHE_SEGMENT_SIZE;
+		PacketSegmentPool pool = new PacketSegmentPool(2 * segmentSize, segmentSize);
+		PacketCache cache = new PacketCache(Integer.MAX_VALUE, pool.getCapacity(), 0, pool);
+		for (int i = 1; i <= 4; i++)
+		{
+			cache.add(new byte[PACKET_SIZE], i, 0L);
+		}
+		cache.close();
+
+		PacketCache otherCache = new PacketCache(Integer.MAX_VALUE, pool.getCapacity(), 0, pool);
+		for (int i = 1; i <= 4; i++)
+		{
+			otherCache.add(new byte[PACKET_SIZE], i, 0L);
+		}
+		Assert.assertEquals(2, otherCache.getSegmentCount());
+		Assert.assertEquals(1L, otherCache.getHeadSequenceNumber());
+		Assert.assertEquals(2, pool.getAllocatedSegments());
+	}
+}
@@ -0,0 +1,87 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class ReceiveRingTest
+{
+	@Test
+	public void testOfferAndRead()
+	{
+		ReceiveRing ring = new ReceiveRing(0);
+		Assert.assertTrue(ring.isEmpty());
+		Assert.assertTrue(ring.offer(1, 3, payload(3, 5)));
+		Assert.assertTrue(ring.offer(2, -1, null));
+		Assert.assertTrue(ring.offer(1, 7, payload(7, 9)));
+		Assert.assertEquals(3 * ReceiveRing.RECORD_HEADER_SIZE + 8 + 16, ring.getBytesUsed());
+
+		RecordingHandler handler = new RecordingHandler();
+		Assert.assertEquals(2, ring.read(handler, 2));
+		Assert.assertEquals("[1/3/5, 2/-1/0]", handler.records.toString());
+		Assert.assertEquals(1, ring.read(handler, 10));
+		Assert.assertEquals("[1/3/5, 2/-1/0, 1/7/9]", handler.records.toString());
+		Assert.assertTrue(ring.isEmpty());
+		Assert.assertEquals(0, ring.read(handler, 10));
+	}
+
+	@Test
+	public void testFullAndWrap()
+	{
+		ReceiveRing ring = new ReceiveRing(0);
+		int payloadLength = 60000;
+		int recordsThatFit = ring.capacity() / (ReceiveRing.RECORD_HEADER_SIZE + payloadLength);
+		for (int i = 0; i < recordsThatFit; i++)
+		{
+			Assert.assertTrue(ring.offer(0, i, payload(i, payloadLength)));
+		}
+		ByteBuffer rejected = payload(recordsThatFit, payloadLength);
+		Assert.assertFalse(ring.offer(0, recordsThatFit, rejected));
+		Assert.assertEquals(payloadLength, rejected.remaining());
+
+		// Room for one more at the start of the ring, after a padding record at its end
+		RecordingHandler handler = new RecordingHandler();
+		Assert.assertEquals(1, ring.read(handler, 1));
+		Assert.assertTrue(ring.offer(0, recordsThatFit, rejected));
+		Assert.assertEquals(ring.capacity(), ring.getMaxBytesUsed());
+		Assert.assertEquals(recordsThatFit, ring.read(handler, Integer.MAX_VALUE));
+		Assert.assertEquals(recordsThatFit + 1, handler.records.size());
+		for (int i = 0; i <= recordsThatFit; i++)
+		{
+			Assert.assertEquals("0/" + i + "/" + payloadLength, handler.records.get(i));
+		}
+		Assert.assertTrue(ring.isEmpty());
+	}
+
+	// Every byte of the payload is its tag
+	private static ByteBuffer payload(int tag, int length)
+	{
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		while (payload.hasRemaining())
+		{
+			payload.put((byte) tag);
+		}
+		payload.flip();
+		return payload;
+	}
+
+	private static class RecordingHandler implements ReceiveRing.RecordHandler
+	{
+		final List<String> records = new ArrayList<String>();
+
+		@Override
+		public void recordRead(int receiverId, int tag, ByteBuffer payload)
+		{
+			int length = payload.remaining();
+			while (payload.hasRemaining())
+			{
+				Assert.assertEquals((byte) tag, payload.get());
+			}
+			this.records.add(receiverId + "/" + tag + "/" + length);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.clearpool.panda.core;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReceiverTest
+{
+	@Test
+	public void testExplicitSelectorThreadPlacement() throws Exception
+	{
+		SelectorThread[] selectorThreads = new SelectorThread[] { new TestSelectorThread(), new TestSelectorThread() };
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.SELECTOR_THREAD_INDEX + ".239.9.9.1:1000", "1");
+		properties.setProperty(PandaProperties.SELECTOR_THREAD_INDEX + ".239.9.9.2:1000", "0");
+		Receiver receiver = new Receiver(selectorThreads, new int[] { 2000, 2001 }, properties);
+		InetAddress localIp = InetAddress.getByName("127.0.0.1");
+
+		receiver.subscribe("TOPIC", "239.9.9.1", 1000, "239.9.9.1:1000", localIp, null, 0, false);
+		receiver.subscribe("TOPIC", "239.9.9.2", 1000, "239.9.9.2:1000", localIp, null, 0, false);
+
+		ChannelReceiveInfo receiveInfo1 = receiver.getChannelReceiveInfos().get("239.9.9.1:1000");
+		Assert.assertSame(selectorThreads[1], receiveInfo1.getSelectorThread());
+		Assert.assertEquals(2001, receiveInfo1.getBindPort());
+		ChannelReceiveInfo receiveInfo2 = receiver.getChannelReceiveInfos().get("239.9.9.2:1000");
+		Assert.assertSame(selectorThreads[0], receiveInfo2.getSelectorThread());
+		Assert.assertEquals(2000, receiveInfo2.getBindPort());
+	}
+
+	@Test
+	public void testHashedSelectorThreadPlacement() throws Exception
+	{
+		SelectorThread[] selectorThreads = new SelectorThread[] { new TestSelectorThread(), new TestSelectorThread(), new TestSelectorThread() };
+		PandaProperties properties = new PandaProperties();
+		Receiver receiver = new Receiver(selectorThreads, new int[] { 2000, 2001, 2002 }, properties);
+		InetAddress localIp = InetAddress.getByName("127.0.0.1");
+
+		for (int i = 1; i <= 10; i++)
+		{
+			String multicastGroup = "239.9.9." + i + ":1000";
+			receiver.subscribe("TOPIC", "239.9.9." + i, 1000, multicastGroup, localIp, null, 0, false);
+			int selectorIndex = PandaUtils.getSelectorThreadIndex(multicastGroup, selectorThreads.length, properties);
+			Assert.assertSame(selectorThreads[selectorIndex], receiver.getChannelReceiveInfos().get(multicastGroup).getSelectorThread());
+			Assert.assertEquals(2000 + selectorIndex, receiver.getChannelReceiveInfos().get(multicastGroup).getBindPort());
+		}
+		Assert.assertEquals(0, PandaUtils.getSelectorThreadIndex("239.9.9.1:1000", 1, properties));
+	}
+
+	@Test
+	public void testLastUnsubscribeLeavesGroup() throws Exception
+	{
+		Receiver receiver = new Receiver(new SelectorThread[] { new TestSelectorThread() }, new int[] { 2000 }, new PandaProperties());
+		InetAddress localIp = InetAddress.getByName("127.0.0.1");
+		PandaMessageListener listener = createListener();
+
+		receiver.subscribeMessages(Arrays.asList("A", "B"), "239.9.9.1", 1000, "239.9.9.1:1000", localIp, listener, 0, false);
+		ChannelReceiveInfo receiveInfo = receiver.getChannelReceiveInfos().get("239.9.9.1:1000");
+		Assert.assertTrue(receiver.unsubscribeMessages(Collections.singleton("A"), "239.9.9.1:1000", listener));
+		Assert.assertSame(receiveInfo, receiver.getChannelReceiveInfos().get("239.9.9.1:1000"));
+		Assert.assertFalse(receiveInfo.isClosed());
+
+		Assert.assertTrue(receiver.unsubscribe(Collections.singleton("B"), "239.9.9.1:1000"));
+		Assert.assertTrue(receiveInfo.isClosed());
+		Assert.assertTrue(receiver.getChannelReceiveInfos().isEmpty());
+		Assert.assertFalse(receiver.unsubscribe(Collections.singleton("B"), "239.9.9.1:1000"));
+
+		// Subscribing again joins a new group
+		Assert.assertNull(receiver.subscribeMessages("A", "239.9.9.1", 1000, "239.9.9.1:1000", localIp, listener, 0, false));
+		ChannelReceiveInfo newReceiveInfo = receiver.getChannelReceiveInfos().get("239.9.9.1:1000");
+		Assert.assertNotSame(receiveInfo, newReceiveInfo);
+		Assert.assertEquals(1, newReceiveInfo.getTopicCount());
+	}
+
+	@Test
+	public void testLeaveGroupWithListeners() throws Exception
+	{
+		Receiver receiver = new Receiver(new SelectorThread[] { new TestSelectorThread() }, new int[] { 2000 }, new PandaProperties());
+		InetAddress localIp = InetAddress.getByName("127.0.0.1");
+		PandaMessageListener listener = createListener();
+
+		Assert.assertNull(receiver.subscribeMessages("A", "239.9.9.1", 1000, "239.9.9.1:1000", localIp, listener, 0, false));
+		Assert.assertSame(listener, receiver.subscribeMessages("A", "239.9.9.1", 1000, "239.9.9.1:1000", localIp, listener, 0, false));
+		ChannelReceiveInfo receiveInfo = receiver.getChannelReceiveInfos().get("239.9.9.1:1000");
+		Assert.assertTrue(receiver.leaveGroup("239.9.9.1:1000"));
+		Assert.assertTrue(receiveInfo.isClosed());
+		Assert.assertTrue(receiver.getChannelReceiveInfos().isEmpty());
+		Assert.assertFalse(receiver.leaveGroup("239.9.9.1:1000"));
+		Assert.assertFalse(receiver.unsubscribeMessages(Collections.singleton("A"), "239.9.9.1:1000", listener));
+	}
+
+	@Test
+	public void testSourceSpecificGroup() throws Exception
+	{
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.MULTICAST_SOURCES + ".239.9.9.1:1000", "10.0.0.1, 10.0.0.2");
+		Receiver receiver = new Receiver(new SelectorThread[] { new TestSelectorThread() }, new int[] { 2000 }, properties);
+		InetAddress localIp = InetAddress.getByName("127.0.0.1");
+
+		receiver.subscribeMessages("A", "239.9.9.1", 1000, "239.9.9.1:1000", localIp, createListener(), 0, false);
+		receiver.subscribeMessages("A", "239.9.9.2", 1000, "239.9.9.2:1000", localIp, createListener(), 0, false);
+		Assert.assertArrayEquals(new InetAddress[] { InetAddress.getByName("10.0.0.1"), InetAddress.getByName("10.0.0.2") },
+				receiver.getChannelReceiveInfos().get("239.9.9.1:1000").getSources());
+		Assert.assertEquals(0, receiver.getChannelReceiveInfos().get("239.9.9.2:1000").getSources().length);
+
+		Assert.assertTrue(receiver.filterSource("239.9.9.1:1000", InetAddress.getByName("10.0.0.1"), true));
+		Assert.assertFalse(receiver.filterSource("239.9.9.3:1000", InetAddress.getByName("10.0.0.1"), true));
+	}
+
+	private static PandaMessageListener createListener()
+	{
+		return new PandaMessageListener()
+		{
+			@Override
+			public void receivedPandaMessage(PandaMessage message)
+			{
+			}
+
+			@Override
+			public void receivedPandaError(PandaErrorCode issueCode, String multicastGroup, String message, Throwable throwable)
+			{
+			}
+		};
+	}
+}
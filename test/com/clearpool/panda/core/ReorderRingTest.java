@@ -0,0 +1,95 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class ReorderRingTest
+{
+	@Test
+	public void testAddRemoveOutOfOrder()
+	{
+		ReorderRing ring = new ReorderRing(8, 1000);
+		Assert.assertEquals(0, ring.size());
+		Assert.assertEquals(0, ring.getFirstSequenceNumber());
+
+		ring.add(5, (byte) 5, packet(5, 10));
+		ring.add(3, (byte) 3, packet(3, 20));
+		ring.add(7, (byte) 7, packet(7, 30));
+		Assert.assertEquals(3, ring.size());
+		Assert.assertEquals(60, ring.getBytes());
+		Assert.assertEquals(3, ring.getFirstSequenceNumber());
+		Assert.assertEquals(7, ring.getLastSequenceNumber());
+		Assert.assertTrue(ring.contains(5));
+		Assert.assertFalse(ring.contains(4));
+		Assert.assertFalse(ring.contains(13));
+
+		Assert.assertEquals(3, ring.getMessageCount(3));
+		ByteBuffer packet = ring.getPacket(3);
+		Assert.assertEquals(20, packet.remaining());
+		Assert.assertEquals(3, packet.get(0));
+
+		ring.remove(3);
+		Assert.assertEquals(5, ring.getFirstSequenceNumber());
+		ring.remove(7);
+		Assert.assertEquals(5, ring.getLastSequenceNumber());
+		Assert.assertEquals(10, ring.getBytes());
+		ring.remove(5);
+		Assert.assertEquals(0, ring.size());
+		Assert.assertEquals(0, ring.getBytes());
+		Assert.assertEquals(0, ring.getFirstSequenceNumber());
+		Assert.assertEquals(0, ring.getLastSequenceNumber());
+	}
+
+	@Test
+	public void testHasRoom()
+	{
+		ReorderRing ring = new ReorderRing(8, 100);
+
+		// An empty ring takes any packet
+		Assert.assertTrue(ring.hasRoom(1000, 200));
+		ring.add(10, (byte) 1, packet(10, 50));
+
+		// Queued sequenceNumbers must stay within the capacity of each other
+		Assert.assertTrue(ring.hasRoom(17, 10));
+		Assert.assertFalse(ring.hasRoom(18, 10));
+		Assert.assertTrue(ring.hasRoom(3, 10));
+		Assert.assertFalse(ring.hasRoom(2, 10));
+
+		// and within the bytes
+		Assert.assertTrue(ring.hasRoom(11, 50));
+		Assert.assertFalse(ring.hasRoom(11, 51));
+	}
+
+	@Test
+	public void testWrapAndClear()
+	{
+		ReorderRing ring = new ReorderRing(4, 10000);
+		for (long sequenceNumber = 1; sequenceNumber <= 20; sequenceNumber += 2)
+		{
+			ring.add(sequenceNumber, (byte) 1, packet((int) sequenceNumber, 10));
+			ring.add(sequenceNumber + 1, (byte) 1, packet((int) sequenceNumber + 1, PandaUtils.MTU_SIZE + 1));
+			Assert.assertEquals(sequenceNumber, ring.getFirstSequenceNumber());
+			Assert.assertEquals((byte) sequenceNumber, ring.getPacket(sequenceNumber).get(0));
+			Assert.assertEquals((byte) (sequenceNumber + 1), ring.getPacket(sequenceNumber + 1).get(0));
+			ring.remove(sequenceNumber);
+			ring.remove(sequenceNumber + 1);
+		}
+
+		ring.add(21, (byte) 1, packet(21, 10));
+		ring.add(24, (byte) 1, packet(24, 10));
+		ring.clear();
+		Assert.assertEquals(0, ring.size());
+		Assert.assertEquals(0, ring.getBytes());
+		Assert.assertFalse(ring.contains(24));
+	}
+
+	private static ByteBuffer packet(int firstByte, int length)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.put(0, (byte) firstByte);
+		return buffer;
+	}
+}
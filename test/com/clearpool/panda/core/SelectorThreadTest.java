@@ -1,12 +1,20 @@
 package com.clearpool.panda.core;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -165,4 +173,166 @@ public class SelectorThreadTest
 				SENDINFO.getMulticastBytes().length);
 		assertEquals(0, q.size());
 	}
+
+	@Test
+	public void testSendClaimedPacket() throws IOException
+	{
+		String topic = "TOPIC";
+		String message = "this is a claimed message";
+		Publication publication = new Publication(topic, SENDINFO, new TestSelectorThread());
+
+		BufferClaim claim = publication.tryClaim(message.length());
+		assertEquals(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + topic.length(), claim.getOffset());
+		assertEquals(message.length(), claim.getLength());
+		claim.getBuffer().put(message.getBytes());
+		ClaimedPacket claimedPacket = claim.getPacket();
+		claim.commit();
+		assertTrue(claimedPacket.isInFlight());
+
+		SelectorThread.sendClaimedData(claimedPacket);
+		assertFalse(claimedPacket.isInFlight());
+		byte[] sentBytes = SENDINFO.getMulticastBytes();
+		assertEquals(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + topic.length() + message.length(), sentBytes.length);
+		ByteBuffer sentBuffer = ByteBuffer.wrap(sentBytes);
+		assertEquals(PandaUtils.PACKET_HEADER_SIZE, sentBuffer.get());
+		sentBuffer.get();
+		assertTrue(sentBuffer.getLong() > 0);
+		assertEquals(1, sentBuffer.get());
+		assertEquals(topic.length(), sentBuffer.get());
+		// Read Topic + Message From Sent Packet
+		String sentTopic = new String(sentBytes).substring(PandaUtils.PACKET_HEADER_SIZE + 1, PandaUtils.PACKET_HEADER_SIZE + topic.length() + 1);
+		assertTrue(topic.equals(sentTopic));
+		String sentMessage = new String(sentBytes).substring(PandaUtils.PACKET_HEADER_SIZE + PandaUtils.MESSAGE_HEADER_FIXED_SIZE + topic.length());
+		assertTrue(message.equals(sentMessage));
+	}
+
+	@Test
+	public void testTryClaimBackPressure() throws IOException
+	{
+		Publication publication = new Publication("TOPIC", SENDINFO, new TestSelectorThread());
+		for (int i = 0; i < PandaUtils.PUBLICATION_CLAIM_BUFFER_COUNT; i++)
+		{
+			BufferClaim claim = publication.tryClaim(4);
+			assertNotNull(claim);
+			claim.getBuffer().putInt(i);
+			claim.commit();
+		}
+		// All buffers are waiting on the selector
+		assertNull(publication.tryClaim(4));
+	}
+
+	@Test
+	public void testSwitchIdleStrategyWhileRunning() throws Exception
+	{
+		final AtomicInteger packetsSent = new AtomicInteger();
+		TestChannelSendInfo sendInfo = new TestChannelSendInfo("127.0.0.1", 0, "127.0.0.1:0", 0, InetAddress.getByName("127.0.0.1"), null)
+		{
+			@Override
+			public void sendToChannel(ByteBuffer buffer) throws IOException
+			{
+				packetsSent.incrementAndGet();
+			}
+		};
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.IDLE_STRATEGY, IdleStrategy.BLOCKING.name());
+		SelectorThread selectorThread = new SelectorThread(properties, 0);
+		selectorThread.start();
+		try
+		{
+			int expectedPacketsSent = 0;
+			for (IdleStrategy idleStrategy : new IdleStrategy[] { IdleStrategy.BLOCKING, IdleStrategy.BACKOFF, IdleStrategy.SPIN_YIELD, IdleStrategy.BUSY_SPIN,
+					IdleStrategy.BLOCKING })
+			{
+				selectorThread.setIdleStrategy(idleStrategy);
+				assertEquals(idleStrategy, selectorThread.getIdleStrategy());
+
+				// Long enough for the thread to go idle, a backing off thread is parked by then
+				Thread.sleep(50);
+				selectorThread.sendToMulticastChannel(sendInfo, "TOPIC".getBytes(), "message".getBytes());
+				expectedPacketsSent++;
+				long deadline = System.currentTimeMillis() + 1000;
+				while (packetsSent.get() < expectedPacketsSent && System.currentTimeMillis() < deadline)
+				{
+					Thread.sleep(1);
+				}
+				assertEquals(idleStrategy.name(), expectedPacketsSent, packetsSent.get());
+			}
+		}
+		finally
+		{
+			selectorThread.interrupt();
+			selectorThread.join(1000);
+		}
+	}
+
+	@Test
+	public void testSendDetailsReusedAcrossRingWrap() throws Exception
+	{
+		final Queue<Integer> messagesSent = new ConcurrentLinkedQueue<Integer>();
+		TestChannelSendInfo sendInfo = new TestChannelSendInfo("127.0.0.1", 0, "127.0.0.1:0", 0, InetAddress.getByName("127.0.0.1"), null)
+		{
+			@Override
+			public void sendToChannel(ByteBuffer buffer) throws IOException
+			{
+				int messageCount = buffer.get(buffer.position() + PandaUtils.PACKET_HEADER_SIZE - 1);
+				buffer.position(buffer.position() + PandaUtils.PACKET_HEADER_SIZE);
+				for (int i = 0; i < messageCount; i++)
+				{
+					int topicLength = buffer.get();
+					buffer.position(buffer.position() + topicLength);
+					assertEquals(4, buffer.getShort());
+					messagesSent.add(Integer.valueOf(buffer.getInt()));
+				}
+			}
+		};
+		PandaProperties properties = new PandaProperties();
+		properties.setProperty(PandaProperties.SELECTOR_ACTION_QUEUE_SIZE, "4");
+		SelectorThread selectorThread = new SelectorThread(properties, 0);
+		selectorThread.start();
+		try
+		{
+			byte[] topicBytes = sendInfo.getTopicBytes("TOPIC");
+			for (int i = 0; i < 1000; i++)
+			{
+				selectorThread.sendToMulticastChannel(sendInfo, topicBytes, ByteBuffer.allocate(4).putInt(i).array());
+			}
+			long deadline = System.currentTimeMillis() + 1000;
+			while (messagesSent.size() < 1000 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(1);
+			}
+			for (int i = 0; i < 1000; i++)
+			{
+				assertEquals(Integer.valueOf(i), messagesSent.poll());
+			}
+			assertTrue(messagesSent.isEmpty());
+		}
+		finally
+		{
+			selectorThread.interrupt();
+			selectorThread.join(1000);
+		}
+	}
+
+	@Test
+	public void testIdleStrategyFromProperties() throws Exception
+	{
+		PandaProperties properties = new PandaProperties();
+		assertEquals(IdleStrategy.BLOCKING, IdleStrategy.fromProperties(0, properties));
+		properties.setProperty(PandaProperties.IDLE_STRATEGY, "backoff");
+		properties.setProperty(PandaProperties.IDLE_STRATEGY + ".1", " BUSY_SPIN ");
+		assertEquals(IdleStrategy.BACKOFF, new SelectorThread(properties, 0).getIdleStrategy());
+		assertEquals(IdleStrategy.BUSY_SPIN, new SelectorThread(properties, 1).getIdleStrategy());
+
+		properties.setProperty(PandaProperties.IDLE_STRATEGY + ".2", "SPIN");
+		try
+		{
+			IdleStrategy.fromProperties(2, properties);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("IDLE_STRATEGY of selectorThread 2 is SPIN, expected one of [BUSY_SPIN, SPIN_YIELD, BACKOFF, BLOCKING]", e.getMessage());
+		}
+	}
 }
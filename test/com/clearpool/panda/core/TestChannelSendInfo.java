@@ -17,7 +17,8 @@ public class TestChannelSendInfo extends ChannelSendInfo
 	@Override
 	public void sendToChannel(ByteBuffer buffer) throws IOException
 	{
-		this.multicastBytes = buffer.array();
+		this.multicastBytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(this.multicastBytes);
 	}
 
 	public byte[] getMulticastBytes()
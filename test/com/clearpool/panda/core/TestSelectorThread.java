@@ -9,7 +9,7 @@ public class TestSelectorThread extends SelectorThread
 
 	public TestSelectorThread() throws IOException
 	{
-		super(new PandaProperties());
+		super(new PandaProperties(), 0);
 	}
 
 	@Override
@@ -18,12 +18,32 @@ public class TestSelectorThread extends SelectorThread
 
 	}
 
+	// No channel was opened, so the receiverInfo is closed straight away
+	@Override
+	void unsubscribeFromMulticastChannel(String multicastGroup, ChannelReceiveInfo receiverInfo)
+	{
+		receiverInfo.close();
+	}
+
+	@Override
+	void filterMulticastSource(String multicastGroup, InetAddress source, boolean block)
+	{
+
+	}
+
 	@Override
 	public void registerTcpChannelAction(AbstractSelectableChannel channel, int interestOps, Object attachment)
 	{
 
 	}
 
+	// Nothing runs the selection loop, so the clock is read on every call
+	@Override
+	long getCurrentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
 	@Override
 	public boolean shouldMakeConnections()
 	{
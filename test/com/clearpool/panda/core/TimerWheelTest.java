@@ -0,0 +1,143 @@
+package com.clearpool.panda.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class TimerWheelTest
+{
+	@Test
+	public void testExpireInDeadlineOrder()
+	{
+		TimerWheel wheel = new TimerWheel(1, 8, 1000);
+		List<String> fired = new ArrayList<String>();
+		TestTimer a = new TestTimer("a", fired);
+		TestTimer b = new TestTimer("b", fired);
+		TestTimer c = new TestTimer("c", fired);
+		Assert.assertEquals(Long.MAX_VALUE, wheel.getNextDeadline());
+
+		wheel.schedule(a, 1005);
+		wheel.schedule(b, 1003);
+		wheel.schedule(c, 1020); // beyond one turn of the wheel, in the same slot as 1004
+		Assert.assertEquals(3, wheel.getTimerCount());
+		Assert.assertEquals(1003, wheel.getNextDeadline());
+
+		Assert.assertEquals(0, wheel.expire(1002));
+		Assert.assertEquals(1, wheel.expire(1004));
+		Assert.assertEquals("[b]", fired.toString());
+		Assert.assertEquals(1005, wheel.getNextDeadline());
+		Assert.assertTrue(c.isScheduled());
+
+		Assert.assertEquals(1, wheel.expire(1010));
+		Assert.assertEquals("[b, a]", fired.toString());
+		Assert.assertEquals(1020, wheel.getNextDeadline());
+
+		// Long pause covers the whole wheel at once
+		Assert.assertEquals(1, wheel.expire(5000));
+		Assert.assertEquals("[b, a, c]", fired.toString());
+		Assert.assertEquals(0, wheel.getTimerCount());
+		Assert.assertEquals(Long.MAX_VALUE, wheel.getNextDeadline());
+	}
+
+	@Test
+	public void testRescheduleAndCancel()
+	{
+		TimerWheel wheel = new TimerWheel(1, 8, 1000);
+		List<String> fired = new ArrayList<String>();
+		TestTimer a = new TestTimer("a", fired);
+		TestTimer b = new TestTimer("b", fired);
+
+		wheel.schedule(a, 1002);
+		wheel.schedule(b, 1003);
+		wheel.schedule(a, 1006);
+		Assert.assertEquals(2, wheel.getTimerCount());
+		wheel.cancel(b);
+		Assert.assertFalse(b.isScheduled());
+		Assert.assertEquals(1006, wheel.getNextDeadline());
+		Assert.assertEquals(0, wheel.expire(1005));
+		Assert.assertEquals(1, wheel.expire(1006));
+		Assert.assertEquals("[a]", fired.toString());
+
+		// A deadline that has passed fires on the next tick
+		wheel.schedule(b, 900);
+		Assert.assertEquals(0, wheel.expire(1006));
+		Assert.assertEquals(1, wheel.expire(1007));
+		Assert.assertEquals("[a, b]", fired.toString());
+	}
+
+	@Test
+	public void testRescheduleFromExpiry()
+	{
+		final TimerWheel wheel = new TimerWheel(1, 8, 0);
+		final List<Long> fired = new ArrayList<Long>();
+		WheelTimer periodic = new WheelTimer()
+		{
+			@Override
+			void expired(long now)
+			{
+				fired.add(Long.valueOf(now));
+				wheel.schedule(this, now);
+			}
+		};
+		wheel.schedule(periodic, 1);
+		Assert.assertEquals(1, wheel.expire(1));
+		Assert.assertEquals(0, wheel.expire(1));
+		Assert.assertEquals(1, wheel.expire(2));
+		Assert.assertEquals("[1, 2]", fired.toString());
+	}
+
+	@Test
+	public void testNextDeadlineAfterEarliestGoes()
+	{
+		TimerWheel wheel = new TimerWheel(1, 8, 1000);
+		List<String> fired = new ArrayList<String>();
+		TestTimer a = new TestTimer("a", fired);
+		TestTimer b = new TestTimer("b", fired);
+		TestTimer c = new TestTimer("c", fired);
+		TestTimer d = new TestTimer("d", fired);
+
+		// c is due in the slot of a, a turn of the wheel later
+		wheel.schedule(a, 1002);
+		wheel.schedule(b, 1004);
+		wheel.schedule(c, 1010);
+		wheel.schedule(d, 1030);
+		Assert.assertEquals(1002, wheel.getNextDeadline());
+		wheel.cancel(a);
+		Assert.assertEquals(1004, wheel.getNextDeadline());
+
+		// Scheduling before the tick the scan would start from
+		wheel.cancel(b);
+		wheel.schedule(a, 1001);
+		Assert.assertEquals(1001, wheel.getNextDeadline());
+		wheel.cancel(a);
+		Assert.assertEquals(1010, wheel.getNextDeadline());
+
+		// Nothing due within a turn of the wheel
+		Assert.assertEquals(1, wheel.expire(1010));
+		Assert.assertEquals(1030, wheel.getNextDeadline());
+		wheel.cancel(d);
+		Assert.assertEquals(Long.MAX_VALUE, wheel.getNextDeadline());
+	}
+
+	private static class TestTimer extends WheelTimer
+	{
+		private final String name;
+		private final List<String> fired;
+
+		TestTimer(String name, List<String> fired)
+		{
+			this.name = name;
+			this.fired = fired;
+		}
+
+		@Override
+		void expired(long now)
+		{
+			Assert.assertTrue(now >= getDeadline());
+			this.fired.add(this.name);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class TopicTableTest
+{
+	@Test
+	public void testLookupFromBuffer()
+	{
+		Map<String, Integer> valuesByTopic = new HashMap<String, Integer>();
+		valuesByTopic.put("AAPL", Integer.valueOf(1));
+		valuesByTopic.put("MSFT", Integer.valueOf(2));
+		valuesByTopic.put("IBM", Integer.valueOf(3));
+		valuesByTopic.put("GOOG", null);
+		TopicTable<Integer> table = new TopicTable<Integer>(valuesByTopic);
+		Assert.assertEquals(3, table.size());
+
+		// Topics are found in the middle of a packet without moving its position
+		ByteBuffer buffer = ByteBuffer.wrap("xxMSFTyyIBMzzGOOGAAPXIB".getBytes());
+		int index = table.indexOf(buffer, 2, 4);
+		Assert.assertTrue(index >= 0);
+		Assert.assertEquals("MSFT", table.getTopic(index));
+		Assert.assertEquals(2, table.getValue(index).intValue());
+		index = table.indexOf(buffer, 8, 3);
+		Assert.assertEquals("IBM", table.getTopic(index));
+		Assert.assertEquals(3, table.getValue(index).intValue());
+		Assert.assertEquals(0, buffer.position());
+
+		// A topic without a listener, one differing in its last byte and one of a length no topic has
+		Assert.assertTrue(table.indexOf(buffer, 13, 4) < 0);
+		Assert.assertTrue(table.indexOf(buffer, 17, 4) < 0);
+		Assert.assertTrue(table.indexOf(buffer, 21, 2) < 0);
+	}
+
+	@Test
+	public void testManyTopics()
+	{
+		Map<String, Integer> valuesByTopic = new HashMap<String, Integer>();
+		for (int i = 0; i < 1000; i++)
+		{
+			valuesByTopic.put("TOPIC" + i, Integer.valueOf(i));
+		}
+		TopicTable<Integer> table = new TopicTable<Integer>(valuesByTopic);
+		for (int i = 0; i < 2000; i++)
+		{
+			byte[] topicBytes = ("TOPIC" + i).getBytes();
+			int index = table.indexOf(ByteBuffer.wrap(topicBytes), 0, topicBytes.length);
+			if (i < 1000)
+			{
+				Assert.assertEquals(i, table.getValue(index).intValue());
+			}
+			else
+			{
+				Assert.assertTrue(index < 0);
+			}
+		}
+		Assert.assertTrue(new TopicTable<Integer>(new HashMap<String, Integer>()).indexOf(ByteBuffer.wrap("TOPIC".getBytes()), 0, 5) < 0);
+	}
+}
@@ -0,0 +1,55 @@
+package com.clearpool.panda.core;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("static-method")
+public class TopicTrieTest
+{
+	@Test
+	public void testPrefixAndSegmentWildcards()
+	{
+		Map<String, String> valuesByWildcardTopic = new HashMap<String, String>();
+		valuesByWildcardTopic.put("EQ.*", "EQ");
+		valuesByWildcardTopic.put("EQ.NYSE.*", "NYSE");
+		valuesByWildcardTopic.put("EQ.*.IBM", "IBM");
+		valuesByWildcardTopic.put("FX.*.USD.*", "USD");
+		TopicTrie<String> trie = new TopicTrie<String>(valuesByWildcardTopic);
+		Assert.assertEquals(4, trie.size());
+
+		Assert.assertEquals("NYSE", match(trie, "EQ.NYSE.AAPL"));
+		Assert.assertEquals("NYSE", match(trie, "EQ.NYSE.IBM"));
+		Assert.assertEquals("IBM", match(trie, "EQ.ARCA.IBM"));
+		Assert.assertEquals("EQ", match(trie, "EQ.ARCA.IBMX"));
+		Assert.assertEquals("EQ", match(trie, "EQ.ARCA.X.IBM"));
+		Assert.assertEquals("USD", match(trie, "FX.EBS.USD.JPY"));
+		Assert.assertNull(match(trie, "FX.EBS.EUR.JPY"));
+		Assert.assertNull(match(trie, "FX.USD.JPY"));
+		Assert.assertNull(match(trie, "EQ"));
+		Assert.assertNull(match(trie, "OPT.NYSE.AAPL"));
+	}
+
+	@Test
+	public void testMatchDoesNotMoveBuffer()
+	{
+		Map<String, String> valuesByWildcardTopic = new HashMap<String, String>();
+		valuesByWildcardTopic.put("A*", "A");
+		TopicTrie<String> trie = new TopicTrie<String>(valuesByWildcardTopic);
+		ByteBuffer buffer = ByteBuffer.wrap("xxABCyy".getBytes());
+		Assert.assertEquals("A", trie.match(buffer, 2, 3));
+		Assert.assertNull(trie.match(buffer, 1, 3));
+		Assert.assertEquals(0, buffer.position());
+		Assert.assertTrue(TopicTrie.isWildcard("A*"));
+		Assert.assertFalse(TopicTrie.isWildcard("A"));
+	}
+
+	private static String match(TopicTrie<String> trie, String topic)
+	{
+		byte[] topicBytes = topic.getBytes();
+		return trie.match(ByteBuffer.wrap(topicBytes), 0, topicBytes.length);
+	}
+}
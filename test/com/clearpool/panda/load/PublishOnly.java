@@ -10,6 +10,7 @@ import java.util.List;
 
 import com.clearpool.panda.core.PandaAdapter;
 import com.clearpool.panda.core.PandaUtils;
+import com.clearpool.panda.core.Publication;
 
 public class PublishOnly
 {
@@ -38,6 +39,7 @@ public class PublishOnly
 	private void start() throws Exception
 	{
 		final InetAddress localIp = InetAddress.getLocalHost();
+		final Publication publication = this.adapter.createPublication(TOPIC1, IP, PORT, MULTICASTGROUP, localIp);
 
 		for (int i = 0; i < this.numThreads; i++)
 		{
@@ -63,7 +65,7 @@ public class PublishOnly
 							buffer.putInt(index);
 							buffer.putInt(j);
 							buffer.rewind();
-							PublishOnly.this.adapter.send(TOPIC1, IP, PORT, MULTICASTGROUP, localIp, buffer.array());
+							PublishOnly.this.adapter.send(publication, buffer.array());
 							if (j % messagesPerMil == 0) Thread.sleep(1);
 						}
 					}